@@ -0,0 +1,185 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs;
+
+import com.github.zk1931.pulsefs.tree.DataTree;
+import com.github.zk1931.pulsefs.tree.DataTree.DirectoryNode;
+import com.github.zk1931.pulsefs.tree.DataTree.InvalidPath;
+import com.github.zk1931.pulsefs.tree.DataTree.NodeAlreadyExist;
+import com.github.zk1931.pulsefs.tree.DataTree.NotDirectory;
+import com.github.zk1931.pulsefs.tree.DataTree.PathNotExist;
+import com.github.zk1931.pulsefs.tree.DataTree.QuotaExceeded;
+import com.github.zk1931.pulsefs.tree.DataTree.TreeException;
+import com.github.zk1931.pulsefs.tree.DataTree.VersionNotMatch;
+import com.github.zk1931.pulsefs.tree.FileNode;
+import com.github.zk1931.pulsefs.tree.Node;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.AsyncContext;
+
+/**
+ * Command for adding a delta to a counter atomically. The value of the
+ * counter is the decimal number stored in the file, a file which doesn't
+ * exist counts as 0 and gets created. The new value is replied to client.
+ */
+public class AddCommand extends Command {
+
+  private static final long serialVersionUID = 0L;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  final String path;
+  final long delta;
+  // The bounds (inclusive) of the new value.
+  final long min;
+  final long max;
+  final boolean recursive;
+
+  public AddCommand(String path,
+                    long delta,
+                    long min,
+                    long max,
+                    boolean recursive) {
+    this.path = path;
+    this.delta = delta;
+    this.min = min;
+    this.max = max;
+    this.recursive = recursive;
+  }
+
+  Node execute(PulseFS pulsefs)
+      throws PathNotExist, InvalidPath, VersionNotMatch, DirectoryNode,
+             NotDirectory, NodeAlreadyExist, QuotaExceeded, NotCounter,
+             OutOfRange {
+    return apply(pulsefs.getTree());
+  }
+
+  Node apply(DataTree tree)
+      throws PathNotExist, InvalidPath, VersionNotMatch, DirectoryNode,
+             NotDirectory, NodeAlreadyExist, QuotaExceeded, NotCounter,
+             OutOfRange {
+    Node node = null;
+    if (tree.exist(path)) {
+      node = tree.getNode(path);
+      if (node.isDirectory()) {
+        throw new DirectoryNode(path + " is a directory");
+      }
+    }
+    long value = node == null ? 0 : getValue((FileNode)node);
+    long newValue = value + delta;
+    if (((value ^ newValue) & (delta ^ newValue)) < 0) {
+      throw new OutOfRange("Adding " + delta + " to " + value + " overflows");
+    }
+    if (newValue < min || newValue > max) {
+      throw new OutOfRange("Value " + newValue + " is out of range [" + min +
+          ", " + max + "]");
+    }
+    byte[] data = Long.toString(newValue).getBytes(UTF8);
+    try {
+      FileNode ret;
+      if (node == null) {
+        ret = (FileNode)tree.createFileInStagingArea(path, data, recursive,
+                                                     false);
+      } else {
+        ret = (FileNode)tree.setDataInStagingArea(path, data,
+                                                  node.getVersion());
+        // Counting doesn't extend the time-to-live, e.g. the counter of a
+        // rate limit window.
+        tree.setExpiresAtInStagingArea(ret.fullPath,
+                                       ((FileNode)node).getExpiresAt());
+      }
+      tree.commitStagingChanges();
+      return ret;
+    } catch (TreeException ex) {
+      tree.abortStagingChanges();
+      throw ex;
+    }
+  }
+
+  static long getValue(FileNode file) throws NotCounter {
+    byte[] data = file.getData();
+    if (file.isCompressed()) {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      try {
+        Compression.decompress(data, bos);
+      } catch (IOException ex) {
+        throw new NotCounter(file.fullPath + " is not a counter");
+      }
+      data = bos.toByteArray();
+    }
+    String value = new String(data, UTF8).trim();
+    if (value.isEmpty()) {
+      return 0;
+    }
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException ex) {
+      throw new NotCounter(file.fullPath + " is not a counter");
+    }
+  }
+
+  @Override
+  Command resolve(DataTree tree) {
+    try {
+      // Counters which can't be updated are rejected on leader. The command
+      // itself has no branch depending on the state of other servers.
+      apply(tree);
+      return this;
+    } catch (TreeException ex) {
+      return new RejectedCommand(ex);
+    }
+  }
+
+  void executeAndReply(PulseFS pulsefs, Object ctx) {
+    AsyncContext context = (AsyncContext)ctx;
+    HttpServletResponse response = (HttpServletResponse)(context.getResponse());
+    try {
+      Node node = execute(pulsefs);
+      Utils.replyNodeInfo(response, node, false, context);
+    } catch (PathNotExist ex) {
+      Utils.replyNotFound(response, ex.getMessage(), context);
+    } catch (OutOfRange ex) {
+      Utils.replyConflict(response, ex.getMessage(), context);
+    } catch (QuotaExceeded ex) {
+      Utils.replyInsufficientStorage(response, ex.getMessage(), context);
+    } catch (TreeException ex) {
+      Utils.replyBadRequest(response, ex.getMessage(), context);
+    } catch (IOException ex) {
+      Utils.replyBadRequest(response, ex.getMessage(), context);
+    }
+  }
+
+  /**
+   * Exception for a file whose data is not a number.
+   */
+  public static class NotCounter extends TreeException {
+    public NotCounter(String desc) {
+      super(desc);
+    }
+  }
+
+  /**
+   * Exception for a new value which is out of the bounds.
+   */
+  public static class OutOfRange extends TreeException {
+    public OutOfRange(String desc) {
+      super(desc);
+    }
+  }
+}
@@ -0,0 +1,72 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs;
+
+import com.github.zk1931.pulsefs.tree.DataTree;
+import com.github.zk1931.pulsefs.tree.DataTree.TreeException;
+import com.github.zk1931.pulsefs.tree.Node;
+import com.github.zk1931.pulsefs.tree.PathUtils;
+import java.nio.charset.Charset;
+
+/**
+ * Command for announcing the address clients connect to a server with. The
+ * address is the data of the file of the server under /pulsefs/servers, so
+ * the servers can redirect the clients to each other.
+ */
+public class AnnounceServerCommand extends Command {
+
+  private static final long serialVersionUID = 0L;
+
+  final String serverId;
+  // The address (host:port) of the server for clients.
+  final String address;
+
+  AnnounceServerCommand(String serverId, String address) {
+    this.serverId = serverId;
+    this.address = address;
+  }
+
+  Node execute(PulseFS pulsefs) throws TreeException {
+    return apply(pulsefs.getTree());
+  }
+
+  Node apply(DataTree tree) throws TreeException {
+    String path = PulseFSConfig.PULSEFS_SERVERS_PATH + PathUtils.SEP +
+                  this.serverId;
+    byte[] data = this.address.getBytes(Charset.forName("UTF-8"));
+    // The file of a joining server might be created by the cluster change
+    // after the announcement.
+    if (tree.exist(path)) {
+      return tree.setData(path, data, -1);
+    }
+    return tree.createFile(path, data, false, false);
+  }
+
+  @Override
+  Command resolve(DataTree tree) {
+    try {
+      apply(tree);
+      return this;
+    } catch (TreeException ex) {
+      return new RejectedCommand(ex);
+    }
+  }
+
+  void executeAndReply(PulseFS pulsefs, Object ctx) {
+  }
+}
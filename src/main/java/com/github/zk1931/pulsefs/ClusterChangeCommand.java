@@ -19,9 +19,12 @@ package com.github.zk1931.pulsefs;
 
 import com.github.zk1931.pulsefs.tree.DataTree;
 import com.github.zk1931.pulsefs.tree.DirNode;
+import com.github.zk1931.pulsefs.tree.FileNode;
 import com.github.zk1931.pulsefs.tree.Node;
 import com.github.zk1931.pulsefs.tree.PathUtils;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -46,17 +49,42 @@ public class ClusterChangeCommand extends Command {
     DataTree tree = pulsefs.getTree();
     // Gets node /pulsefs/servers
     Node serversNode = tree.getNode(PulseFSConfig.PULSEFS_SERVERS_PATH);
+    // The addresses announced by the servers, see AnnounceServerCommand.
+    Map<String, byte[]> addresses = new HashMap<>();
+    // The ancestors are copied once for all the changes.
+    tree.startEditSession();
     for (Node child : ((DirNode)serversNode).children.values()) {
+      addresses.put(PathUtils.name(child.fullPath),
+                    ((FileNode)child).getData());
       // Deletes all the nodes under /pulsefs/servers
       tree.deleteNodeInStagingArea(child.fullPath, -1, false);
     }
     for (String server : clusterMembers) {
-      // Creates new nodes.
+      // Creates new nodes, the members keep their addresses.
       String path = PulseFSConfig.PULSEFS_SERVERS_PATH + PathUtils.SEP + server;
-      tree.createFileInStagingArea(path, new byte[0], false, false);
+      byte[] address = addresses.get(server);
+      tree.createFileInStagingArea(path,
+                                   address == null ? new byte[0] : address,
+                                   false, false);
     }
     // Commit changes.
     tree.commitStagingChanges();
+    // Schedules the sessions owned by this server which are not scheduled,
+    // e.g. the server has been restarted.
+    pulsefs.scheduleSessionsIfAbsent(
+        tree.getSessionRegistry().getOwnedSessions(pulsefs.getServerId()));
+    Set<String> liveServers = new HashSet<>(activeFollowers);
+    liveServers.add(leader);
+    pulsefs.setLiveServers(liveServers);
+    if (pulsefs.getServerId().equals(leader)) {
+      // The leader adopts the sessions whose owners have left, otherwise
+      // they'll never expire.
+      long[] orphans =
+        tree.getSessionRegistry().getOrphanedSessions(liveServers);
+      if (orphans.length > 0) {
+        pulsefs.adoptSessions(orphans);
+      }
+    }
     return null;
   }
 
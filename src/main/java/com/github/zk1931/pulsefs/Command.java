@@ -17,9 +17,14 @@
 
 package com.github.zk1931.pulsefs;
 
+import com.github.zk1931.pulsefs.tree.DataTree;
 import com.github.zk1931.pulsefs.tree.DataTree.TreeException;
 import com.github.zk1931.pulsefs.tree.Node;
 import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Command interface.
@@ -27,8 +32,64 @@ import java.io.Serializable;
 public abstract class Command implements Serializable {
 
   private static final long serialVersionUID = 0L;
+  private static final Logger LOG = LoggerFactory.getLogger(Command.class);
+  // Whether the commands of each class can be resolved, by class names.
+  private static final ConcurrentMap<String, Boolean> RESOLVABLE =
+    new ConcurrentHashMap<>();
 
   abstract Node execute(PulseFS pulsefs) throws TreeException;
 
   abstract void executeAndReply(PulseFS pulsefs, Object ctx);
+
+  /**
+   * Resolves the command on leader before it gets proposed. The command is
+   * evaluated against the tree which has all the proposed changes applied,
+   * and the changes are applied to that tree as well.
+   *
+   * @param tree the tree with all the proposed changes applied.
+   * @return the command which can be applied without any branches, or null
+   * if the command can't be resolved.
+   */
+  Command resolve(DataTree tree) {
+    return null;
+  }
+
+  /**
+   * Checks whether the commands of the class override {@link #resolve}, the
+   * commands which don't are proposed without being deserialized on leader.
+   *
+   * @param className the name of the class of the commands.
+   * @return false if the commands can't be resolved, true if they might be
+   * or the class is unknown.
+   */
+  static boolean isResolvable(String className) {
+    if (className == null) {
+      return true;
+    }
+    Boolean resolvable = RESOLVABLE.get(className);
+    if (resolvable == null) {
+      resolvable = true;
+      try {
+        Class<?> cls = Class.forName(className);
+        while (cls != null && cls != Command.class &&
+               !declaresResolve(cls)) {
+          cls = cls.getSuperclass();
+        }
+        resolvable = cls != null && cls != Command.class;
+      } catch (ClassNotFoundException | RuntimeException ex) {
+        LOG.warn("Failed to check the class {}", className, ex);
+      }
+      RESOLVABLE.put(className, resolvable);
+    }
+    return resolvable;
+  }
+
+  private static boolean declaresResolve(Class<?> cls) {
+    try {
+      cls.getDeclaredMethod("resolve", DataTree.class);
+      return true;
+    } catch (NoSuchMethodException ex) {
+      return false;
+    }
+  }
 }
@@ -0,0 +1,99 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A utility class to compress / decompress the data of files with gzip.
+ */
+public final class Compression {
+
+  public static final String GZIP = "gzip";
+
+  /**
+   * Disables constructor.
+   */
+  private Compression() {
+  }
+
+  /**
+   * Compresses the data if it's not smaller than the threshold.
+   *
+   * @param threshold the minimum size of the compressed data, 0 disables the
+   * compression.
+   * @return the compressed data, or null if the data is not compressed or it
+   * doesn't get smaller.
+   */
+  public static byte[] compress(byte[] data, int threshold) {
+    if (threshold <= 0 || data == null || data.length < threshold) {
+      return null;
+    }
+    ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 2);
+    try (GZIPOutputStream gos = new GZIPOutputStream(bos)) {
+      gos.write(data);
+    } catch (IOException ex) {
+      // Never happens on ByteArrayOutputStream.
+      return null;
+    }
+    return bos.size() < data.length ? bos.toByteArray() : null;
+  }
+
+  /**
+   * Decompresses the data to the stream.
+   */
+  public static void decompress(byte[] data, OutputStream out)
+      throws IOException {
+    try (InputStream in =
+           new GZIPInputStream(new ByteArrayInputStream(data))) {
+      byte[] buffer = new byte[8192];
+      int length;
+      while ((length = in.read(buffer)) > 0) {
+        out.write(buffer, 0, length);
+      }
+    }
+  }
+
+  /**
+   * Whether the client accepts gzip encoded content.
+   */
+  public static boolean acceptsGzip(HttpServletRequest request) {
+    String accept = request.getHeader("Accept-Encoding");
+    if (accept == null) {
+      return false;
+    }
+    for (String coding : accept.split(",")) {
+      String[] params = coding.split(";");
+      String name = params[0].trim();
+      if (!name.equalsIgnoreCase(GZIP) && !name.equals("*")) {
+        continue;
+      }
+      // "gzip;q=0" means the client doesn't accept it.
+      return params.length < 2 ||
+             !params[1].trim().matches("q=0(\\.0*)?");
+    }
+    return false;
+  }
+}
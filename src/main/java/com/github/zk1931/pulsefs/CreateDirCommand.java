@@ -22,6 +22,7 @@ import com.github.zk1931.pulsefs.tree.DataTree.InvalidPath;
 import com.github.zk1931.pulsefs.tree.DataTree.NodeAlreadyExist;
 import com.github.zk1931.pulsefs.tree.DataTree.NotDirectory;
 import com.github.zk1931.pulsefs.tree.DataTree.PathNotExist;
+import com.github.zk1931.pulsefs.tree.DataTree.QuotaExceeded;
 import com.github.zk1931.pulsefs.tree.DataTree.TreeException;
 import com.github.zk1931.pulsefs.tree.Node;
 import javax.servlet.http.HttpServletResponse;
@@ -46,7 +47,8 @@ public class CreateDirCommand extends Command {
   }
 
   Node execute(PulseFS pulsefs)
-      throws NotDirectory, NodeAlreadyExist, PathNotExist, InvalidPath {
+      throws NotDirectory, NodeAlreadyExist, PathNotExist, InvalidPath,
+             QuotaExceeded {
     DataTree tree = pulsefs.getTree();
     return tree.createDir(this.path, this.recursive);
   }
@@ -60,6 +62,8 @@ public class CreateDirCommand extends Command {
       Utils.replyCreated(response, context);
     } catch (PathNotExist ex) {
       Utils.replyNotFound(response, ex.getMessage(), context);
+    } catch (QuotaExceeded ex) {
+      Utils.replyInsufficientStorage(response, ex.getMessage(), context);
     }catch (TreeException ex) {
       Utils.replyBadRequest(response, ex.getMessage(), context);
     }
@@ -23,6 +23,7 @@ import com.github.zk1931.pulsefs.tree.DataTree.InvalidPath;
 import com.github.zk1931.pulsefs.tree.DataTree.NodeAlreadyExist;
 import com.github.zk1931.pulsefs.tree.DataTree.NotDirectory;
 import com.github.zk1931.pulsefs.tree.DataTree.PathNotExist;
+import com.github.zk1931.pulsefs.tree.DataTree.QuotaExceeded;
 import com.github.zk1931.pulsefs.tree.DataTree.TreeException;
 import com.github.zk1931.pulsefs.tree.DirNode;
 import com.github.zk1931.pulsefs.tree.Node;
@@ -42,25 +43,98 @@ public class CreateSeqFileCommand extends Command {
 
   final String dirPath;
   final boolean recursive;
-  final byte[] data;
+  byte[] data;
+  // Whether the data is gzip compressed.
+  boolean compressed;
+  // The session of the file if it's ephemeral, otherwise -1.
+  final long sessionID;
+  // The path of the sequential file, it's resolved by leader.
+  final String path;
 
   public CreateSeqFileCommand(String dirPath, byte[] data, boolean recursive) {
+    this(dirPath, data, recursive, -1);
+  }
+
+  public CreateSeqFileCommand(String dirPath,
+                              byte[] data,
+                              boolean recursive,
+                              long sessionID) {
+    this(dirPath, data, false, recursive, sessionID, null);
+  }
+
+  CreateSeqFileCommand(String dirPath,
+                       byte[] data,
+                       boolean compressed,
+                       boolean recursive,
+                       long sessionID,
+                       String path) {
     this.dirPath = dirPath;
     this.recursive = recursive;
-    this.data = data.clone();
+    // The data is owned by the command, it's shared with the created file.
+    this.data = data;
+    this.compressed = compressed;
+    this.sessionID = sessionID;
+    this.path = path;
+  }
+
+  /**
+   * Compresses the data if it's not smaller than the threshold, so it's
+   * logged, replicated and stored compressed.
+   */
+  void compress(int threshold) {
+    byte[] compressedData = Compression.compress(this.data, threshold);
+    if (compressedData != null) {
+      this.data = compressedData;
+      this.compressed = true;
+    }
   }
 
   Node execute(PulseFS pulsefs)
       throws PathNotExist, InvalidPath, DirectoryNode, NotDirectory,
-             NodeAlreadyExist {
-    DataTree tree = pulsefs.getTree();
-    Node node = tree.getNode(this.dirPath);
-    if (!(node instanceof DirNode)) {
-      throw new NotDirectory(node.fullPath + " is not directory.");
+             NodeAlreadyExist, QuotaExceeded {
+    return apply(pulsefs.getTree());
+  }
+
+  Node apply(DataTree tree)
+      throws PathNotExist, InvalidPath, DirectoryNode, NotDirectory,
+             NodeAlreadyExist, QuotaExceeded {
+    if (this.path != null) {
+      return create(tree, this.path);
+    }
+    long seq = 0;
+    // The missing directory is created together with the file if it's
+    // recursive, the sequence starts from 0 then.
+    if (!recursive || tree.exist(this.dirPath)) {
+      Node node = tree.getNode(this.dirPath);
+      if (!(node instanceof DirNode)) {
+        throw new NotDirectory(node.fullPath + " is not directory.");
+      }
+      seq = node.getVersion();
+    }
+    String fileName = String.format("%016d", seq);
+    return create(tree, PathUtils.concat(this.dirPath, fileName));
+  }
+
+  Node create(DataTree tree, String seqPath)
+      throws PathNotExist, InvalidPath, NotDirectory, NodeAlreadyExist,
+             QuotaExceeded {
+    if (this.sessionID >= 0) {
+      return tree.createSessionFile(seqPath, this.data, this.compressed,
+                                    this.sessionID, recursive, false);
+    }
+    return tree.createFile(seqPath, this.data, this.compressed, recursive,
+                           false);
+  }
+
+  @Override
+  Command resolve(DataTree tree) {
+    try {
+      Node node = apply(tree);
+      return new CreateSeqFileCommand(dirPath, data, compressed, recursive,
+                                      sessionID, node.fullPath);
+    } catch (TreeException ex) {
+      return new RejectedCommand(ex);
     }
-    String fileName = String.format("%016d", node.version);
-    String path = PathUtils.concat(this.dirPath, fileName);
-    return tree.createFile(path, this.data, recursive, false);
   }
 
   void executeAndReply(PulseFS pulsefs, Object ctx) {
@@ -75,6 +149,8 @@ public class CreateSeqFileCommand extends Command {
       Utils.replyCreated(response, context);
     } catch (PathNotExist ex) {
       Utils.replyNotFound(response, ex.getMessage(), context);
+    } catch (QuotaExceeded ex) {
+      Utils.replyInsufficientStorage(response, ex.getMessage(), context);
     } catch (TreeException ex) {
       Utils.replyBadRequest(response, ex.getMessage(), context);
     }
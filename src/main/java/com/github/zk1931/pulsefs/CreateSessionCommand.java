@@ -22,11 +22,13 @@ import com.github.zk1931.pulsefs.tree.DataTree.InvalidPath;
 import com.github.zk1931.pulsefs.tree.DataTree.NodeAlreadyExist;
 import com.github.zk1931.pulsefs.tree.DataTree.NotDirectory;
 import com.github.zk1931.pulsefs.tree.DataTree.PathNotExist;
+import com.github.zk1931.pulsefs.tree.DataTree.QuotaExceeded;
 import com.github.zk1931.pulsefs.tree.DataTree.TreeException;
 import com.github.zk1931.pulsefs.tree.DataTree;
 import com.github.zk1931.pulsefs.tree.DirNode;
 import com.github.zk1931.pulsefs.tree.Node;
 import com.github.zk1931.pulsefs.tree.PathUtils;
+import com.github.zk1931.pulsefs.tree.SessionFileNode;
 import java.nio.charset.Charset;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.AsyncContext;
@@ -38,36 +40,63 @@ public class CreateSessionCommand extends Command {
 
   private static final long serialVersionUID = 0L;
   final String manager;
+  // The ID of the new session, it's resolved by leader.
+  final long sessionID;
 
   public CreateSessionCommand(String manager) {
+    this(manager, -1);
+  }
+
+  CreateSessionCommand(String manager, long sessionID) {
     this.manager = manager;
+    this.sessionID = sessionID;
   }
 
   Node execute(PulseFS pulsefs)
       throws PathNotExist, InvalidPath, DirectoryNode, NotDirectory,
-             NodeAlreadyExist {
-    DataTree tree = pulsefs.getTree();
-    String dirPath = PulseFSConfig.PULSEFS_SESSIONS_PATH;
-    DirNode sessionNode = (DirNode)tree.getNode(dirPath);
-    // Use the version of /pulsefs/sessions directory as session ID.
-    long sessionID = sessionNode.version;
-    String fileName = String.format("%016d", sessionID);
-    String path = PathUtils.concat(dirPath, fileName);
-    // Itself it's also a session file.
-    Node node =
-      tree.createSessionFile(path,
-                             manager.getBytes(Charset.forName("UTF-8")),
-                             sessionID,
-                             false,
-                             false);
+             NodeAlreadyExist, QuotaExceeded {
+    Node node = apply(pulsefs.getTree());
+    long id = ((SessionFileNode)node).sessionID;
     if (manager.equals(pulsefs.getServerId())) {
-      pulsefs.manageSession(sessionID);
+      // The client has just talked to this server, counts it as a renewal.
+      pulsefs.renewSession(id);
     } else {
-      pulsefs.abandonSession(sessionID);
+      pulsefs.abandonSession(id);
     }
     return node;
   }
 
+  Node apply(DataTree tree)
+      throws PathNotExist, InvalidPath, DirectoryNode, NotDirectory,
+             NodeAlreadyExist, QuotaExceeded {
+    String dirPath = PulseFSConfig.PULSEFS_SESSIONS_PATH;
+    long id = this.sessionID;
+    if (id < 0) {
+      DirNode sessionNode = (DirNode)tree.getNode(dirPath);
+      // Use the version of /pulsefs/sessions directory as session ID.
+      id = sessionNode.getVersion();
+    }
+    String fileName = String.format("%016d", id);
+    String path = PathUtils.concat(dirPath, fileName);
+    // Itself it's also a session file.
+    return tree.createSessionFile(path,
+                                  manager.getBytes(Charset.forName("UTF-8")),
+                                  id,
+                                  false,
+                                  false);
+  }
+
+  @Override
+  Command resolve(DataTree tree) {
+    try {
+      Node node = apply(tree);
+      return new CreateSessionCommand(manager,
+                                      ((SessionFileNode)node).sessionID);
+    } catch (TreeException ex) {
+      return new RejectedCommand(ex);
+    }
+  }
+
   void executeAndReply(PulseFS pulsefs, Object ctx) {
     AsyncContext context = (AsyncContext)ctx;
     HttpServletResponse response = (HttpServletResponse)(context.getResponse());
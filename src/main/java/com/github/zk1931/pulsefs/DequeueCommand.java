@@ -0,0 +1,143 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs;
+
+import com.github.zk1931.pulsefs.tree.DataTree;
+import com.github.zk1931.pulsefs.tree.DataTree.DeleteRootDir;
+import com.github.zk1931.pulsefs.tree.DataTree.DirectoryNotEmpty;
+import com.github.zk1931.pulsefs.tree.DataTree.InvalidPath;
+import com.github.zk1931.pulsefs.tree.DataTree.NotDirectory;
+import com.github.zk1931.pulsefs.tree.DataTree.PathNotExist;
+import com.github.zk1931.pulsefs.tree.DataTree.TreeException;
+import com.github.zk1931.pulsefs.tree.DataTree.VersionNotMatch;
+import com.github.zk1931.pulsefs.tree.DirNode;
+import com.github.zk1931.pulsefs.tree.Node;
+import java.io.IOException;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.AsyncContext;
+
+/**
+ * Command for removing the head of a queue and replying it to client. The
+ * head is the file with the lowest sequence number, which is the first file
+ * in the sorted children of the directory.
+ */
+public class DequeueCommand extends Command {
+
+  private static final long serialVersionUID = 0L;
+
+  final String dirPath;
+  // Whether to wait for an item if the queue is empty, and how long to wait
+  // in milliseconds (0 means forever).
+  final boolean wait;
+  final long timeoutMs;
+
+  public DequeueCommand(String dirPath, boolean wait, long timeoutMs) {
+    this.dirPath = dirPath;
+    this.wait = wait;
+    this.timeoutMs = timeoutMs;
+  }
+
+  Node execute(PulseFS pulsefs)
+      throws PathNotExist, InvalidPath, NotDirectory, DirectoryNotEmpty,
+             DeleteRootDir, VersionNotMatch {
+    return apply(pulsefs.getTree());
+  }
+
+  /**
+   * Removes the head of the queue.
+   *
+   * @return the removed file before it gets deleted.
+   * @throws QueueEmpty if the queue has no item.
+   */
+  Node apply(DataTree tree)
+      throws PathNotExist, InvalidPath, NotDirectory, DirectoryNotEmpty,
+             DeleteRootDir, VersionNotMatch {
+    Node node = tree.getNode(this.dirPath);
+    if (!(node instanceof DirNode)) {
+      throw new NotDirectory(node.fullPath + " is not directory.");
+    }
+    Node head = getHead((DirNode)node);
+    if (head == null) {
+      throw new QueueEmpty(this.dirPath + " is empty");
+    }
+    tree.deleteNode(head.fullPath, head.getVersion(), false);
+    return head;
+  }
+
+  /**
+   * Gets the first file of the directory, or null if there's no file.
+   */
+  static Node getHead(DirNode dir) {
+    for (Node child : dir.children.values()) {
+      if (!child.isDirectory()) {
+        return child;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  Command resolve(DataTree tree) {
+    try {
+      apply(tree);
+      return this;
+    } catch (QueueEmpty ex) {
+      // The client waits for the next item.
+      return wait ? this : new RejectedCommand(ex);
+    } catch (TreeException ex) {
+      return new RejectedCommand(ex);
+    }
+  }
+
+  void executeAndReply(PulseFS pulsefs, Object ctx) {
+    AsyncContext context = (AsyncContext)ctx;
+    HttpServletResponse response = (HttpServletResponse)(context.getResponse());
+    DequeueWaiters waiters = pulsefs.getDequeueWaiters();
+    boolean waiting = false;
+    try {
+      Node node = execute(pulsefs);
+      response.addHeader("Location", node.fullPath);
+      Utils.replyNodeInfo(response, node, false, context);
+    } catch (QueueEmpty ex) {
+      if (wait) {
+        waiters.await(dirPath, context, timeoutMs);
+        waiting = true;
+      } else {
+        Utils.replyNotFound(response, ex.getMessage(), context);
+      }
+    } catch (PathNotExist ex) {
+      Utils.replyNotFound(response, ex.getMessage(), context);
+    } catch (TreeException | IOException ex) {
+      Utils.replyBadRequest(response, ex.getMessage(), context);
+    } finally {
+      if (wait && !waiting) {
+        // Serves the next waiter of the queue, if any.
+        waiters.finish(dirPath, context);
+      }
+    }
+  }
+
+  /**
+   * Exception for a queue which has no item.
+   */
+  public static class QueueEmpty extends PathNotExist {
+    public QueueEmpty(String desc) {
+      super(desc);
+    }
+  }
+}
@@ -0,0 +1,298 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs;
+
+import com.github.zk1931.jzab.ZabException;
+import com.github.zk1931.pulsefs.tree.DataTree;
+import com.github.zk1931.pulsefs.tree.DirNode;
+import com.github.zk1931.pulsefs.tree.Node;
+import com.github.zk1931.pulsefs.tree.Watch;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The clients of this server which wait for the items of empty queues. The
+ * waiters of a queue are served in FIFO order and only the dequeue of the
+ * first waiter is proposed at a time, so an enqueued item wakes up a single
+ * client instead of all of them.
+ */
+class DequeueWaiters {
+
+  private static final Logger LOG =
+    LoggerFactory.getLogger(DequeueWaiters.class);
+
+  private static final int WAITING = 0;
+  private static final int IN_FLIGHT = 1;
+  private static final int DONE = 2;
+
+  /**
+   * A client waiting for an item. It's replied either by the delivery of its
+   * dequeue or by the timeout, whichever claims it first.
+   */
+  static class Waiter {
+    final AsyncContext ctx;
+    final AtomicInteger state = new AtomicInteger(WAITING);
+    final boolean hasTimeout;
+    // The System.nanoTime() after which the waiter times out.
+    final long deadlineNs;
+
+    Waiter(AsyncContext ctx, long timeoutMs) {
+      this.ctx = ctx;
+      this.hasTimeout = timeoutMs > 0;
+      this.deadlineNs =
+        System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    }
+
+    /**
+     * Whether the waiter has timed out. The timeout task gives up on the
+     * waiter whose dequeue is in flight, so the waiter which comes back to
+     * the queue checks its deadline itself.
+     */
+    boolean isExpired() {
+      return hasTimeout && System.nanoTime() - deadlineNs >= 0;
+    }
+  }
+
+  private final PulseFS fs;
+  private final ScheduledExecutorService scheduler;
+  // The waiters of each queue.
+  private final Map<String, Deque<Waiter>> waiters = new HashMap<>();
+  // The waiter whose dequeue has been proposed of each queue.
+  private final Map<String, Waiter> inFlight = new HashMap<>();
+  // The queues which have a watch installed.
+  private final Set<String> watched = new HashSet<>();
+
+  DequeueWaiters(PulseFS fs, ScheduledExecutorService scheduler) {
+    this.fs = fs;
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * Adds a client who finds the queue empty, it's called when its dequeue
+   * is delivered. A waiter whose proposed dequeue found the queue empty
+   * again stays at the head of the queue, unless it has timed out.
+   */
+  synchronized void await(String dirPath, AsyncContext ctx, long timeoutMs) {
+    Deque<Waiter> queue = waiters.get(dirPath);
+    if (queue == null) {
+      queue = new ArrayDeque<>();
+      waiters.put(dirPath, queue);
+    }
+    Waiter waiter = takeInFlight(dirPath, ctx);
+    if (waiter != null && waiter.isExpired()) {
+      // The timeout has fired while its dequeue was in flight.
+      waiter.state.set(DONE);
+      HttpServletResponse response = (HttpServletResponse)ctx.getResponse();
+      Utils.replyNotFound(response, dirPath + " is empty", ctx);
+    } else if (waiter != null) {
+      waiter.state.set(WAITING);
+      queue.addFirst(waiter);
+    } else {
+      waiter = new Waiter(ctx, timeoutMs);
+      queue.addLast(waiter);
+      if (waiter.hasTimeout) {
+        scheduleTimeout(dirPath, waiter, timeoutMs);
+      }
+    }
+    if (queue.isEmpty()) {
+      waiters.remove(dirPath);
+    } else {
+      watch(dirPath);
+    }
+  }
+
+  /**
+   * Called when the dequeue of a waiting client is delivered with any result
+   * other than an empty queue, the next waiter gets served.
+   */
+  synchronized void finish(String dirPath, AsyncContext ctx) {
+    Waiter waiter = takeInFlight(dirPath, ctx);
+    if (waiter != null) {
+      waiter.state.set(DONE);
+    }
+    Deque<Waiter> queue = waiters.get(dirPath);
+    if (queue != null && !queue.isEmpty()) {
+      watch(dirPath);
+    }
+  }
+
+  private Waiter takeInFlight(String dirPath, AsyncContext ctx) {
+    Waiter waiter = inFlight.get(dirPath);
+    if (waiter != null && waiter.ctx == ctx) {
+      inFlight.remove(dirPath);
+      return waiter;
+    }
+    return null;
+  }
+
+  /**
+   * Watches the queue until it has an item or it gets deleted.
+   */
+  private void watch(final String dirPath) {
+    if (inFlight.containsKey(dirPath) || !watched.add(dirPath)) {
+      return;
+    }
+    DataTree tree = fs.getTree();
+    Watch watch = new Watch() {
+      @Override
+      public void trigger(Node node) {
+        onChange(dirPath, node.getVersion() == -1);
+      }
+
+      @Override
+      public String getPath() {
+        return dirPath;
+      }
+
+      @Override
+      public boolean isTriggerable(Node node) {
+        return node.getVersion() == -1 ||
+               (node instanceof DirNode &&
+                DequeueCommand.getHead((DirNode)node) != null);
+      }
+    };
+    // The waiters are only added and served by the thread which delivers the
+    // changes, so the queue can't change between the check and the watch.
+    try {
+      Node node = tree.getNode(dirPath);
+      if (watch.isTriggerable(node)) {
+        watched.remove(dirPath);
+        scheduleNext(dirPath);
+        return;
+      }
+    } catch (DataTree.TreeException ex) {
+      watched.remove(dirPath);
+      failAll(dirPath, ex.getMessage());
+      return;
+    }
+    tree.addWatch(watch);
+  }
+
+  private void onChange(final String dirPath, boolean deleted) {
+    synchronized (this) {
+      watched.remove(dirPath);
+      if (deleted) {
+        failAll(dirPath, dirPath + " is deleted");
+        return;
+      }
+    }
+    scheduleNext(dirPath);
+  }
+
+  private void scheduleNext(final String dirPath) {
+    // Doesn't propose in the thread which delivers the changes.
+    this.scheduler.execute(new Runnable() {
+      @Override
+      public void run() {
+        proposeNext(dirPath);
+      }
+    });
+  }
+
+  /**
+   * Proposes the dequeue of the first waiter of the queue.
+   */
+  void proposeNext(String dirPath) {
+    Waiter waiter = null;
+    synchronized (this) {
+      if (inFlight.containsKey(dirPath)) {
+        return;
+      }
+      Deque<Waiter> queue = waiters.get(dirPath);
+      while (queue != null && !queue.isEmpty()) {
+        Waiter head = queue.pollFirst();
+        // Skips the waiters which have timed out.
+        if (head.state.compareAndSet(WAITING, IN_FLIGHT)) {
+          waiter = head;
+          break;
+        }
+      }
+      if (queue != null && queue.isEmpty()) {
+        waiters.remove(dirPath);
+      }
+      if (waiter == null) {
+        return;
+      }
+      inFlight.put(dirPath, waiter);
+    }
+    try {
+      fs.proposeStateChange(new DequeueCommand(dirPath, true, 0),
+                            waiter.ctx);
+    } catch (IOException | ZabException ex) {
+      LOG.warn("Failed to propose dequeue of {}", dirPath, ex);
+      synchronized (this) {
+        takeInFlight(dirPath, waiter.ctx);
+        waiter.state.set(DONE);
+      }
+      HttpServletResponse response =
+        (HttpServletResponse)waiter.ctx.getResponse();
+      Utils.replyServiceUnavailable(response, waiter.ctx);
+      scheduleNext(dirPath);
+    }
+  }
+
+  private void scheduleTimeout(final String dirPath,
+                               final Waiter waiter,
+                               long timeoutMs) {
+    this.scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        if (!waiter.state.compareAndSet(WAITING, DONE)) {
+          // Already replied, or being dequeued and replied by await once
+          // the dequeue finds the queue empty again.
+          return;
+        }
+        synchronized (DequeueWaiters.this) {
+          Deque<Waiter> queue = waiters.get(dirPath);
+          if (queue != null) {
+            queue.remove(waiter);
+          }
+        }
+        HttpServletResponse response =
+          (HttpServletResponse)waiter.ctx.getResponse();
+        Utils.replyNotFound(response, dirPath + " is empty", waiter.ctx);
+      }
+    }, timeoutMs, TimeUnit.MILLISECONDS);
+  }
+
+  private void failAll(String dirPath, String message) {
+    Deque<Waiter> queue = waiters.remove(dirPath);
+    if (queue == null) {
+      return;
+    }
+    for (Waiter waiter : queue) {
+      if (waiter.state.compareAndSet(WAITING, DONE)) {
+        HttpServletResponse response =
+          (HttpServletResponse)waiter.ctx.getResponse();
+        Utils.replyNotFound(response, message, waiter.ctx);
+      }
+    }
+  }
+}
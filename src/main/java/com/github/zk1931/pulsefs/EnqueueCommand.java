@@ -0,0 +1,118 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs;
+
+import com.github.zk1931.pulsefs.tree.DataTree;
+import com.github.zk1931.pulsefs.tree.DataTree.InvalidPath;
+import com.github.zk1931.pulsefs.tree.DataTree.NodeAlreadyExist;
+import com.github.zk1931.pulsefs.tree.DataTree.NotDirectory;
+import com.github.zk1931.pulsefs.tree.DataTree.PathNotExist;
+import com.github.zk1931.pulsefs.tree.DataTree.QuotaExceeded;
+import com.github.zk1931.pulsefs.tree.DataTree.TreeException;
+import com.github.zk1931.pulsefs.tree.DirNode;
+import com.github.zk1931.pulsefs.tree.Node;
+import com.github.zk1931.pulsefs.tree.PathUtils;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.AsyncContext;
+
+/**
+ * Command for enqueuing a batch of items to a queue. Each item is created as
+ * a sequential file of the directory of the queue, so the items are ordered
+ * by the names of the files. All the items are committed at once.
+ */
+public class EnqueueCommand extends Command {
+
+  private static final long serialVersionUID = 0L;
+
+  final String dirPath;
+  final byte[][] items;
+
+  public EnqueueCommand(String dirPath, byte[][] items) {
+    this.dirPath = dirPath;
+    // The items are owned by the command, they're shared with the files.
+    this.items = items;
+  }
+
+  Node execute(PulseFS pulsefs)
+      throws PathNotExist, InvalidPath, NotDirectory, NodeAlreadyExist,
+             QuotaExceeded {
+    List<Node> nodes = apply(pulsefs.getTree());
+    return nodes.isEmpty() ? null : nodes.get(nodes.size() - 1);
+  }
+
+  List<Node> apply(DataTree tree)
+      throws PathNotExist, InvalidPath, NotDirectory, NodeAlreadyExist,
+             QuotaExceeded {
+    Node node = tree.getNode(this.dirPath);
+    if (!(node instanceof DirNode)) {
+      throw new NotDirectory(node.fullPath + " is not directory.");
+    }
+    // Each creation bumps the version of the directory, which is the
+    // sequence number of the next item.
+    long seq = node.getVersion();
+    List<Node> nodes = new ArrayList<>(items.length);
+    try {
+      for (byte[] item : items) {
+        String path =
+          PathUtils.concat(this.dirPath, String.format("%016d", seq++));
+        nodes.add(tree.createFileInStagingArea(path, item, false, false));
+      }
+      tree.commitStagingChanges();
+      return nodes;
+    } catch (TreeException ex) {
+      tree.abortStagingChanges();
+      throw ex;
+    }
+  }
+
+  @Override
+  Command resolve(DataTree tree) {
+    try {
+      apply(tree);
+      return this;
+    } catch (TreeException ex) {
+      return new RejectedCommand(ex);
+    }
+  }
+
+  void executeAndReply(PulseFS pulsefs, Object ctx) {
+    AsyncContext context = (AsyncContext)ctx;
+    HttpServletResponse response = (HttpServletResponse)(context.getResponse());
+    try {
+      List<Node> nodes = apply(pulsefs.getTree());
+      List<String> paths = new ArrayList<>(nodes.size());
+      for (Node node : nodes) {
+        paths.add(node.fullPath);
+      }
+      if (!paths.isEmpty()) {
+        response.addHeader("Location", paths.get(0));
+      }
+      response.getWriter().write(Utils.toJson(paths));
+      Utils.replyCreated(response, context);
+    } catch (PathNotExist ex) {
+      Utils.replyNotFound(response, ex.getMessage(), context);
+    } catch (QuotaExceeded ex) {
+      Utils.replyInsufficientStorage(response, ex.getMessage(), context);
+    } catch (TreeException | IOException ex) {
+      Utils.replyBadRequest(response, ex.getMessage(), context);
+    }
+  }
+}
@@ -0,0 +1,88 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs;
+
+import com.github.zk1931.pulsefs.tree.DataTree;
+import com.github.zk1931.pulsefs.tree.DataTree.PathNotExist;
+import com.github.zk1931.pulsefs.tree.DataTree.QuotaExceeded;
+import com.github.zk1931.pulsefs.tree.DataTree.TreeException;
+import com.github.zk1931.pulsefs.tree.Node;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.AsyncContext;
+
+/**
+ * Command for entering a double barrier. The participant creates an
+ * ephemeral sequential file in the directory of the barrier, and it enters
+ * once the directory has at least "count" files.
+ */
+public class EnterBarrierCommand extends CreateSeqFileCommand {
+
+  private static final long serialVersionUID = 0L;
+
+  final int count;
+  // How long to wait in milliseconds, 0 means forever.
+  final long timeoutMs;
+
+  public EnterBarrierCommand(String dirPath,
+                             long sessionID,
+                             int count,
+                             long timeoutMs) {
+    this(dirPath, new byte[0], sessionID, count, timeoutMs, null);
+  }
+
+  EnterBarrierCommand(String dirPath,
+                      byte[] data,
+                      long sessionID,
+                      int count,
+                      long timeoutMs,
+                      String path) {
+    super(dirPath, data, false, true, sessionID, path);
+    this.count = count;
+    this.timeoutMs = timeoutMs;
+  }
+
+  @Override
+  Command resolve(DataTree tree) {
+    try {
+      Node node = apply(tree);
+      return new EnterBarrierCommand(dirPath, data, sessionID, count,
+                                     timeoutMs, node.fullPath);
+    } catch (TreeException ex) {
+      return new RejectedCommand(ex);
+    }
+  }
+
+  @Override
+  void executeAndReply(PulseFS pulsefs, Object ctx) {
+    AsyncContext context = (AsyncContext)ctx;
+    HttpServletResponse response = (HttpServletResponse)(context.getResponse());
+    try {
+      Node node = execute(pulsefs);
+      SyncWaiters.Waiter waiter =
+        new SyncWaiters.Waiter(SyncWaiters.ENTER, node.fullPath, dirPath,
+                               count, context);
+      pulsefs.getSyncWaiters().await(waiter, timeoutMs);
+    } catch (PathNotExist ex) {
+      Utils.replyNotFound(response, ex.getMessage(), context);
+    } catch (QuotaExceeded ex) {
+      Utils.replyInsufficientStorage(response, ex.getMessage(), context);
+    } catch (TreeException ex) {
+      Utils.replyBadRequest(response, ex.getMessage(), context);
+    }
+  }
+}
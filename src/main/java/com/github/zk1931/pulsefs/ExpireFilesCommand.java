@@ -0,0 +1,79 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs;
+
+import com.github.zk1931.pulsefs.tree.DataTree;
+import com.github.zk1931.pulsefs.tree.DataTree.TreeException;
+import com.github.zk1931.pulsefs.tree.FileNode;
+import com.github.zk1931.pulsefs.tree.Node;
+import com.github.zk1931.pulsefs.tree.TreeOp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command for deleting a batch of files whose time-to-live has passed in a
+ * single proposal. A file is only deleted if it still has the same deadline,
+ * the files which have been rewritten or deleted since the expiration was
+ * scheduled are left untouched. Updating a counter keeps the deadline.
+ */
+public class ExpireFilesCommand extends Command {
+
+  private static final long serialVersionUID = 0L;
+
+  final String[] paths;
+  final long[] deadlines;
+
+  public ExpireFilesCommand(List<ExpiryWheel.Entry> entries) {
+    int size = entries.size();
+    this.paths = new String[size];
+    this.deadlines = new long[size];
+    for (int i = 0; i < size; ++i) {
+      ExpiryWheel.Entry entry = entries.get(i);
+      this.paths[i] = entry.path;
+      this.deadlines[i] = entry.expiresAt;
+    }
+  }
+
+  Node execute(PulseFS pulsefs) {
+    DataTree tree = pulsefs.getTree();
+    List<TreeOp> ops = new ArrayList<TreeOp>(paths.length);
+    for (int i = 0; i < paths.length; ++i) {
+      Node node;
+      try {
+        node = tree.getNode(paths[i]);
+      } catch (TreeException ex) {
+        continue;
+      }
+      if (node instanceof FileNode &&
+          ((FileNode)node).getExpiresAt() == deadlines[i]) {
+        ops.add(TreeOp.delete(paths[i], node.getVersion(), false));
+      }
+    }
+    if (ops.isEmpty()) {
+      return null;
+    }
+    // The ancestors of the files are only copied once.
+    tree.startEditSession();
+    tree.applyInStagingArea(ops);
+    tree.commitStagingChanges();
+    return null;
+  }
+
+  void executeAndReply(PulseFS pulsefs, Object ctx) {
+  }
+}
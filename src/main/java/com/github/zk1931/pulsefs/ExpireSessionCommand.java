@@ -35,7 +35,9 @@ public class ExpireSessionCommand extends Command {
 
   Node execute(PulseFS pulsefs) {
     DataTree tree = pulsefs.getTree();
-    tree.deleteSession(sessionID);
+    if (tree.getSessionRegistry().contains(sessionID)) {
+      tree.deleteSession(sessionID);
+    }
     return null;
   }
 
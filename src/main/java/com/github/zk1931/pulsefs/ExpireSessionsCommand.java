@@ -0,0 +1,58 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs;
+
+import com.github.zk1931.pulsefs.tree.DataTree;
+import com.github.zk1931.pulsefs.tree.Node;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Command for expiring a batch of sessions in a single proposal. All the
+ * session files of the expired sessions are deleted in the staging area as a
+ * single batch and committed at once.
+ */
+public class ExpireSessionsCommand extends Command {
+
+  private static final long serialVersionUID = 0L;
+
+  final long[] sessionIDs;
+
+  public ExpireSessionsCommand(Collection<Long> sessionIDs) {
+    // Removes the duplicates, a session can only be expired once.
+    Set<Long> ids = new LinkedHashSet<>(sessionIDs);
+    this.sessionIDs = new long[ids.size()];
+    int idx = 0;
+    for (long id : ids) {
+      this.sessionIDs[idx++] = id;
+    }
+  }
+
+  Node execute(PulseFS pulsefs) {
+    DataTree tree = pulsefs.getTree();
+    // The sessions which are already gone have no files to delete. The files
+    // of different top level directories are deleted in parallel.
+    tree.deleteSessionsInStagingArea(sessionIDs);
+    tree.commitStagingChanges();
+    return null;
+  }
+
+  void executeAndReply(PulseFS pulsefs, Object ctx) {
+  }
+}
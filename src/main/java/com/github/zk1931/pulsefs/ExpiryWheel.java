@@ -0,0 +1,138 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs;
+
+import com.github.zk1931.pulsefs.tree.DirNode;
+import com.github.zk1931.pulsefs.tree.FileNode;
+import com.github.zk1931.pulsefs.tree.Node;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A hashed timing wheel of the deadlines of the files with time-to-live,
+ * it's only kept by leader. Each slot of the wheel covers one tick, the
+ * deadlines more than one revolution away stay in their slots until the
+ * wheel reaches their tick. Scheduling a file takes O(1) and each tick
+ * only visits one slot regardless of how many files are pending.
+ */
+class ExpiryWheel {
+
+  /**
+   * A file scheduled to expire.
+   */
+  static class Entry {
+    final String path;
+    final long expiresAt;
+    final long tick;
+
+    Entry(String path, long expiresAt, long tick) {
+      this.path = path;
+      this.expiresAt = expiresAt;
+      this.tick = tick;
+    }
+  }
+
+  private final long tickMs;
+  private final List<List<Entry>> slots;
+  // The latest tick whose entries have been expired.
+  private long currentTick;
+  private int size = 0;
+
+  ExpiryWheel(int slotCount, long tickMs, long nowMs) {
+    this.tickMs = tickMs;
+    this.slots = new ArrayList<>(slotCount);
+    for (int i = 0; i < slotCount; ++i) {
+      this.slots.add(new ArrayList<Entry>());
+    }
+    this.currentTick = nowMs / tickMs;
+  }
+
+  /**
+   * Schedules the expiration of a file, a file whose deadline has passed
+   * expires on the next tick.
+   */
+  synchronized void add(FileNode node) {
+    // Rounds up so the file never expires before its deadline.
+    long tick = Math.max((node.getExpiresAt() + tickMs - 1) / tickMs,
+                         currentTick + 1);
+    add(new Entry(node.fullPath, node.getExpiresAt(), tick));
+  }
+
+  /**
+   * Schedules the expiration of the files again after the given delay, e.g.
+   * after their expiration failed to be proposed.
+   */
+  synchronized void retry(List<Entry> entries, long delayMs) {
+    long tick = currentTick + Math.max(1, delayMs / tickMs);
+    for (Entry entry : entries) {
+      add(new Entry(entry.path, entry.expiresAt, tick));
+    }
+  }
+
+  private void add(Entry entry) {
+    this.slots.get((int)(entry.tick % slots.size())).add(entry);
+    ++size;
+  }
+
+  /**
+   * Schedules the expiration of all the files with time-to-live in the
+   * subtree.
+   */
+  void addAll(Node node) {
+    if (node instanceof DirNode) {
+      for (Node child : ((DirNode)node).children.values()) {
+        addAll(child);
+      }
+    } else if (node instanceof FileNode &&
+               ((FileNode)node).getExpiresAt() > 0) {
+      add((FileNode)node);
+    }
+  }
+
+  /**
+   * Advances the wheel to the given time.
+   *
+   * @return the files whose deadlines have passed.
+   */
+  synchronized List<Entry> advance(long nowMs) {
+    List<Entry> expired = new ArrayList<>();
+    long targetTick = nowMs / tickMs;
+    // Each slot is visited at most once even if the wheel falls behind by
+    // more than one revolution.
+    long lastTick = Math.min(targetTick, currentTick + slots.size());
+    for (long tick = currentTick + 1; tick <= lastTick; ++tick) {
+      List<Entry> slot = this.slots.get((int)(tick % slots.size()));
+      Iterator<Entry> iter = slot.iterator();
+      while (iter.hasNext()) {
+        Entry entry = iter.next();
+        if (entry.tick <= targetTick) {
+          expired.add(entry);
+          iter.remove();
+        }
+      }
+    }
+    this.currentTick = Math.max(currentTick, targetTick);
+    this.size -= expired.size();
+    return expired;
+  }
+
+  synchronized int size() {
+    return this.size;
+  }
+}
@@ -17,40 +17,99 @@
 
 package com.github.zk1931.pulsefs;
 
+import com.github.zk1931.pulsefs.tree.ChildDelta;
+import com.github.zk1931.pulsefs.tree.DeltaWatch;
 import com.github.zk1931.pulsefs.tree.Node;
-import com.github.zk1931.pulsefs.tree.Watch;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.servlet.AsyncContext;
 import javax.servlet.http.HttpServletResponse;
 
 /**
  * HTTP Watch.
  */
-public class HttpWatch implements Watch {
+public class HttpWatch implements DeltaWatch {
 
   final long version;
   final boolean recursive;
   final AsyncContext ctx;
   final String path;
-  boolean isTriggered = false;
+  final AtomicBoolean isTriggered = new AtomicBoolean(false);
+  // Coalesces the notifications of the path if it's not null.
+  final WatchCoalescer coalescer;
+  final long coalesceMs;
+  // Replies the changes of the children instead of the whole listing.
+  final boolean delta;
 
   HttpWatch(long version, boolean recursive, String path, AsyncContext ctx) {
+    this(version, recursive, false, path, ctx, null, 0);
+  }
+
+  HttpWatch(long version,
+            boolean recursive,
+            boolean delta,
+            String path,
+            AsyncContext ctx,
+            WatchCoalescer coalescer,
+            long coalesceMs) {
     this.version = version;
     this.recursive = recursive;
+    this.delta = delta;
     this.path = path;
     this.ctx = ctx;
+    this.coalescer = coalescer;
+    this.coalesceMs = coalesceMs;
   }
 
   @Override
   public void trigger(Node node) {
+    trigger(node, null);
+  }
+
+  /**
+   * The coalesced watches reply the latest state instead of the changes.
+   */
+  @Override
+  public boolean wantsDelta() {
+    return this.delta && this.coalescer == null;
+  }
+
+  /**
+   * Replies the changes of the children if it's a delta watch and the delta
+   * starts from the version the client has seen, otherwise replies the node
+   * as usual.
+   */
+  @Override
+  public void trigger(Node node, ChildDelta childDelta) {
     if (!isTriggerable(node)) {
-      throw new RuntimeException("Not triggerable by " + node.version);
+      throw new RuntimeException("Not triggerable by " + node.getVersion());
     }
-    if (this.isTriggered) {
+    if (!this.isTriggered.compareAndSet(false, true)) {
+      // Already triggered by others.
       return;
     }
+    if (this.coalescer != null) {
+      // The latest state is replied, the delta is not applicable.
+      this.coalescer.notify(this, node);
+    } else if (this.delta && childDelta != null &&
+               childDelta.oldNode.getVersion() == this.version - 1) {
+      HttpServletResponse response = (HttpServletResponse)(ctx.getResponse());
+      try {
+        Utils.replyChildDelta(response, childDelta, ctx);
+      } catch (IOException ex) {
+        Utils.replyBadRequest(response, ex.getMessage(), ctx);
+      }
+    } else {
+      reply(node);
+    }
+  }
+
+  /**
+   * Replies the state of the node, null or version -1 means it's deleted.
+   */
+  void reply(Node node) {
     HttpServletResponse response = (HttpServletResponse)(ctx.getResponse());
-    if (node.version == -1) {
+    if (node == null || node.getVersion() == -1) {
       // Node just gets deleted, reply NOT_FOUND.
       Utils.replyNotFound(response, "not found", ctx);
     } else {
@@ -60,7 +119,14 @@ public class HttpWatch implements Watch {
         Utils.replyBadRequest(response, ex.getMessage(), ctx);
       }
     }
-    this.isTriggered = true;
+  }
+
+  /**
+   * Cancels the watch so it will never reply, returns false if it has been
+   * triggered.
+   */
+  boolean cancel() {
+    return this.isTriggered.compareAndSet(false, true);
   }
 
   @Override
@@ -70,13 +136,13 @@ public class HttpWatch implements Watch {
 
   @Override
   public boolean isTriggerable(Node node) {
-    if (node.version == -1) {
+    if (node.getVersion() == -1) {
       // Node gets deleted, we must trigger the watch.
       return true;
     }
     if (this.version == -1) {
       return false;
     }
-    return node.version >= this.version;
+    return node.getVersion() >= this.version;
   }
 }
@@ -0,0 +1,87 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs;
+
+import com.github.zk1931.pulsefs.tree.DataTree;
+import com.github.zk1931.pulsefs.tree.DataTree.DeleteRootDir;
+import com.github.zk1931.pulsefs.tree.DataTree.DirectoryNotEmpty;
+import com.github.zk1931.pulsefs.tree.DataTree.InvalidPath;
+import com.github.zk1931.pulsefs.tree.DataTree.NotDirectory;
+import com.github.zk1931.pulsefs.tree.DataTree.PathNotExist;
+import com.github.zk1931.pulsefs.tree.DataTree.TreeException;
+import com.github.zk1931.pulsefs.tree.DataTree.VersionNotMatch;
+import com.github.zk1931.pulsefs.tree.Node;
+import com.github.zk1931.pulsefs.tree.PathUtils;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.AsyncContext;
+
+/**
+ * Command for leaving a double barrier. The file of the participant is
+ * deleted, and it leaves once the directory of the barrier has no file.
+ */
+public class LeaveBarrierCommand extends Command {
+
+  private static final long serialVersionUID = 0L;
+
+  final String path;
+  // How long to wait in milliseconds, 0 means forever.
+  final long timeoutMs;
+
+  public LeaveBarrierCommand(String path, long timeoutMs) {
+    this.path = path;
+    this.timeoutMs = timeoutMs;
+  }
+
+  Node execute(PulseFS pulsefs)
+      throws NotDirectory, PathNotExist, InvalidPath, DeleteRootDir,
+             DirectoryNotEmpty, VersionNotMatch {
+    return apply(pulsefs.getTree());
+  }
+
+  Node apply(DataTree tree)
+      throws NotDirectory, PathNotExist, InvalidPath, DeleteRootDir,
+             DirectoryNotEmpty, VersionNotMatch {
+    return tree.deleteNode(this.path, -1, false);
+  }
+
+  @Override
+  Command resolve(DataTree tree) {
+    try {
+      apply(tree);
+      return this;
+    } catch (TreeException ex) {
+      return new RejectedCommand(ex);
+    }
+  }
+
+  void executeAndReply(PulseFS pulsefs, Object ctx) {
+    AsyncContext context = (AsyncContext)ctx;
+    HttpServletResponse response = (HttpServletResponse)(context.getResponse());
+    try {
+      execute(pulsefs);
+      SyncWaiters.Waiter waiter =
+        new SyncWaiters.Waiter(SyncWaiters.LEAVE, null,
+                               PathUtils.parent(this.path), 0, context);
+      pulsefs.getSyncWaiters().await(waiter, timeoutMs);
+    } catch (PathNotExist ex) {
+      Utils.replyNotFound(response, ex.getMessage(), context);
+    } catch (TreeException ex) {
+      Utils.replyBadRequest(response, ex.getMessage(), context);
+    }
+  }
+}
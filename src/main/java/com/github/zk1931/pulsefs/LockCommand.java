@@ -0,0 +1,133 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs;
+
+import com.github.zk1931.pulsefs.tree.DataTree;
+import com.github.zk1931.pulsefs.tree.DataTree.DirectoryNode;
+import com.github.zk1931.pulsefs.tree.DataTree.InvalidPath;
+import com.github.zk1931.pulsefs.tree.DataTree.NodeAlreadyExist;
+import com.github.zk1931.pulsefs.tree.DataTree.NotDirectory;
+import com.github.zk1931.pulsefs.tree.DataTree.PathNotExist;
+import com.github.zk1931.pulsefs.tree.DataTree.QuotaExceeded;
+import com.github.zk1931.pulsefs.tree.DataTree.TreeException;
+import com.github.zk1931.pulsefs.tree.DirNode;
+import com.github.zk1931.pulsefs.tree.Node;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.AsyncContext;
+
+/**
+ * Command for acquiring a lock, or a permit of a semaphore. The contender
+ * creates an ephemeral sequential file in the directory of the lock, and it
+ * holds the lock once its file becomes the first one, or one of the first
+ * "permits" files for a semaphore. Deleting the file, or the expiration of
+ * its session, releases the lock.
+ */
+public class LockCommand extends CreateSeqFileCommand {
+
+  private static final long serialVersionUID = 0L;
+
+  // The number of contenders which can hold the lock at the same time.
+  final int permits;
+  // Whether to wait for the lock if it's held by others, and how long to wait
+  // in milliseconds (0 means forever).
+  final boolean wait;
+  final long timeoutMs;
+
+  public LockCommand(String dirPath,
+                     long sessionID,
+                     int permits,
+                     boolean wait,
+                     long timeoutMs) {
+    this(dirPath, new byte[0], sessionID, permits, wait, timeoutMs, null);
+  }
+
+  LockCommand(String dirPath,
+              byte[] data,
+              long sessionID,
+              int permits,
+              boolean wait,
+              long timeoutMs,
+              String path) {
+    super(dirPath, data, false, true, sessionID, path);
+    this.permits = permits;
+    this.wait = wait;
+    this.timeoutMs = timeoutMs;
+  }
+
+  @Override
+  Node apply(DataTree tree)
+      throws PathNotExist, InvalidPath, DirectoryNode, NotDirectory,
+             NodeAlreadyExist, QuotaExceeded {
+    if (!wait && tree.exist(dirPath)) {
+      // Doesn't contend for the lock if it's held.
+      Node node = tree.getNode(dirPath);
+      // The sub directories don't hold permits.
+      if (node instanceof DirNode &&
+          ((DirNode)node).getFileCount() >= permits) {
+        throw new LockHeld(dirPath + " is locked");
+      }
+    }
+    return super.apply(tree);
+  }
+
+  @Override
+  Command resolve(DataTree tree) {
+    try {
+      Node node = apply(tree);
+      return new LockCommand(dirPath, data, sessionID, permits, wait,
+                             timeoutMs, node.fullPath);
+    } catch (TreeException ex) {
+      return new RejectedCommand(ex);
+    }
+  }
+
+  @Override
+  void executeAndReply(PulseFS pulsefs, Object ctx) {
+    AsyncContext context = (AsyncContext)ctx;
+    HttpServletResponse response = (HttpServletResponse)(context.getResponse());
+    try {
+      Node node = execute(pulsefs);
+      // Replies once the file holds the lock.
+      if (permits == 1) {
+        new LockWaiter(pulsefs, node.fullPath, context).start(timeoutMs);
+      } else {
+        SyncWaiters.Waiter waiter =
+          new SyncWaiters.Waiter(SyncWaiters.SEMAPHORE, node.fullPath,
+                                 dirPath, permits, context);
+        pulsefs.getSyncWaiters().await(waiter, timeoutMs);
+      }
+    } catch (PathNotExist ex) {
+      Utils.replyNotFound(response, ex.getMessage(), context);
+    } catch (LockHeld ex) {
+      Utils.replyConflict(response, ex.getMessage(), context);
+    } catch (QuotaExceeded ex) {
+      Utils.replyInsufficientStorage(response, ex.getMessage(), context);
+    } catch (TreeException ex) {
+      Utils.replyBadRequest(response, ex.getMessage(), context);
+    }
+  }
+
+  /**
+   * Exception for a lock which is held by others.
+   */
+  public static class LockHeld extends NodeAlreadyExist {
+    public LockHeld(String desc) {
+      super(desc);
+    }
+  }
+}
@@ -0,0 +1,166 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs;
+
+import com.github.zk1931.jzab.ZabException;
+import com.github.zk1931.pulsefs.tree.DataTree;
+import com.github.zk1931.pulsefs.tree.DirNode;
+import com.github.zk1931.pulsefs.tree.Node;
+import com.github.zk1931.pulsefs.tree.PathUtils;
+import com.github.zk1931.pulsefs.tree.Watch;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Waits for the file of a lock contender to become the first file of the
+ * lock. The contender only watches the file right before its own file, so
+ * releasing the lock wakes up the next contender only instead of all of
+ * them.
+ */
+class LockWaiter {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LockWaiter.class);
+
+  private final PulseFS fs;
+  private final String path;
+  private final String dirPath;
+  private final String name;
+  private final AsyncContext ctx;
+  private final AtomicBoolean isReplied = new AtomicBoolean(false);
+
+  LockWaiter(PulseFS fs, String path, AsyncContext ctx) {
+    this.fs = fs;
+    this.path = path;
+    this.dirPath = PathUtils.parent(path);
+    this.name = PathUtils.name(path);
+    this.ctx = ctx;
+  }
+
+  void start(long timeoutMs) {
+    if (timeoutMs > 0) {
+      fs.schedule(new Runnable() {
+        @Override
+        public void run() {
+          timeout();
+        }
+      }, timeoutMs, TimeUnit.MILLISECONDS);
+    }
+    check();
+  }
+
+  /**
+   * Replies if the file is the first one, otherwise watches the file right
+   * before it.
+   */
+  void check() {
+    if (this.isReplied.get()) {
+      return;
+    }
+    HttpServletResponse response = (HttpServletResponse)ctx.getResponse();
+    DataTree tree = fs.getTree();
+    DirNode dir;
+    try {
+      dir = (DirNode)tree.getNode(this.dirPath);
+    } catch (DataTree.TreeException ex) {
+      if (this.isReplied.compareAndSet(false, true)) {
+        Utils.replyNotFound(response, ex.getMessage(), ctx);
+      }
+      return;
+    }
+    Node self = dir.children.get(this.name);
+    if (self == null) {
+      // Deleted before getting the lock, e.g. its session expired.
+      if (this.isReplied.compareAndSet(false, true)) {
+        Utils.replyNotFound(response, path + " is deleted", ctx);
+      }
+      return;
+    }
+    Node predecessor = dir.lowerChild(this.name);
+    while (predecessor != null && predecessor.isDirectory()) {
+      predecessor = dir.lowerChild(PathUtils.name(predecessor.fullPath));
+    }
+    if (predecessor == null) {
+      if (this.isReplied.compareAndSet(false, true)) {
+        response.addHeader("Location", path);
+        Utils.setHeader(self, response);
+        Utils.replyCreated(response, ctx);
+      }
+      return;
+    }
+    PredecessorWatch watch = new PredecessorWatch(predecessor.fullPath);
+    // Adds the watch first and then verifies the predecessor, the same as
+    // the watch requests.
+    tree.addWatch(watch);
+    if (!tree.exist(predecessor.fullPath)) {
+      tree.removeWatch(watch);
+      watch.trigger(null);
+    }
+  }
+
+  /**
+   * Gives up the lock if it's still not acquired, the file of the contender
+   * gets deleted.
+   */
+  void timeout() {
+    if (!this.isReplied.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      fs.proposeStateChange(new DeleteCommand(path, false, -1), null);
+    } catch (IOException | ZabException ex) {
+      // The file will be deleted once its session expires.
+      LOG.warn("Failed to delete {}", path, ex);
+    }
+    HttpServletResponse response = (HttpServletResponse)ctx.getResponse();
+    Utils.replyConflict(response, "Timed out waiting for " + dirPath, ctx);
+  }
+
+  /**
+   * Watch of the file right before the file of the contender.
+   */
+  class PredecessorWatch implements Watch {
+    private final String predecessorPath;
+    private final AtomicBoolean isTriggered = new AtomicBoolean(false);
+
+    PredecessorWatch(String predecessorPath) {
+      this.predecessorPath = predecessorPath;
+    }
+
+    @Override
+    public void trigger(Node node) {
+      if (this.isTriggered.compareAndSet(false, true)) {
+        check();
+      }
+    }
+
+    @Override
+    public String getPath() {
+      return this.predecessorPath;
+    }
+
+    @Override
+    public boolean isTriggerable(Node node) {
+      return node.getVersion() == -1;
+    }
+  }
+}
@@ -84,11 +84,46 @@ public final class Main {
                                   .withDescription("session timeout(seconds)")
                                   .create("timeout");
 
+    Option offHeap = OptionBuilder.withArgName("bytes")
+                                  .hasArg(true)
+                                  .withDescription("store the file values " +
+                                                   "of at least bytes off heap")
+                                  .create("offheap");
+
+    Option offHeapMax = OptionBuilder.withArgName("bytes")
+                                     .hasArg(true)
+                                     .withDescription("the maximum bytes " +
+                                                      "stored off heap")
+                                     .create("offheapmax");
+
+    Option valueLog = OptionBuilder.withArgName("dir")
+                                   .hasArg(true)
+                                   .withDescription("append the large file " +
+                                                    "values to a log in dir")
+                                   .create("valuelog");
+
+    Option dedup = OptionBuilder.withArgName("dedup")
+                                .hasArg(false)
+                                .withDescription("share the identical " +
+                                                 "file values")
+                                .create("dedup");
+
+    Option compress = OptionBuilder.withArgName("bytes")
+                                   .hasArg(true)
+                                   .withDescription("compress the file " +
+                                                    "values of at least bytes")
+                                   .create("compress");
+
     options.addOption(port)
            .addOption(addr)
            .addOption(join)
            .addOption(dir)
            .addOption(timeout)
+           .addOption(offHeap)
+           .addOption(offHeapMax)
+           .addOption(valueLog)
+           .addOption(dedup)
+           .addOption(compress)
            .addOption(help);
 
     CommandLineParser parser = new BasicParser();
@@ -122,6 +157,24 @@ public final class Main {
       String sessionTimeout = cmd.getOptionValue("timeout");
       config.setSessionTimeout(Integer.parseInt(sessionTimeout));
     }
+    if (cmd.hasOption("offheap")) {
+      String threshold = cmd.getOptionValue("offheap");
+      config.setOffHeapThreshold(Integer.parseInt(threshold));
+    }
+    if (cmd.hasOption("offheapmax")) {
+      String maxBytes = cmd.getOptionValue("offheapmax");
+      config.setOffHeapMaxBytes(Long.parseLong(maxBytes));
+    }
+    if (cmd.hasOption("valuelog")) {
+      config.setValueLogDir(cmd.getOptionValue("valuelog"));
+    }
+    if (cmd.hasOption("dedup")) {
+      config.setDedup(true);
+    }
+    if (cmd.hasOption("compress")) {
+      String threshold = cmd.getOptionValue("compress");
+      config.setCompressThreshold(Integer.parseInt(threshold));
+    }
     if (cmd.hasOption("port")) {
       config.setPort(Integer.parseInt(cmd.getOptionValue("port")));
     }
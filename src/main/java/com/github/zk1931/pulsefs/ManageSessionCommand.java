@@ -47,7 +47,9 @@ public class ManageSessionCommand extends Command {
     Node node =
       tree.setData(path, newOwner.getBytes(Charset.forName("UTF-8")), -1);
     if (pulsefs.getServerId().equals(newOwner)) {
-      pulsefs.manageSession(sessionID);
+      // The ownership is taken by the pulse of the client, counts it as a
+      // renewal.
+      pulsefs.renewSession(sessionID);
     } else {
       pulsefs.abandonSession(sessionID);
     }
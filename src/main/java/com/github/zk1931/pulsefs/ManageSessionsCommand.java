@@ -0,0 +1,142 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs;
+
+import com.github.zk1931.pulsefs.tree.DataTree;
+import com.github.zk1931.pulsefs.tree.Node;
+import com.github.zk1931.pulsefs.tree.PathUtils;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.AsyncContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Command for taking the management(ownership) of a batch of sessions in a
+ * single proposal.
+ */
+public class ManageSessionsCommand extends Command {
+
+  private static final long serialVersionUID = 0L;
+  private static final Logger LOG =
+    LoggerFactory.getLogger(ManageSessionsCommand.class);
+
+  /**
+   * The name of the request attribute which holds the statuses of the
+   * sessions which have been resolved before the proposal.
+   */
+  static final String STATUS_ATTRIBUTE = "pulsefs.sessions.status";
+
+  final long[] sessionIDs;
+  final String newOwner;
+  // The remaining time of each session in milliseconds, or null if the
+  // sessions get the full session timeout.
+  final long[] remainingMs;
+
+  public ManageSessionsCommand(long[] sessionIDs, String newOwner) {
+    this(sessionIDs, newOwner, null);
+  }
+
+  public ManageSessionsCommand(long[] sessionIDs,
+                               String newOwner,
+                               long[] remainingMs) {
+    this.sessionIDs = sessionIDs.clone();
+    this.newOwner = newOwner;
+    this.remainingMs = remainingMs == null ? null : remainingMs.clone();
+  }
+
+  Node execute(PulseFS pulsefs) {
+    takeOver(pulsefs, false);
+    return null;
+  }
+
+  /**
+   * Takes the ownership of all the existing sessions in the batch.
+   *
+   * @param pulsed whether the ownership is taken by the pulses of clients.
+   * @return the status of each session, "ok" if the ownership is taken,
+   * "not-found" if the session doesn't exist.
+   */
+  Map<Long, String> takeOver(PulseFS pulsefs, boolean pulsed) {
+    Map<Long, String> status = setOwner(pulsefs.getTree());
+    for (int i = 0; i < sessionIDs.length; ++i) {
+      long sessionID = sessionIDs[i];
+      if (!"ok".equals(status.get(sessionID))) {
+        continue;
+      }
+      if (pulsefs.getServerId().equals(newOwner) && pulsed) {
+        pulsefs.renewSession(sessionID);
+      } else if (pulsefs.getServerId().equals(newOwner) &&
+                 remainingMs != null) {
+        // The session handed over keeps its deadline.
+        pulsefs.manageSession(sessionID, remainingMs[i]);
+      } else if (pulsefs.getServerId().equals(newOwner)) {
+        pulsefs.manageSession(sessionID);
+      } else {
+        pulsefs.abandonSession(sessionID);
+      }
+    }
+    return status;
+  }
+
+  /**
+   * Sets the new owner to the session files of the batch.
+   *
+   * @return the status of each session.
+   */
+  Map<Long, String> setOwner(DataTree tree) {
+    byte[] owner = newOwner.getBytes(Charset.forName("UTF-8"));
+    Map<Long, String> status = new LinkedHashMap<>();
+    // The sessions directory is copied once for the whole batch.
+    tree.startEditSession();
+    for (long sessionID : sessionIDs) {
+      String file = String.format("%016d", sessionID);
+      String path = PulseFSConfig.PULSEFS_SESSIONS_PATH + PathUtils.SEP + file;
+      try {
+        tree.setDataInStagingArea(path, owner, -1);
+        status.put(sessionID, "ok");
+      } catch (DataTree.TreeException ex) {
+        // The session has expired before the proposal gets delivered.
+        status.put(sessionID, "not-found");
+      }
+    }
+    tree.commitStagingChanges();
+    return status;
+  }
+
+  @SuppressWarnings("unchecked")
+  void executeAndReply(PulseFS pulsefs, Object ctx) {
+    AsyncContext context = (AsyncContext)ctx;
+    HttpServletResponse response = (HttpServletResponse)(context.getResponse());
+    Map<Long, String> status =
+      (Map<Long, String>)context.getRequest().getAttribute(STATUS_ATTRIBUTE);
+    if (status == null) {
+      status = new LinkedHashMap<>();
+    }
+    status.putAll(takeOver(pulsefs, true));
+    try {
+      Utils.replySessionsStatus(response, status, context);
+    } catch (IOException ex) {
+      LOG.warn("Failed to reply the status of sessions", ex);
+      Utils.replyBadRequest(response, ex.getMessage(), context);
+    }
+  }
+}
@@ -26,17 +26,36 @@ import com.github.zk1931.jzab.ZabException.NotBroadcastingPhase;
 import com.github.zk1931.jzab.ZabException.TooManyPendingRequests;
 import com.github.zk1931.jzab.Zxid;
 import com.github.zk1931.pulsefs.tree.DataTree;
+import com.github.zk1931.pulsefs.tree.DirNode;
+import com.github.zk1931.pulsefs.tree.FileNode;
+import com.github.zk1931.pulsefs.tree.Node;
+import com.github.zk1931.pulsefs.tree.PathUtils;
+import com.github.zk1931.pulsefs.tree.SessionRegistry;
+import com.github.zk1931.pulsefs.tree.ValueLog;
+import com.github.zk1931.pulsefs.tree.ValueStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import java.io.File;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.concurrent.Callable;
 import java.util.concurrent.DelayQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import javax.servlet.AsyncContext;
 
@@ -50,15 +69,39 @@ public final class PulseFS {
   private final PulseFSStateMachine stateMachine = new PulseFSStateMachine();
   private Set<String> activeMembers;
   private Set<String> clusterMembers;
-  private String leader;
-  private boolean isBroadcasting = false;
+  // Read by the scheduled tasks.
+  private volatile String leader;
+  private volatile boolean isBroadcasting = false;
   private final PulseFSConfig config;
   private final ZabConfig zabConfig;
 
   private ExecutorService fixedPool = Executors.newFixedThreadPool(1);
+  private ScheduledExecutorService scheduledPool =
+    Executors.newSingleThreadScheduledExecutor();
   // transient state
   private DelayQueue<Session> ownedSessions = new DelayQueue<>();
   private Future<Void> terminatorFuture;
+  // The leader and the active followers of the latest cluster change.
+  private volatile Set<String> liveServers;
+  // The clients of this server waiting for the items of queues.
+  private final DequeueWaiters dequeueWaiters =
+    new DequeueWaiters(this, scheduledPool);
+  // The windows of the watches with coalesced notifications.
+  private final WatchCoalescer watchCoalescer =
+    new WatchCoalescer(this, scheduledPool);
+  // The clients of this server waiting on semaphores and barriers.
+  private final SyncWaiters syncWaiters = new SyncWaiters(this);
+  // The deadlines of the files with time-to-live, only kept by leader.
+  private volatile ExpiryWheel expiryWheel = null;
+
+  // The maximum number of sessions expired in a single proposal.
+  private static final int MAX_EXPIRE_BATCH = 1000;
+  // The delay (in seconds) before retrying to expire the sessions whose
+  // expiration proposal failed.
+  private static final long EXPIRE_RETRY_DELAY_SEC = 1;
+  // The tick (in milliseconds) and the number of slots of the expiry wheel.
+  private static final long EXPIRY_TICK_MS = 100;
+  private static final int EXPIRY_WHEEL_SLOTS = 1024;
 
   private class Terminator implements Callable<Void> {
     private final DelayQueue<Session> sessionQueue;
@@ -68,16 +111,64 @@ public final class PulseFS {
     }
 
     public Void call() throws Exception {
+      List<Session> expired = new ArrayList<>();
       while (true) {
-        Session session = this.sessionQueue.take();
-        LOG.debug("Expiring session {}", session.sessionID);
-        Command expire = new ExpireSessionCommand(session.sessionID);
-        proposeStateChange(expire, null);
+        expired.add(this.sessionQueue.take());
+        // Drains all the other sessions which have already expired, they'll
+        // be expired in one proposal.
+        this.sessionQueue.drainTo(expired, MAX_EXPIRE_BATCH - 1);
+        List<Long> sessionIDs = new ArrayList<>(expired.size());
+        for (Session session : expired) {
+          sessionIDs.add(session.sessionID);
+        }
+        LOG.debug("Expiring sessions {}", sessionIDs);
+        Command expire = new ExpireSessionsCommand(sessionIDs);
+        try {
+          proposeStateChange(expire, null);
+        } catch (TooManyPendingRequests | NotBroadcastingPhase ex) {
+          LOG.warn("Failed to expire {} sessions, retry later.",
+                   sessionIDs.size(), ex);
+          for (long sessionID : sessionIDs) {
+            retryExpireSession(sessionID);
+          }
+        }
+        expired.clear();
       }
     }
   }
 
-  public PulseFS(PulseFSConfig config) {
+  /**
+   * Plans the moves of sessions between servers on leader.
+   */
+  private class Rebalancer implements Runnable {
+    @Override
+    public void run() {
+      try {
+        rebalanceSessions();
+      } catch (RuntimeException ex) {
+        // Catches the exception otherwise the task will not be scheduled.
+        LOG.warn("Failed to rebalance sessions.", ex);
+      }
+    }
+  }
+
+  /**
+   * Advances the expiry wheel on leader and proposes the deletion of the
+   * expired files in batches.
+   */
+  private class Expirer implements Runnable {
+    @Override
+    public void run() {
+      try {
+        expireFiles();
+      } catch (RuntimeException ex) {
+        // Catches the exception otherwise the task will not be scheduled.
+        LOG.warn("Failed to expire files.", ex);
+      }
+    }
+  }
+
+  public PulseFS(PulseFSConfig config) throws IOException {
     this.config = config;
     this.serverId = config.getServerId();
     if (this.serverId != null && config.getJoinPeer() == null) {
@@ -88,6 +179,25 @@ public final class PulseFS {
       config.setLogDir(this.serverId);
     }
     zabConfig.setLogDir(config.getLogDir());
+    ValueStore store = null;
+    if (config.getValueLogDir() != null) {
+      int threshold = config.getOffHeapThreshold() > 0 ?
+                      config.getOffHeapThreshold() :
+                      ValueLog.DEFAULT_THRESHOLD;
+      store = new ValueLog(new File(config.getValueLogDir()), threshold,
+                           config.getValueLogSegmentSize());
+    } else if (config.getOffHeapThreshold() > 0) {
+      store = new ValueStore(config.getOffHeapThreshold(),
+                             config.getOffHeapMaxBytes());
+    }
+    if (config.isDedup()) {
+      if (store == null) {
+        // Keeps all the values on heap.
+        store = new ValueStore(Integer.MAX_VALUE, 0);
+      }
+      store.setDedup(true);
+    }
+    stateMachine.tree.setValueStore(store);
     if (config.getJoinPeer() != null) {
       zab = new Zab(stateMachine, zabConfig, serverId, config.getJoinPeer());
     } else {
@@ -96,6 +206,12 @@ public final class PulseFS {
     }
     this.serverId = zab.getServerId();
     terminatorFuture = fixedPool.submit(new Terminator(ownedSessions));
+    long period = config.getSessionTimeout();
+    scheduledPool.scheduleWithFixedDelay(new Rebalancer(), period, period,
+                                         TimeUnit.SECONDS);
+    scheduledPool.scheduleWithFixedDelay(new Expirer(), EXPIRY_TICK_MS,
+                                         EXPIRY_TICK_MS,
+                                         TimeUnit.MILLISECONDS);
   }
 
   public boolean isLeader() {
@@ -122,10 +238,33 @@ public final class PulseFS {
     this.zab.remove(peerId, ctx);
   }
 
+  public PulseFSConfig getConfig() {
+    return this.config;
+  }
+
   public DataTree getTree() {
     return this.stateMachine.tree;
   }
 
+  /**
+   * Runs the task after the given delay.
+   */
+  void schedule(Runnable task, long delay, TimeUnit unit) {
+    this.scheduledPool.schedule(task, delay, unit);
+  }
+
+  DequeueWaiters getDequeueWaiters() {
+    return this.dequeueWaiters;
+  }
+
+  SyncWaiters getSyncWaiters() {
+    return this.syncWaiters;
+  }
+
+  WatchCoalescer getWatchCoalescer() {
+    return this.watchCoalescer;
+  }
+
   public void proposeStateChange(Command cmd, AsyncContext ctx)
       throws NotBroadcastingPhase, IOException, TooManyPendingRequests {
     ByteBuffer bb = Serializer.serialize(cmd);
@@ -139,23 +278,302 @@ public final class PulseFS {
   }
 
   public void manageSession(long sessionID) {
-    Session session = new Session(sessionID, config.getSessionTimeout());
+    manageSession(new Session(sessionID, config.getSessionTimeout()));
+  }
+
+  /**
+   * Manages the session which expires after the given time, e.g. the session
+   * handed over by another server keeps its deadline.
+   */
+  public void manageSession(long sessionID, long remainingMs) {
+    manageSession(new Session(sessionID, remainingMs, TimeUnit.MILLISECONDS));
+  }
+
+  private void manageSession(Session session) {
     LOG.debug("Add session {}", session);
-    this.ownedSessions.remove(session);
-    this.ownedSessions.add(session);
+    synchronized (this.ownedSessions) {
+      this.ownedSessions.remove(session);
+      this.ownedSessions.add(session);
+    }
   }
 
   public void abandonSession(long sessionID) {
     Session session = new Session(sessionID, config.getSessionTimeout());
     LOG.debug("Abandon session {}", session);
-    this.ownedSessions.remove(session);
+    synchronized (this.ownedSessions) {
+      this.ownedSessions.remove(session);
+    }
   }
 
   public void renewSession(long sessionID) {
     Session session = new Session(sessionID, config.getSessionTimeout());
     LOG.debug("Renew session {}", session);
-    this.ownedSessions.remove(session);
-    this.ownedSessions.add(session);
+    synchronized (this.ownedSessions) {
+      this.ownedSessions.remove(session);
+      this.ownedSessions.add(session);
+    }
+    getTree().getSessionRegistry().renew(sessionID, System.nanoTime());
+  }
+
+  /**
+   * Schedules the expiration of the owned sessions which are not scheduled.
+   */
+  void scheduleSessionsIfAbsent(long[] sessionIDs) {
+    if (sessionIDs.length == 0) {
+      return;
+    }
+    synchronized (this.ownedSessions) {
+      Set<Long> scheduled = new HashSet<>();
+      for (Session session : this.ownedSessions) {
+        scheduled.add(session.sessionID);
+      }
+      for (long sessionID : sessionIDs) {
+        if (!scheduled.contains(sessionID)) {
+          Session session = new Session(sessionID, config.getSessionTimeout());
+          LOG.debug("Schedule session {}", session);
+          this.ownedSessions.add(session);
+        }
+      }
+    }
+  }
+
+  /**
+   * Takes the ownership of the sessions whose owners have left the cluster.
+   * Once the ownership is taken, the sessions get the full session timeout
+   * as a grace period for their clients to pulse, and they'll be expired in
+   * batches if no pulse comes.
+   */
+  void adoptSessions(long[] sessionIDs) {
+    LOG.info("Adopting {} orphaned sessions.", sessionIDs.length);
+    proposeOwnership(sessionIDs, this.serverId);
+  }
+
+  void setLiveServers(Set<String> servers) {
+    this.liveServers = servers;
+  }
+
+  /**
+   * Gets the servers of the latest cluster change.
+   */
+  Set<String> getLiveServers() {
+    Set<String> servers = this.liveServers;
+    return servers == null ? Collections.<String>emptySet() : servers;
+  }
+
+  /**
+   * Gets the address (host:port) the clients connect to this server with,
+   * the host is the one of its server ID.
+   */
+  String getClientAddress() {
+    int idx = this.serverId.lastIndexOf(':');
+    String host = idx < 0 ? this.serverId : this.serverId.substring(0, idx);
+    return host + ":" + this.config.getPort();
+  }
+
+  /**
+   * Gets the client addresses announced by the servers, see
+   * {@link AnnounceServerCommand}.
+   *
+   * @return the addresses by server IDs, the servers which haven't announced
+   * their addresses are absent.
+   */
+  Map<String, String> getClientAddresses() {
+    Map<String, String> addresses = new HashMap<>();
+    try {
+      Node servers = getTree().getNode(PulseFSConfig.PULSEFS_SERVERS_PATH);
+      for (Node node : ((DirNode)servers).children.values()) {
+        byte[] data = ((FileNode)node).getData();
+        if (data.length > 0) {
+          addresses.put(PathUtils.name(node.fullPath),
+                        new String(data, Charset.forName("UTF-8")));
+        }
+      }
+    } catch (DataTree.TreeException ex) {
+      LOG.warn("Failed to read the addresses of servers.", ex);
+    }
+    return addresses;
+  }
+
+  /**
+   * Announces the client address of this server to the others.
+   */
+  void announce() {
+    try {
+      proposeStateChange(new AnnounceServerCommand(this.serverId,
+                                                   getClientAddress()),
+                         null);
+    } catch (IOException | ZabException ex) {
+      LOG.warn("Failed to announce the address of {}.", this.serverId, ex);
+    }
+  }
+
+  /**
+   * Plans the moves of sessions which even out the number of sessions owned
+   * by the live servers. It's only done by leader so the moves of different
+   * servers never overlap, each source server hands over its sessions once
+   * the plan is delivered.
+   */
+  void rebalanceSessions() {
+    final Set<String> servers = this.liveServers;
+    if (!this.isBroadcasting || !isLeader() || servers == null ||
+        servers.size() < 2) {
+      return;
+    }
+    Map<String, Integer> counts =
+      getTree().getSessionRegistry().getSessionCounts();
+    List<RebalanceSessionsCommand.Move> moves =
+      RebalanceSessionsCommand.plan(counts, servers);
+    if (moves.isEmpty()) {
+      return;
+    }
+    LOG.info("Rebalancing sessions {}", moves);
+    try {
+      proposeStateChange(new RebalanceSessionsCommand(moves), null);
+    } catch (IOException | ZabException ex) {
+      LOG.warn("Failed to rebalance sessions.", ex);
+    }
+  }
+
+  /**
+   * Hands the given number of sessions over to another server. The sessions
+   * which expire last are moved, and they keep their remaining time so
+   * moving a session never extends its life.
+   */
+  void handOverSessions(String owner, int count) {
+    List<Session> sessions;
+    synchronized (this.ownedSessions) {
+      sessions = selectSessions(this.ownedSessions, count);
+    }
+    long[] sessionIDs = new long[sessions.size()];
+    long[] remainingMs = new long[sessions.size()];
+    for (int i = 0; i < sessionIDs.length; ++i) {
+      sessionIDs[i] = sessions.get(i).sessionID;
+      remainingMs[i] =
+        Math.max(0, sessions.get(i).getDelay(TimeUnit.MILLISECONDS));
+    }
+    LOG.info("Moving {} sessions to {}", sessionIDs.length, owner);
+    proposeOwnership(sessionIDs, owner, remainingMs);
+  }
+
+  /**
+   * Selects the given number of sessions which expire last.
+   */
+  static List<Session> selectSessions(Collection<Session> sessions,
+                                      int count) {
+    List<Session> sorted = new ArrayList<>(sessions);
+    Collections.sort(sorted, Collections.reverseOrder());
+    return new ArrayList<>(sorted.subList(0, Math.min(count, sorted.size())));
+  }
+
+  /**
+   * Proposes the ownership change of the sessions in batches.
+   */
+  private void proposeOwnership(long[] sessionIDs, String owner) {
+    proposeOwnership(sessionIDs, owner, null);
+  }
+
+  /**
+   * Proposes the ownership change of the sessions in batches, with the
+   * remaining time of each session or null for the full session timeout.
+   */
+  private void proposeOwnership(long[] sessionIDs,
+                                String owner,
+                                long[] remainingMs) {
+    for (int from = 0; from < sessionIDs.length; from += MAX_EXPIRE_BATCH) {
+      int to = Math.min(sessionIDs.length, from + MAX_EXPIRE_BATCH);
+      Command manage =
+        new ManageSessionsCommand(Arrays.copyOfRange(sessionIDs, from, to),
+                                  owner,
+                                  remainingMs == null ? null :
+                                  Arrays.copyOfRange(remainingMs, from, to));
+      try {
+        proposeStateChange(manage, null);
+      } catch (IOException | ZabException ex) {
+        LOG.warn("Failed to change the owner of sessions.", ex);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Renews a batch of sessions.
+   */
+  public void renewSessions(Collection<Long> sessionIDs) {
+    if (sessionIDs.isEmpty()) {
+      return;
+    }
+    LOG.debug("Renew sessions {}", sessionIDs);
+    long now = System.nanoTime();
+    SessionRegistry registry = getTree().getSessionRegistry();
+    synchronized (this.ownedSessions) {
+      for (long sessionID : sessionIDs) {
+        Session session = new Session(sessionID, config.getSessionTimeout());
+        this.ownedSessions.remove(session);
+        this.ownedSessions.add(session);
+        registry.renew(sessionID, now);
+      }
+    }
+  }
+
+  /**
+   * Schedules the expiration of a session again after its expiration failed
+   * to be proposed. If the session has been renewed or re-managed in the
+   * meantime it's already back in the queue and will be left untouched.
+   */
+  void retryExpireSession(long sessionID) {
+    Session session = new Session(sessionID, EXPIRE_RETRY_DELAY_SEC);
+    synchronized (this.ownedSessions) {
+      if (!this.ownedSessions.contains(session)) {
+        this.ownedSessions.add(session);
+      }
+    }
+  }
+
+  /**
+   * Schedules the expiration of a file with time-to-live if this server is
+   * the leader.
+   */
+  void scheduleExpiration(FileNode node) {
+    ExpiryWheel wheel = this.expiryWheel;
+    if (wheel != null) {
+      wheel.add(node);
+    }
+  }
+
+  /**
+   * Rebuilds the expiry wheel from the deadlines in the metadata of the
+   * files, so the files keep expiring after the leader changes.
+   */
+  void rebuildExpiryWheel() {
+    ExpiryWheel wheel =
+      new ExpiryWheel(EXPIRY_WHEEL_SLOTS, EXPIRY_TICK_MS,
+                      System.currentTimeMillis());
+    wheel.addAll(getTree().getRoot());
+    LOG.info("Scheduled {} files with time-to-live.", wheel.size());
+    this.expiryWheel = wheel;
+  }
+
+  void expireFiles() {
+    ExpiryWheel wheel = this.expiryWheel;
+    if (wheel == null || !this.isBroadcasting) {
+      return;
+    }
+    List<ExpiryWheel.Entry> expired =
+      wheel.advance(System.currentTimeMillis());
+    for (int from = 0; from < expired.size(); from += MAX_EXPIRE_BATCH) {
+      int to = Math.min(expired.size(), from + MAX_EXPIRE_BATCH);
+      LOG.debug("Expiring {} files", to - from);
+      Command expire = new ExpireFilesCommand(expired.subList(from, to));
+      try {
+        proposeStateChange(expire, null);
+      } catch (IOException | ZabException ex) {
+        LOG.warn("Failed to expire {} files, retry later.",
+                 expired.size() - from, ex);
+        wheel.retry(expired.subList(from, expired.size()),
+                    TimeUnit.SECONDS.toMillis(EXPIRE_RETRY_DELAY_SEC));
+        return;
+      }
+    }
   }
 
   public boolean inWorkingState() {
@@ -167,7 +585,11 @@ public final class PulseFS {
    */
   class PulseFSStateMachine implements StateMachine {
 
-    final DataTree tree = new DataTree();
+    final DataTree tree = new DataTree(PulseFSConfig.PULSEFS_SESSIONS_PATH);
+    // The tree with all the proposed changes applied, only used by leader.
+    DataTree proposedTree = null;
+    Zxid lastProposed = null;
+    volatile Zxid lastDelivered = null;
 
     PulseFSStateMachine() {
       try {
@@ -181,9 +603,49 @@ public final class PulseFS {
       }
     }
 
+    /**
+     * Resolves the commands on leader so the replicas apply them without
+     * evaluating the branches again, the requests which are going to fail
+     * are rejected before their data gets replicated. The commands are
+     * resolved against a fork of the tree which has all the proposed changes
+     * applied, once a command can't be resolved the fork is dropped until
+     * all the proposed commands are delivered.
+     */
     @Override
     public ByteBuffer preprocess(Zxid zxid, ByteBuffer message) {
-      return message;
+      boolean isIdle =
+        lastProposed == null || lastProposed.equals(lastDelivered);
+      lastProposed = zxid;
+      if (!Command.isResolvable(Serializer.readClassName(message))) {
+        // Its changes are unknown until it's delivered, it's proposed as it
+        // is without being deserialized.
+        proposedTree = null;
+        return message;
+      }
+      if (isIdle) {
+        // Nothing is in flight, starts from the latest tree.
+        proposedTree = tree.fork();
+      }
+      if (proposedTree == null) {
+        return message;
+      }
+      Command command = Serializer.deserialize(message.duplicate());
+      Command resolved = command.resolve(proposedTree);
+      if (resolved == null) {
+        proposedTree = null;
+        return message;
+      }
+      if (resolved == command) {
+        // Proposes the original message instead of serializing it again.
+        return message;
+      }
+      try {
+        return Serializer.serialize(resolved);
+      } catch (IOException ex) {
+        LOG.error("Failed to serialize resolved command", ex);
+        proposedTree = null;
+        return message;
+      }
     }
 
     @Override
@@ -199,6 +661,7 @@ public final class PulseFS {
           LOG.trace("exception ", ex);
         }
       }
+      lastDelivered = zxid;
     }
 
     @Override
@@ -230,6 +693,9 @@ public final class PulseFS {
     public void recovering(PendingRequests pendingRequests) {
       LOG.info("Recovering");
       isBroadcasting = false;
+      proposedTree = null;
+      lastProposed = null;
+      expiryWheel = null;
     }
 
     @Override
@@ -248,7 +714,9 @@ public final class PulseFS {
       } catch (IOException | ZabException ex) {
         LOG.error("Exception : ", ex);
       }
+      rebuildExpiryWheel();
       isBroadcasting = true;
+      announce();
     }
 
     @Override
@@ -257,7 +725,9 @@ public final class PulseFS {
                 leaderId, clusterConfig);
       leader = leaderId;
       clusterMembers = clusterConfig;
+      expiryWheel = null;
       isBroadcasting = true;
+      announce();
     }
   }
 }
@@ -24,12 +24,19 @@ public final class PulseFSConfig {
   public static final String PULSEFS_ROOT = "/pulsefs";
   public static final String PULSEFS_SERVERS_PATH = PULSEFS_ROOT + "/servers";
   public static final String PULSEFS_SESSIONS_PATH = PULSEFS_ROOT + "/sessions";
+  public static final String PULSEFS_STATS_PATH = PULSEFS_ROOT + "/stats";
 
   private String serverId = null;
   private String joinPeer = null;
   private String logDir = null;
   private int sessionTimeout = 10;
   private int clientPort = 8080;
+  private int offHeapThreshold = 0;
+  private long offHeapMaxBytes = 1L << 30;
+  private String valueLogDir = null;
+  private int valueLogSegmentSize = 64 << 20;
+  private boolean dedup = false;
+  private int compressThreshold = 0;
 
   public void setServerId(String server) {
     this.serverId = server;
@@ -70,4 +77,67 @@ public final class PulseFSConfig {
   public int getPort() {
     return this.clientPort;
   }
+
+  /**
+   * Sets the minimum size of the file values which are stored off heap, 0
+   * keeps all the values on heap.
+   */
+  public void setOffHeapThreshold(int threshold) {
+    this.offHeapThreshold = threshold;
+  }
+
+  public int getOffHeapThreshold() {
+    return this.offHeapThreshold;
+  }
+
+  public void setOffHeapMaxBytes(long maxBytes) {
+    this.offHeapMaxBytes = maxBytes;
+  }
+
+  public long getOffHeapMaxBytes() {
+    return this.offHeapMaxBytes;
+  }
+
+  /**
+   * Sets the directory of the value log, the large file values are appended
+   * to the log instead of being kept in memory. Null disables the log.
+   */
+  public void setValueLogDir(String dir) {
+    this.valueLogDir = dir;
+  }
+
+  public String getValueLogDir() {
+    return this.valueLogDir;
+  }
+
+  public void setValueLogSegmentSize(int size) {
+    this.valueLogSegmentSize = size;
+  }
+
+  public int getValueLogSegmentSize() {
+    return this.valueLogSegmentSize;
+  }
+
+  /**
+   * Sets whether the identical file values share one copy.
+   */
+  public void setDedup(boolean enabled) {
+    this.dedup = enabled;
+  }
+
+  public boolean isDedup() {
+    return this.dedup;
+  }
+
+  /**
+   * Sets the minimum size of the file values which are gzip compressed, 0
+   * disables the compression.
+   */
+  public void setCompressThreshold(int threshold) {
+    this.compressThreshold = threshold;
+  }
+
+  public int getCompressThreshold() {
+    return this.compressThreshold;
+  }
 }
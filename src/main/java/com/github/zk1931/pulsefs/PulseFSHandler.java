@@ -17,7 +17,17 @@
 
 package com.github.zk1931.pulsefs;
 
+import com.github.zk1931.pulsefs.tree.DataTree;
+import com.github.zk1931.pulsefs.tree.DirNode;
+import com.github.zk1931.pulsefs.tree.Node;
+import com.github.zk1931.pulsefs.tree.PathUtils;
+import com.github.zk1931.pulsefs.tree.ValueStore;
 import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -39,6 +49,81 @@ public class PulseFSHandler extends TreeHandler {
     super(fs);
   }
 
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws ServletException, IOException {
+    if (request.getParameter("values") != null &&
+        PulseFSConfig.PULSEFS_ROOT.equals(request.getRequestURI())) {
+      // Replies the statistics of the file values and the heap.
+      Utils.replyStats(response, getValueStats());
+      return;
+    }
+    if (PulseFSConfig.PULSEFS_STATS_PATH.equals(request.getRequestURI())) {
+      replyTreeStats(request, response);
+      return;
+    }
+    super.doGet(request, response);
+  }
+
+  /**
+   * Replies the aggregates of the subtree under the "path" parameter, or the
+   * whole tree if it's not specified.
+   */
+  void replyTreeStats(HttpServletRequest request,
+                      HttpServletResponse response) throws IOException {
+    String path = request.getParameter("path");
+    if (path == null) {
+      path = "/";
+    }
+    try {
+      PathUtils.validatePath(path);
+      Node node = this.fs.getTree().getNode(path);
+      if (!(node instanceof DirNode)) {
+        Utils.replyBadRequest(response, path + " is not a directory");
+        return;
+      }
+      DirNode dir = (DirNode)node;
+      Map<String, Long> stats = new LinkedHashMap<>();
+      stats.put("version", dir.getVersion());
+      stats.put("nodes", dir.getDescendantCount() + 1);
+      stats.put("dataBytes", dir.getDataBytes());
+      stats.put("ephemerals", dir.getEphemeralCount());
+      stats.put("maxDepth", (long)dir.getMaxDepth());
+      stats.put("quotaRejections", this.fs.getTree().getQuotaRejections());
+      stats.put("softLimitWarnings",
+                this.fs.getTree().getSoftLimitWarnings());
+      Utils.replyStats(response, stats);
+    } catch (DataTree.InvalidPath ex) {
+      Utils.replyBadRequest(response, ex.getMessage());
+    } catch (DataTree.PathNotExist | DataTree.NotDirectory ex) {
+      Utils.replyNotFound(response, ex.getMessage());
+    }
+  }
+
+  Map<String, Long> getValueStats() {
+    Map<String, Long> stats = new LinkedHashMap<>();
+    ValueStore store = this.fs.getTree().getValueStore();
+    if (store != null) {
+      stats.putAll(store.getStats());
+    } else {
+      stats.put("threshold", 0L);
+    }
+    MemoryUsage heap =
+      ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    stats.put("heapUsedBytes", heap.getUsed());
+    stats.put("heapCommittedBytes", heap.getCommitted());
+    long gcCount = 0;
+    long gcTime = 0;
+    for (GarbageCollectorMXBean gc :
+         ManagementFactory.getGarbageCollectorMXBeans()) {
+      gcCount += Math.max(gc.getCollectionCount(), 0);
+      gcTime += Math.max(gc.getCollectionTime(), 0);
+    }
+    stats.put("gcCount", gcCount);
+    stats.put("gcTimeMs", gcTime);
+    return stats;
+  }
+
   @Override
   protected void doDelete(HttpServletRequest request,
                           HttpServletResponse response)
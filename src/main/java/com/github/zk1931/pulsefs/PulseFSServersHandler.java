@@ -18,9 +18,12 @@
 package com.github.zk1931.pulsefs;
 
 import com.github.zk1931.pulsefs.tree.DataTree;
+import com.github.zk1931.pulsefs.tree.DirNode;
 import com.github.zk1931.pulsefs.tree.PathUtils;
 import com.github.zk1931.pulsefs.tree.Node;
 import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -49,7 +52,20 @@ public class PulseFSServersHandler extends PulseFSHandler {
     try {
       PathUtils.validatePath(path);
       Node node = tree.getNode(path);
-      Utils.replyNodeInfo(response, node, false);
+      if (request.getParameter("sessions") != null &&
+          node instanceof DirNode) {
+        // Replies the number of sessions owned by each server.
+        Map<String, Integer> counts =
+          tree.getSessionRegistry().getSessionCounts();
+        Map<String, Integer> serverCounts = new TreeMap<>();
+        for (String server : ((DirNode)node).children.keySet()) {
+          Integer count = counts.get(server);
+          serverCounts.put(server, count == null ? 0 : count);
+        }
+        Utils.replySessionCounts(response, serverCounts);
+        return;
+      }
+      Utils.replyNodeInfo(request, response, node, false);
     } catch (DataTree.InvalidPath ex) {
       Utils.replyBadRequest(response, ex.getMessage());
     } catch (DataTree.PathNotExist | DataTree.NotDirectory ex) {
@@ -19,12 +19,17 @@ package com.github.zk1931.pulsefs;
 
 import com.github.zk1931.jzab.ZabException;
 import com.github.zk1931.pulsefs.tree.DataTree;
-import com.github.zk1931.pulsefs.tree.FileNode;
-import com.github.zk1931.pulsefs.tree.Node;
 import com.github.zk1931.pulsefs.tree.PathUtils;
+import com.github.zk1931.pulsefs.tree.SessionRegistry;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 import java.io.IOException;
 import java.nio.charset.Charset;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -51,33 +56,152 @@ public class PulseFSSessionsHandler extends PulseFSHandler {
                        HttpServletResponse response)
       throws ServletException, IOException {
     String path = request.getRequestURI();
-    DataTree tree = this.fs.getTree();
-    try {
-      PathUtils.validatePath(path);
-      Node node = tree.getNode(path);
-      long sessionID = Long.parseLong(PathUtils.name(node.fullPath));
-      if (Arrays.equals(((FileNode)node).data,
-                        fs.getServerId().getBytes(Charset.forName("UTF-8")))) {
-        Utils.replyNodeInfo(response, node, false);
-        this.fs.renewSession(sessionID);
+    String pathInfo = request.getPathInfo();
+    if (pathInfo == null || pathInfo.equals("/")) {
+      // PUT to /pulsefs/sessions renews a batch of sessions.
+      bulkPulse(request, response);
+      return;
+    }
+    long sessionID = parseSessionID(pathInfo);
+    SessionRegistry registry = this.fs.getTree().getSessionRegistry();
+    if (sessionID < 0 || !registry.isAlive(sessionID)) {
+      Utils.replyNotFound(response, path + " does not exist");
+    } else if (registry.isOwnedBy(sessionID, fs.getServerId())) {
+      this.fs.renewSession(sessionID);
+      Utils.replyOK(response);
+    } else if (fs.getLiveServers().contains(registry.getOwner(sessionID))) {
+      // The owner is alive, the client is redirected to it so the pulses
+      // stay local to the owner.
+      String address =
+        fs.getClientAddresses().get(registry.getOwner(sessionID));
+      if (address == null) {
+        Utils.replyServiceUnavailable(response);
       } else {
-        // This server is not the manager of session, trying to take the
-        // management of the session.
-        LOG.debug("Trying to declare the ownership of session {}", sessionID);
-        AsyncContext context = getContext(request, response);
-        Command declare = new ManageSessionCommand(sessionID,
-                                                   fs.getServerId());
-        try {
-          this.fs.proposeStateChange(declare, context);
-        } catch (ZabException ex) {
-          Utils.replyServiceUnavailable(response, context);
-        }
+        Utils.replyTemporaryRedirect(response, "http://" + address + path);
       }
-    } catch (DataTree.InvalidPath ex) {
+    } else {
+      // The owner of session has left, trying to take the management of the
+      // session.
+      LOG.debug("Trying to declare the ownership of session {}", sessionID);
+      AsyncContext context = getContext(request, response);
+      Command declare = new ManageSessionCommand(sessionID,
+                                                 fs.getServerId());
+      try {
+        this.fs.proposeStateChange(declare, context);
+      } catch (ZabException ex) {
+        Utils.replyServiceUnavailable(response, context);
+      }
+    }
+  }
+
+  /**
+   * Parses the session ID from the path of its session file (relative to
+   * the sessions directory).
+   *
+   * @return the session ID, or -1 if it's not a path of session file.
+   */
+  static long parseSessionID(String pathInfo) {
+    // The path is in format of "/%016d".
+    if (pathInfo.length() != 17 || !pathInfo.startsWith(PathUtils.SEP)) {
+      return -1;
+    }
+    long sessionID = 0;
+    for (int i = 1; i < pathInfo.length(); ++i) {
+      char ch = pathInfo.charAt(i);
+      if (ch < '0' || ch > '9') {
+        return -1;
+      }
+      sessionID = sessionID * 10 + (ch - '0');
+    }
+    return sessionID;
+  }
+
+  /**
+   * Renews all the sessions listed in the body of the request, the body is a
+   * JSON array of session IDs. The sessions owned by this server are renewed
+   * directly, the sessions owned by other live servers are reported as moved
+   * to their owners, and the ownership of the others is taken in a single
+   * proposal.
+   */
+  void bulkPulse(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    long[] sessionIDs;
+    try {
+      sessionIDs = parseSessionIDs(Utils.readData(request));
+    } catch (JsonParseException ex) {
       Utils.replyBadRequest(response, ex.getMessage());
-    } catch (DataTree.PathNotExist | DataTree.NotDirectory ex) {
-      Utils.replyNotFound(response, ex.getMessage());
+      return;
+    }
+    SessionRegistry registry = this.fs.getTree().getSessionRegistry();
+    Map<Long, String> status = new LinkedHashMap<>();
+    List<Long> owned = new ArrayList<>();
+    long[] ids = classifySessions(sessionIDs, registry, fs.getServerId(),
+                                  fs.getLiveServers(),
+                                  fs.getClientAddresses(), status, owned);
+    this.fs.renewSessions(owned);
+    if (ids.length == 0) {
+      Utils.replySessionsStatus(response, status, null);
+      return;
+    }
+    LOG.debug("Trying to declare the ownership of {} sessions", ids.length);
+    AsyncContext context = getContext(request, response);
+    request.setAttribute(ManageSessionsCommand.STATUS_ATTRIBUTE, status);
+    Command declare = new ManageSessionsCommand(ids, fs.getServerId());
+    try {
+      this.fs.proposeStateChange(declare, context);
+    } catch (ZabException ex) {
+      Utils.replyServiceUnavailable(response, context);
+    }
+  }
+
+  /**
+   * Parses the body of a bulk pulse, which is a JSON array of session IDs.
+   *
+   * @throws JsonParseException if it's not a JSON array of session IDs.
+   */
+  static long[] parseSessionIDs(byte[] body) {
+    long[] sessionIDs =
+      new Gson().fromJson(new String(body, Charset.forName("UTF-8")),
+                          long[].class);
+    return sessionIDs == null ? new long[0] : sessionIDs;
+  }
+
+  /**
+   * Sorts the sessions of a bulk pulse by their owners. The sessions which
+   * don't exist are "not-found" in the status. The ones owned by this server
+   * are added to owned and they're "ok" in the status. The ones owned by
+   * other live servers are "moved:host:port" with the address of the owner
+   * in the status, or "unavailable" if the owner hasn't announced it.
+   *
+   * @return the sessions whose owners have left.
+   */
+  static long[] classifySessions(long[] sessionIDs,
+                                 SessionRegistry registry,
+                                 String serverId,
+                                 Set<String> liveServers,
+                                 Map<String, String> addresses,
+                                 Map<Long, String> status,
+                                 List<Long> owned) {
+    List<Long> notOwned = new ArrayList<>();
+    for (long sessionID : sessionIDs) {
+      if (!registry.isAlive(sessionID)) {
+        status.put(sessionID, "not-found");
+      } else if (registry.isOwnedBy(sessionID, serverId)) {
+        status.put(sessionID, "ok");
+        owned.add(sessionID);
+      } else if (liveServers.contains(registry.getOwner(sessionID))) {
+        String address = addresses.get(registry.getOwner(sessionID));
+        status.put(sessionID,
+                   address == null ? "unavailable" : "moved:" + address);
+      } else {
+        notOwned.add(sessionID);
+      }
+    }
+    long[] ids = new long[notOwned.size()];
+    for (int i = 0; i < ids.length; ++i) {
+      ids[i] = notOwned.get(i);
     }
+    return ids;
   }
 
   @Override
@@ -23,9 +23,12 @@ import com.github.zk1931.pulsefs.tree.DataTree.InvalidPath;
 import com.github.zk1931.pulsefs.tree.DataTree.NodeAlreadyExist;
 import com.github.zk1931.pulsefs.tree.DataTree.NotDirectory;
 import com.github.zk1931.pulsefs.tree.DataTree.PathNotExist;
+import com.github.zk1931.pulsefs.tree.DataTree.QuotaExceeded;
 import com.github.zk1931.pulsefs.tree.DataTree.TreeException;
 import com.github.zk1931.pulsefs.tree.DataTree.VersionNotMatch;
+import com.github.zk1931.pulsefs.tree.FileNode;
 import com.github.zk1931.pulsefs.tree.Node;
+import java.util.concurrent.TimeUnit;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.AsyncContext;
 import org.slf4j.Logger;
@@ -41,7 +44,13 @@ public class PutCommand extends Command {
   private static final Logger LOG = LoggerFactory.getLogger(PutCommand.class);
 
   final String path;
-  final byte[] data;
+  byte[] data;
+  // Whether the data is gzip compressed.
+  boolean compressed = false;
+  // The time (in milliseconds since epoch) after which the file gets deleted,
+  // 0 means never. It's decided by the server which receives the request so
+  // all the replicas see the same deadline.
+  long expiresAt = 0;
   final boolean recursive;
   final long version;
   final boolean isTransient;
@@ -56,7 +65,8 @@ public class PutCommand extends Command {
                     boolean ephemeral,
                     long sessionID) {
     this.path = path;
-    this.data = data.clone();
+    // The data is owned by the command, it's shared with the created file.
+    this.data = data;
     this.recursive = recursive;
     this.version = version;
     this.isTransient = isTransient;
@@ -64,34 +74,109 @@ public class PutCommand extends Command {
     this.sessionID = sessionID;
   }
 
+  /**
+   * Compresses the data if it's not smaller than the threshold, so it's
+   * logged, replicated and stored compressed.
+   */
+  void compress(int threshold) {
+    byte[] compressedData = Compression.compress(this.data, threshold);
+    if (compressedData != null) {
+      this.data = compressedData;
+      this.compressed = true;
+    }
+  }
+
+  /**
+   * Deletes the file once the time-to-live has passed since now.
+   */
+  void expireAfter(long ttlSeconds) {
+    this.expiresAt =
+      System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ttlSeconds);
+  }
+
   Node execute(PulseFS pulsefs)
       throws PathNotExist, InvalidPath, VersionNotMatch, DirectoryNode,
-             NotDirectory, NodeAlreadyExist {
-    DataTree tree = pulsefs.getTree();
+             NotDirectory, NodeAlreadyExist, QuotaExceeded {
+    Node node = apply(pulsefs.getTree());
+    if (expiresAt > 0) {
+      pulsefs.scheduleExpiration((FileNode)node);
+    }
+    return node;
+  }
+
+  Node apply(DataTree tree)
+      throws PathNotExist, InvalidPath, VersionNotMatch, DirectoryNode,
+             NotDirectory, NodeAlreadyExist, QuotaExceeded {
+    try {
+      FileNode node = (FileNode)applyInStagingArea(tree);
+      // The node is not visible until the changes get committed. Writing the
+      // file without a time-to-live clears the deadline.
+      tree.setExpiresAtInStagingArea(node.fullPath, expiresAt);
+      tree.commitStagingChanges();
+      return node;
+    } catch (TreeException ex) {
+      tree.abortStagingChanges();
+      throw ex;
+    }
+  }
+
+  Node applyInStagingArea(DataTree tree)
+      throws PathNotExist, InvalidPath, VersionNotMatch, DirectoryNode,
+             NotDirectory, NodeAlreadyExist, QuotaExceeded {
     if (version < -1) {
       // If version is less than -1 then we do creation or set depends on if the
       // path exists in the tree or not.
       if (tree.exist(path)) {
         // If the node exists, treat the command as request of update.
-        return tree.setData(path, data, -1);
+        return tree.setDataInStagingArea(path, data, compressed, -1);
       } else {
-        if (ephemeral) {
-          // Creates ephemeral file.
-          return tree.createSessionFile(path,
-                                        data,
-                                        sessionID,
-                                        recursive,
-                                        isTransient);
-        } else {
-          // Otherwise treat the command as request of creation.
-          return tree.createFile(path, data, recursive, isTransient);
-        }
+        // Otherwise treat the command as request of creation.
+        return create(tree);
       }
     } else if (version == -1) {
       // If the version is -1 then we can only do creation.
-      return tree.createFile(path, data, recursive, isTransient);
+      return create(tree);
     } else {
-      return tree.setData(path, data, version);
+      return tree.setDataInStagingArea(path, data, compressed, version);
+    }
+  }
+
+  Node create(DataTree tree)
+      throws PathNotExist, InvalidPath, NotDirectory, NodeAlreadyExist,
+             QuotaExceeded {
+    if (ephemeral) {
+      // Creates ephemeral file.
+      return tree.createSessionFileInStagingArea(path,
+                                                 data,
+                                                 compressed,
+                                                 sessionID,
+                                                 recursive,
+                                                 isTransient);
+    }
+    return tree.createFileInStagingArea(path, data, compressed, recursive,
+                                        isTransient);
+  }
+
+  @Override
+  Command resolve(DataTree tree) {
+    try {
+      Node node = apply(tree);
+      // Either creates the file or updates the exact version which has been
+      // seen on leader, so replaying it never takes the other branch.
+      long resolvedVersion =
+        node.getVersion() == 0 ? -1 : node.getVersion() - 1;
+      if (resolvedVersion == version) {
+        // Already exact, it is proposed as it is.
+        return this;
+      }
+      PutCommand resolved =
+        new PutCommand(path, data, recursive, resolvedVersion, isTransient,
+                       ephemeral, sessionID);
+      resolved.compressed = compressed;
+      resolved.expiresAt = expiresAt;
+      return resolved;
+    } catch (TreeException ex) {
+      return new RejectedCommand(ex);
     }
   }
 
@@ -101,7 +186,7 @@ public class PutCommand extends Command {
     try {
       Node node = execute(pulsefs);
       Utils.setHeader(node, response);
-      if (node.version == 0) {
+      if (node.getVersion() == 0) {
         Utils.replyCreated(response, context);
       } else {
         Utils.replyOK(response, context);
@@ -110,6 +195,8 @@ public class PutCommand extends Command {
       Utils.replyNotFound(response, ex.getMessage(), context);
     } catch (VersionNotMatch ex) {
       Utils.replyConflict(response, ex.getMessage(), context);
+    } catch (QuotaExceeded ex) {
+      Utils.replyInsufficientStorage(response, ex.getMessage(), context);
     } catch (TreeException ex) {
       Utils.replyBadRequest(response, ex.getMessage(), context);
     }
@@ -0,0 +1,149 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs;
+
+import com.github.zk1931.pulsefs.tree.DataTree;
+import com.github.zk1931.pulsefs.tree.Node;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Command for moving the ownership of sessions between servers. The moves are
+ * planned by leader from the session counts of the servers, and each source
+ * server hands over its sessions on delivery, since only the owner knows the
+ * remaining time of its sessions.
+ */
+public class RebalanceSessionsCommand extends Command {
+
+  private static final long serialVersionUID = 0L;
+
+  /**
+   * Moves a number of sessions from a server to another one.
+   */
+  static class Move implements Serializable {
+    private static final long serialVersionUID = 0L;
+
+    final String from;
+    final String to;
+    final int count;
+
+    Move(String from, String to, int count) {
+      this.from = from;
+      this.to = to;
+      this.count = count;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s->%s:%d", from, to, count);
+    }
+  }
+
+  final List<Move> moves;
+
+  RebalanceSessionsCommand(List<Move> moves) {
+    this.moves = new ArrayList<>(moves);
+  }
+
+  Node execute(PulseFS pulsefs) {
+    for (Move move : moves) {
+      if (move.from.equals(pulsefs.getServerId())) {
+        pulsefs.handOverSessions(move.to, move.count);
+      }
+    }
+    return null;
+  }
+
+  @Override
+  Command resolve(DataTree tree) {
+    // It doesn't change the tree.
+    return this;
+  }
+
+  void executeAndReply(PulseFS pulsefs, Object ctx) {
+  }
+
+  /**
+   * Plans the moves which even out the sessions of the live servers. The
+   * servers which own no more than a tenth of the average above their share
+   * are left alone, so sessions will not be moved back and forth.
+   *
+   * @param counts the number of sessions of each owner.
+   * @param servers the live servers.
+   * @return the moves, empty if the sessions are balanced.
+   */
+  static List<Move> plan(final Map<String, Integer> counts,
+                         Set<String> servers) {
+    List<Move> planned = new ArrayList<>();
+    if (servers.size() < 2) {
+      return planned;
+    }
+    // The servers owning more sessions come first, they get the larger
+    // shares.
+    List<String> sorted = new ArrayList<>(servers);
+    Collections.sort(sorted, new Comparator<String>() {
+      @Override
+      public int compare(String s1, String s2) {
+        int diff = getCount(counts, s2) - getCount(counts, s1);
+        return diff != 0 ? diff : s1.compareTo(s2);
+      }
+    });
+    int total = 0;
+    for (String server : sorted) {
+      total += getCount(counts, server);
+    }
+    int average = total / sorted.size();
+    int slack = Math.max(1, average / 10);
+    int[] surplus = new int[sorted.size()];
+    for (int i = 0; i < sorted.size(); ++i) {
+      int share = average + (i < total % sorted.size() ? 1 : 0);
+      surplus[i] = getCount(counts, sorted.get(i)) - share;
+    }
+    // Sources are at the front and destinations are at the back, the
+    // largest surplus fills the largest deficit first.
+    int dst = sorted.size() - 1;
+    for (int src = 0; src < dst; ++src) {
+      if (surplus[src] <= slack) {
+        continue;
+      }
+      while (surplus[src] > 0) {
+        while (dst > src && surplus[dst] >= 0) {
+          --dst;
+        }
+        if (dst <= src) {
+          break;
+        }
+        int count = Math.min(surplus[src], -surplus[dst]);
+        planned.add(new Move(sorted.get(src), sorted.get(dst), count));
+        surplus[src] -= count;
+        surplus[dst] += count;
+      }
+    }
+    return planned;
+  }
+
+  static int getCount(Map<String, Integer> counts, String server) {
+    Integer count = counts.get(server);
+    return count == null ? 0 : count;
+  }
+}
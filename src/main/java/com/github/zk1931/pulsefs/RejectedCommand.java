@@ -0,0 +1,71 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs;
+
+import com.github.zk1931.pulsefs.tree.DataTree.PathNotExist;
+import com.github.zk1931.pulsefs.tree.DataTree.QuotaExceeded;
+import com.github.zk1931.pulsefs.tree.DataTree.TreeException;
+import com.github.zk1931.pulsefs.tree.DataTree.VersionNotMatch;
+import com.github.zk1931.pulsefs.tree.Node;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.AsyncContext;
+
+/**
+ * Command of a request which has been rejected by leader, it doesn't change
+ * the tree and only replies the error to the client.
+ */
+public class RejectedCommand extends Command {
+
+  private static final long serialVersionUID = 0L;
+
+  final int status;
+  final String message;
+
+  public RejectedCommand(TreeException ex) {
+    if (ex instanceof PathNotExist) {
+      this.status = HttpServletResponse.SC_NOT_FOUND;
+    } else if (ex instanceof VersionNotMatch ||
+               ex instanceof AddCommand.OutOfRange ||
+               ex instanceof LockCommand.LockHeld) {
+      this.status = HttpServletResponse.SC_CONFLICT;
+    } else if (ex instanceof QuotaExceeded) {
+      this.status = Utils.SC_INSUFFICIENT_STORAGE;
+    } else {
+      this.status = HttpServletResponse.SC_BAD_REQUEST;
+    }
+    this.message = ex.getMessage();
+  }
+
+  Node execute(PulseFS pulsefs) {
+    return null;
+  }
+
+  void executeAndReply(PulseFS pulsefs, Object ctx) {
+    AsyncContext context = (AsyncContext)ctx;
+    HttpServletResponse response = (HttpServletResponse)(context.getResponse());
+    if (status == HttpServletResponse.SC_NOT_FOUND) {
+      Utils.replyNotFound(response, message, context);
+    } else if (status == HttpServletResponse.SC_CONFLICT) {
+      Utils.replyConflict(response, message, context);
+    } else if (status == Utils.SC_INSUFFICIENT_STORAGE) {
+      Utils.replyInsufficientStorage(response, message, context);
+    } else {
+      Utils.replyBadRequest(response, message, context);
+    }
+  }
+}
@@ -17,12 +17,14 @@
 
 package com.github.zk1931.pulsefs;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,29 +41,108 @@ public final class Serializer {
   }
 
   /**
-   * Serializes a command to ByteBuffer.
+   * Serializes a command to ByteBuffer. The returned buffer wraps the
+   * serialized bytes without copying them again.
    */
   public static ByteBuffer serialize(Command command) throws IOException {
-    try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    try (ExposedByteArrayOutputStream bos = new ExposedByteArrayOutputStream();
          ObjectOutputStream oos = new ObjectOutputStream(bos)) {
       oos.writeObject(command);
       oos.close();
-      return ByteBuffer.wrap(bos.toByteArray());
+      return bos.toByteBuffer();
     }
   }
 
   /**
-   * Deserializes a ByteBuffer to command.
+   * Deserializes a ByteBuffer to command. The command is read from the
+   * buffer directly, the bytes of the buffer are not copied.
    */
   public static Command deserialize(ByteBuffer bb) {
-    byte[] bytes = new byte[bb.remaining()];
-    bb.get(bytes);
-    try (ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
-         ObjectInputStream ois = new ObjectInputStream(bis)) {
+    try (ObjectInputStream ois =
+           new ObjectInputStream(new ByteBufferInputStream(bb))) {
       return (Command)ois.readObject();
     } catch (ClassNotFoundException|IOException ex) {
       LOG.error("Failed to deserialize: {}", bb, ex);
       throw new RuntimeException("Failed to deserialize ByteBuffer");
     }
   }
+
+  /**
+   * Reads the class name of the serialized command without deserializing
+   * it, the buffer is not consumed.
+   *
+   * @return the class name, or null if it's not at the beginning of the
+   * buffer.
+   */
+  public static String readClassName(ByteBuffer bb) {
+    // The stream header, TC_OBJECT and TC_CLASSDESC come before the length
+    // and the bytes of the name, see java.io.ObjectStreamConstants.
+    int pos = bb.position();
+    if (bb.remaining() < 8 ||
+        bb.getShort(pos) != ObjectStreamConstants.STREAM_MAGIC ||
+        bb.get(pos + 4) != ObjectStreamConstants.TC_OBJECT ||
+        bb.get(pos + 5) != ObjectStreamConstants.TC_CLASSDESC) {
+      return null;
+    }
+    int length = bb.getShort(pos + 6) & 0xffff;
+    if (bb.remaining() < 8 + length) {
+      return null;
+    }
+    byte[] name = new byte[length];
+    ByteBuffer dup = bb.duplicate();
+    dup.position(pos + 8);
+    dup.get(name);
+    // The class names are ASCII.
+    return new String(name, Charset.forName("UTF-8"));
+  }
+
+  /**
+   * ByteArrayOutputStream whose buffer can be wrapped without being copied.
+   */
+  static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+    ExposedByteArrayOutputStream() {
+      super(256);
+    }
+
+    ByteBuffer toByteBuffer() {
+      return ByteBuffer.wrap(this.buf, 0, this.count);
+    }
+  }
+
+  /**
+   * InputStream which reads from a ByteBuffer and consumes it.
+   */
+  static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      return buffer.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int n = Math.min(len, buffer.remaining());
+      buffer.get(bytes, off, n);
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
 }
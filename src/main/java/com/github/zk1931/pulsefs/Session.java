@@ -29,8 +29,12 @@ public class Session implements Delayed {
   final long sessionID;
 
   public Session(long sessionID, long delaySec) {
+    this(sessionID, delaySec, TimeUnit.SECONDS);
+  }
+
+  public Session(long sessionID, long delay, TimeUnit unit) {
     this.sessionID = sessionID;
-    this.delayNs = System.nanoTime() + delaySec * 1000 * 1000 * 1000;
+    this.delayNs = System.nanoTime() + unit.toNanos(delay);
   }
 
   @Override
@@ -18,8 +18,6 @@
 package com.github.zk1931.pulsefs;
 
 import java.io.IOException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -40,8 +38,9 @@ public class SessionFilter implements Filter {
   private static final Logger LOG =
       LoggerFactory.getLogger(SessionFilter.class);
 
+  static final String SESSION_PARAM = "session=";
+
   final PulseFS fs;
-  final Pattern pattern = Pattern.compile("session=(\\d+)");
 
   public SessionFilter(PulseFS fs) {
     this.fs = fs;
@@ -59,21 +58,14 @@ public class SessionFilter implements Filter {
         throw new ServletException("Not HttpServletResponse object");
       }
       HttpServletRequest httpReq = (HttpServletRequest)request;
-      if (httpReq.getQueryString() != null) {
-        Matcher matcher = pattern.matcher(httpReq.getQueryString());
-        if (matcher.find()) {
-          long session = Long.parseLong(matcher.group(1));
-          String sessionPath =
-            String.format("%s/%016d", PulseFSConfig.PULSEFS_SESSIONS_PATH,
-                                      session);
-          if (!this.fs.getTree().exist(sessionPath)) {
-            // Session doesn't exist, reject this request.
-            LOG.debug("session {} doesn't exist, reject request.", session);
-            Utils.replyPrecondFailed((HttpServletResponse)response,
-                                      "Session " + session + " times out");
-            return;
-          }
-        }
+      long session = parseSessionID(httpReq.getQueryString());
+      if (session >= 0 &&
+          !this.fs.getTree().getSessionRegistry().isAlive(session)) {
+        // Session doesn't exist, reject this request.
+        LOG.debug("session {} doesn't exist, reject request.", session);
+        Utils.replyPrecondFailed((HttpServletResponse)response,
+                                  "Session " + session + " times out");
+        return;
       }
       if (!fs.inWorkingState()) {
         Utils.replyServiceUnavailable((HttpServletResponse)response);
@@ -83,6 +75,44 @@ public class SessionFilter implements Filter {
     chain.doFilter(request, response);
   }
 
+  /**
+   * Parses the value of "session" parameter from the query string.
+   *
+   * @param query the query string, could be null.
+   * @return the session ID, or -1 if there's no valid session parameter.
+   */
+  static long parseSessionID(String query) {
+    if (query == null) {
+      return -1;
+    }
+    int idx = query.indexOf(SESSION_PARAM);
+    while (idx >= 0) {
+      // The parameter must start at the beginning of the query or after '&'.
+      if (idx == 0 || query.charAt(idx - 1) == '&') {
+        break;
+      }
+      idx = query.indexOf(SESSION_PARAM, idx + 1);
+    }
+    if (idx < 0) {
+      return -1;
+    }
+    long session = 0;
+    int digits = 0;
+    for (int i = idx + SESSION_PARAM.length(); i < query.length(); ++i) {
+      char ch = query.charAt(i);
+      if (ch < '0' || ch > '9') {
+        break;
+      }
+      if (session > (Long.MAX_VALUE - (ch - '0')) / 10) {
+        // Overflows, not a valid session ID.
+        return -1;
+      }
+      session = session * 10 + (ch - '0');
+      digits++;
+    }
+    return digits == 0 ? -1 : session;
+  }
+
   @Override
   public void init(FilterConfig filterConfig) {
   }
@@ -0,0 +1,76 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs;
+
+import com.github.zk1931.pulsefs.tree.DataTree;
+import com.github.zk1931.pulsefs.tree.DataTree.InvalidPath;
+import com.github.zk1931.pulsefs.tree.DataTree.NotDirectory;
+import com.github.zk1931.pulsefs.tree.DataTree.PathNotExist;
+import com.github.zk1931.pulsefs.tree.DataTree.TreeException;
+import com.github.zk1931.pulsefs.tree.Node;
+import com.github.zk1931.pulsefs.tree.Quota;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.AsyncContext;
+
+/**
+ * Command for setting the quota of directory.
+ */
+public class SetQuotaCommand extends Command {
+
+  private static final long serialVersionUID = 0L;
+
+  final String path;
+  // The limits of the quota, all of them are -1 means removing the quota.
+  final long maxNodes;
+  final long maxBytes;
+  final long softNodes;
+  final long softBytes;
+
+  public SetQuotaCommand(String path, long maxNodes, long maxBytes,
+                         long softNodes, long softBytes) {
+    this.path = path;
+    this.maxNodes = maxNodes;
+    this.maxBytes = maxBytes;
+    this.softNodes = softNodes;
+    this.softBytes = softBytes;
+  }
+
+  Node execute(PulseFS pulsefs)
+      throws PathNotExist, InvalidPath, NotDirectory {
+    DataTree tree = pulsefs.getTree();
+    Quota quota = null;
+    if (maxNodes >= 0 || maxBytes >= 0 || softNodes >= 0 || softBytes >= 0) {
+      quota = new Quota(maxNodes, maxBytes, softNodes, softBytes);
+    }
+    return tree.setQuota(this.path, quota);
+  }
+
+  void executeAndReply(PulseFS pulsefs, Object ctx) {
+    AsyncContext context = (AsyncContext)ctx;
+    HttpServletResponse response = (HttpServletResponse)(context.getResponse());
+    try {
+      Node node = execute(pulsefs);
+      Utils.setHeader(node, response);
+      Utils.replyOK(response, context);
+    } catch (PathNotExist ex) {
+      Utils.replyNotFound(response, ex.getMessage(), context);
+    } catch (TreeException ex) {
+      Utils.replyBadRequest(response, ex.getMessage(), context);
+    }
+  }
+}
@@ -0,0 +1,386 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs;
+
+import com.github.zk1931.jzab.ZabException;
+import com.github.zk1931.pulsefs.tree.DataTree;
+import com.github.zk1931.pulsefs.tree.DirNode;
+import com.github.zk1931.pulsefs.tree.Node;
+import com.github.zk1931.pulsefs.tree.PathUtils;
+import com.github.zk1931.pulsefs.tree.Watch;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The clients of this server waiting on semaphores and barriers. The
+ * conditions of the waiters of a directory are evaluated when a change of
+ * the directory is applied, only the waiters whose conditions become true
+ * are woken up and replied.
+ *
+ * - A semaphore waiter holds a permit once its file is among the first
+ *   "permits" files of the directory.
+ * - A barrier entering waiter passes once the directory has at least "count"
+ *   files.
+ * - A barrier leaving waiter passes once the directory has no file.
+ */
+class SyncWaiters {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SyncWaiters.class);
+
+  static final int SEMAPHORE = 0;
+  static final int ENTER = 1;
+  static final int LEAVE = 2;
+
+  /**
+   * A waiting client.
+   */
+  static class Waiter {
+    final int kind;
+    // The file of the client, null for leaving waiter.
+    final String path;
+    final String dirPath;
+    // The number of permits of semaphore, or the count of barrier.
+    final int threshold;
+    final AsyncContext ctx;
+    final AtomicBoolean isReplied = new AtomicBoolean(false);
+
+    Waiter(int kind,
+           String path,
+           String dirPath,
+           int threshold,
+           AsyncContext ctx) {
+      this.kind = kind;
+      this.path = path;
+      this.dirPath = dirPath;
+      this.threshold = threshold;
+      this.ctx = ctx;
+    }
+  }
+
+  /**
+   * The waiters of a directory.
+   */
+  class Group {
+    final String dirPath;
+    // The semaphore waiters by the names of their files.
+    final TreeMap<String, Waiter> semaphores = new TreeMap<>();
+    int maxPermits = 0;
+    // The entering waiters, the one with the smallest count first.
+    final PriorityQueue<Waiter> enters =
+      new PriorityQueue<>(16, new Comparator<Waiter>() {
+        @Override
+        public int compare(Waiter w1, Waiter w2) {
+          return Integer.compare(w1.threshold, w2.threshold);
+        }
+      });
+    final List<Waiter> leaves = new ArrayList<>();
+    boolean isWatched = false;
+
+    Group(String dirPath) {
+      this.dirPath = dirPath;
+    }
+
+    boolean isEmpty() {
+      return semaphores.isEmpty() && enters.isEmpty() && leaves.isEmpty();
+    }
+
+    void add(Waiter waiter) {
+      if (waiter.kind == SEMAPHORE) {
+        semaphores.put(PathUtils.name(waiter.path), waiter);
+        maxPermits = Math.max(maxPermits, waiter.threshold);
+      } else if (waiter.kind == ENTER) {
+        enters.add(waiter);
+      } else {
+        leaves.add(waiter);
+      }
+    }
+
+    void remove(Waiter waiter) {
+      if (waiter.kind == SEMAPHORE) {
+        semaphores.remove(PathUtils.name(waiter.path));
+      } else if (waiter.kind == ENTER) {
+        enters.remove(waiter);
+      } else {
+        leaves.remove(waiter);
+      }
+    }
+
+    /**
+     * Removes and returns the waiters whose conditions are true. The
+     * semaphore and entering waiters whose files are gone, e.g. their
+     * sessions expired, are removed and added to deleted instead.
+     */
+    List<Waiter> takeSatisfied(DirNode dir, List<Waiter> deleted) {
+      Iterator<Waiter> iter = semaphores.values().iterator();
+      while (iter.hasNext()) {
+        Waiter waiter = iter.next();
+        if (!dir.children.containsKey(PathUtils.name(waiter.path))) {
+          iter.remove();
+          deleted.add(waiter);
+        }
+      }
+      iter = enters.iterator();
+      while (iter.hasNext()) {
+        Waiter waiter = iter.next();
+        if (!dir.children.containsKey(PathUtils.name(waiter.path))) {
+          iter.remove();
+          deleted.add(waiter);
+        }
+      }
+      List<Waiter> satisfied = new ArrayList<>();
+      // Only the files are counted, the sub directories don't hold permits.
+      int count = dir.getFileCount();
+      if (!semaphores.isEmpty()) {
+        // Only the first "maxPermits" files can hold permits.
+        int rank = 0;
+        for (Map.Entry<String, Node> entry : dir.children.entrySet()) {
+          if (rank >= maxPermits || semaphores.isEmpty()) {
+            break;
+          }
+          if (entry.getValue().isDirectory()) {
+            continue;
+          }
+          Waiter waiter = semaphores.get(entry.getKey());
+          if (waiter != null && rank < waiter.threshold) {
+            semaphores.remove(entry.getKey());
+            satisfied.add(waiter);
+          }
+          ++rank;
+        }
+      }
+      while (!enters.isEmpty() && enters.peek().threshold <= count) {
+        satisfied.add(enters.poll());
+      }
+      if (count == 0) {
+        satisfied.addAll(leaves);
+        leaves.clear();
+      }
+      return satisfied;
+    }
+
+    List<Waiter> takeAll() {
+      List<Waiter> all = new ArrayList<>(semaphores.values());
+      all.addAll(enters);
+      all.addAll(leaves);
+      semaphores.clear();
+      enters.clear();
+      leaves.clear();
+      return all;
+    }
+  }
+
+  /**
+   * Watches the changes of the directory after the given version.
+   */
+  class GroupWatch implements Watch {
+    final String dirPath;
+    final long version;
+
+    GroupWatch(String dirPath, long version) {
+      this.dirPath = dirPath;
+      this.version = version;
+    }
+
+    @Override
+    public void trigger(Node node) {
+      onChange(dirPath, node);
+    }
+
+    @Override
+    public String getPath() {
+      return dirPath;
+    }
+
+    @Override
+    public boolean isTriggerable(Node node) {
+      return node.getVersion() != this.version;
+    }
+  }
+
+  private final PulseFS fs;
+  private final Map<String, Group> groups = new HashMap<>();
+
+  SyncWaiters(PulseFS fs) {
+    this.fs = fs;
+  }
+
+  /**
+   * Adds a waiter, it's called by the thread which delivers the changes
+   * after the file of the waiter is created or deleted.
+   */
+  void await(final Waiter waiter, long timeoutMs) {
+    List<Waiter> satisfied;
+    List<Waiter> deleted = new ArrayList<>();
+    synchronized (this) {
+      Group group = groups.get(waiter.dirPath);
+      if (group == null) {
+        group = new Group(waiter.dirPath);
+        groups.put(waiter.dirPath, group);
+      }
+      group.add(waiter);
+      satisfied = evaluate(group, deleted);
+    }
+    if (!satisfied.contains(waiter) && !deleted.contains(waiter) &&
+        timeoutMs > 0) {
+      fs.schedule(new Runnable() {
+        @Override
+        public void run() {
+          timeout(waiter);
+        }
+      }, timeoutMs, TimeUnit.MILLISECONDS);
+    }
+    reply(satisfied);
+    failDeleted(deleted);
+  }
+
+  private void onChange(String dirPath, Node node) {
+    List<Waiter> satisfied;
+    List<Waiter> deleted = new ArrayList<>();
+    synchronized (this) {
+      Group group = groups.get(dirPath);
+      if (group == null) {
+        return;
+      }
+      group.isWatched = false;
+      if (node.getVersion() == -1) {
+        groups.remove(dirPath);
+        fail(group.takeAll(), dirPath + " is deleted");
+        return;
+      }
+      satisfied = evaluate(group, deleted);
+    }
+    reply(satisfied);
+    failDeleted(deleted);
+  }
+
+  /**
+   * Takes the satisfied waiters of the group against the current state of
+   * the directory, and watches the directory if any waiter is left. The
+   * waiters whose files are gone are added to deleted.
+   */
+  private List<Waiter> evaluate(Group group, List<Waiter> deleted) {
+    DataTree tree = fs.getTree();
+    Node node;
+    try {
+      node = tree.getNode(group.dirPath);
+    } catch (DataTree.TreeException ex) {
+      groups.remove(group.dirPath);
+      fail(group.takeAll(), ex.getMessage());
+      return new ArrayList<>();
+    }
+    List<Waiter> satisfied = group.takeSatisfied((DirNode)node, deleted);
+    if (group.isEmpty()) {
+      groups.remove(group.dirPath);
+    } else if (!group.isWatched) {
+      group.isWatched = true;
+      // The changes are applied by the thread which evaluates the waiters,
+      // no change can be missed between the evaluation and the watch.
+      tree.addWatch(new GroupWatch(group.dirPath, node.getVersion()));
+    }
+    return satisfied;
+  }
+
+  private void reply(List<Waiter> satisfied) {
+    DataTree tree = fs.getTree();
+    for (Waiter waiter : satisfied) {
+      if (!waiter.isReplied.compareAndSet(false, true)) {
+        continue;
+      }
+      HttpServletResponse response =
+        (HttpServletResponse)waiter.ctx.getResponse();
+      if (waiter.path == null) {
+        Utils.replyOK(response, waiter.ctx);
+        continue;
+      }
+      try {
+        Node node = tree.getNode(waiter.path);
+        response.addHeader("Location", waiter.path);
+        Utils.setHeader(node, response);
+        Utils.replyCreated(response, waiter.ctx);
+      } catch (DataTree.TreeException ex) {
+        Utils.replyNotFound(response, ex.getMessage(), waiter.ctx);
+      }
+    }
+  }
+
+  private void fail(List<Waiter> waiters, String message) {
+    for (Waiter waiter : waiters) {
+      if (waiter.isReplied.compareAndSet(false, true)) {
+        HttpServletResponse response =
+          (HttpServletResponse)waiter.ctx.getResponse();
+        Utils.replyNotFound(response, message, waiter.ctx);
+      }
+    }
+  }
+
+  /**
+   * Replies the waiters whose files are deleted before their conditions
+   * become true, the same way as LockWaiter.
+   */
+  private void failDeleted(List<Waiter> waiters) {
+    for (Waiter waiter : waiters) {
+      if (waiter.isReplied.compareAndSet(false, true)) {
+        HttpServletResponse response =
+          (HttpServletResponse)waiter.ctx.getResponse();
+        Utils.replyNotFound(response, waiter.path + " is deleted",
+                            waiter.ctx);
+      }
+    }
+  }
+
+  /**
+   * Gives up waiting, the file of the waiter gets deleted.
+   */
+  void timeout(Waiter waiter) {
+    if (!waiter.isReplied.compareAndSet(false, true)) {
+      return;
+    }
+    synchronized (this) {
+      Group group = groups.get(waiter.dirPath);
+      if (group != null) {
+        group.remove(waiter);
+      }
+    }
+    if (waiter.path != null) {
+      try {
+        fs.proposeStateChange(new DeleteCommand(waiter.path, false, -1),
+                              null);
+      } catch (IOException | ZabException ex) {
+        // The file will be deleted once its session expires.
+        LOG.warn("Failed to delete {}", waiter.path, ex);
+      }
+    }
+    HttpServletResponse response =
+      (HttpServletResponse)waiter.ctx.getResponse();
+    Utils.replyConflict(response, "Timed out waiting for " + waiter.dirPath,
+                        waiter.ctx);
+  }
+}
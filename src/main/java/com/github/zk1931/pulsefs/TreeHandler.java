@@ -21,8 +21,11 @@ import com.github.zk1931.jzab.ZabException;
 import com.github.zk1931.pulsefs.tree.DataTree;
 import com.github.zk1931.pulsefs.tree.PathUtils;
 import com.github.zk1931.pulsefs.tree.Node;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 import java.io.IOException;
-import java.util.concurrent.locks.Lock;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
 import javax.servlet.AsyncContext;
 import javax.servlet.AsyncEvent;
 import javax.servlet.AsyncListener;
@@ -43,6 +46,7 @@ public class  TreeHandler extends HttpServlet {
 
   private static final Logger LOG =
       LoggerFactory.getLogger(TreeHandler.class);
+  private static final Charset UTF8 = Charset.forName("UTF-8");
 
   protected final PulseFS fs;
 
@@ -58,13 +62,22 @@ public class  TreeHandler extends HttpServlet {
     boolean recursive;
     boolean wait;
     long version = -1;
+    boolean delta;
+    long coalesceMs = 0;
     try {
       // Parse the query parameters.
       recursive = request.getParameter("recursive") != null;
+      delta = request.getParameter("delta") != null;
       wait = request.getParameter("wait") != null;
       if (wait) {
         version = Long.parseLong(request.getParameter("wait"));
       }
+      if (request.getParameter("coalesce") != null) {
+        coalesceMs = Long.parseLong(request.getParameter("coalesce"));
+        if (coalesceMs <= 0) {
+          throw new IllegalArgumentException("coalesce must be positive");
+        }
+      }
     } catch (IllegalArgumentException ex) {
       Utils.replyBadRequest(response, ex.getMessage());
       return;
@@ -77,11 +90,12 @@ public class  TreeHandler extends HttpServlet {
         // watch/Put requests will be processed within single thread.
         //long version = Long.parseLong(options.get("wait"));
         AsyncContext context = getContext(request, response);
-        processWatchRequest(context, tree, path, version, recursive);
+        processWatchRequest(context, tree, path, version, recursive, delta,
+                            coalesceMs);
       } else {
         // If it's not watch request, serves it directly.
         Node node = tree.getNode(path);
-        Utils.replyNodeInfo(response, node, recursive);
+        Utils.replyNodeInfo(request, response, node, recursive);
       }
     } catch (DataTree.InvalidPath | NumberFormatException ex) {
       Utils.replyBadRequest(response, ex.getMessage());
@@ -103,6 +117,11 @@ public class  TreeHandler extends HttpServlet {
     boolean isTransient;
     boolean ephemeral;
     long sessionID = -1;
+    long ttl = 0;
+    if (request.getParameter("quota") != null) {
+      setQuota(path, request, response, context);
+      return;
+    }
     byte[] data = Utils.readData(request);
     try {
       // Parse the query parameters.
@@ -120,6 +139,13 @@ public class  TreeHandler extends HttpServlet {
         throw new IllegalArgumentException("Must specify session for " +
             "ephemeral node.");
       }
+      if (request.getParameter("ttl") != null) {
+        ttl = Long.parseLong(request.getParameter("ttl"));
+        if (ttl <= 0 || dir) {
+          throw new IllegalArgumentException("ttl must be positive and " +
+              "only applies to files.");
+        }
+      }
     } catch (IllegalArgumentException ex) {
       Utils.replyBadRequest(response, ex.getMessage());
       return;
@@ -130,8 +156,13 @@ public class  TreeHandler extends HttpServlet {
         // Means it's a directory.
         cmd = new CreateDirCommand(path, recursive);
       } else {
-        cmd = new PutCommand(path, data, recursive, version,
-                             isTransient, ephemeral, sessionID);
+        PutCommand put = new PutCommand(path, data, recursive, version,
+                                        isTransient, ephemeral, sessionID);
+        put.compress(this.fs.getConfig().getCompressThreshold());
+        if (ttl > 0) {
+          put.expireAfter(ttl);
+        }
+        cmd = put;
       }
       this.fs.proposeStateChange(cmd, context);
     } catch (ZabException ex) {
@@ -139,12 +170,69 @@ public class  TreeHandler extends HttpServlet {
     }
   }
 
+  /**
+   * Handles PUT /path?quota&nodes=N&bytes=B[&softnodes=N&softbytes=B]. The
+   * soft limits default to 90% of the hard limits, no limits at all removes
+   * the quota of the directory.
+   */
+  void setQuota(String path,
+                HttpServletRequest request,
+                HttpServletResponse response,
+                AsyncContext context) throws IOException {
+    long maxNodes;
+    long maxBytes;
+    long softNodes;
+    long softBytes;
+    try {
+      maxNodes = parseLimit(request, "nodes", -1);
+      maxBytes = parseLimit(request, "bytes", -1);
+      softNodes = parseLimit(request, "softnodes", softLimit(maxNodes));
+      softBytes = parseLimit(request, "softbytes", softLimit(maxBytes));
+    } catch (IllegalArgumentException ex) {
+      Utils.replyBadRequest(response, ex.getMessage(), context);
+      return;
+    }
+    try {
+      Command cmd =
+        new SetQuotaCommand(path, maxNodes, maxBytes, softNodes, softBytes);
+      this.fs.proposeStateChange(cmd, context);
+    } catch (ZabException ex) {
+      Utils.replyServiceUnavailable(response, context);
+    }
+  }
+
+  static long parseLimit(HttpServletRequest request,
+                         String name,
+                         long defaultValue) {
+    String value = request.getParameter(name);
+    if (value == null) {
+      return defaultValue;
+    }
+    long limit = Long.parseLong(value);
+    if (limit < 0) {
+      throw new IllegalArgumentException(name + " can't be negative");
+    }
+    return limit;
+  }
+
+  static long softLimit(long limit) {
+    return limit < 0 ? -1 : limit * 9 / 10;
+  }
+
   @Override
   protected void doDelete(HttpServletRequest request,
                           HttpServletResponse response)
       throws ServletException, IOException {
     String path = request.getRequestURI();
     AsyncContext context = getContext(request, response);
+    if (request.getParameter("dequeue") != null) {
+      dequeue(path, request, response, context);
+      return;
+    }
+    if (request.getParameter("leave") != null) {
+      leave(path, request, response, context);
+      return;
+    }
     boolean recursive;
     long version = -1;
     try {
@@ -171,10 +259,188 @@ public class  TreeHandler extends HttpServlet {
       throws ServletException, IOException {
     String path = request.getRequestURI();
     AsyncContext context = getContext(request, response);
+    if (request.getParameter("add") != null) {
+      add(path, request, response, context);
+      return;
+    }
+    if (request.getParameter("enqueue") != null) {
+      enqueue(path, request, response, context);
+      return;
+    }
     byte[] data = Utils.readData(request);
     boolean recursive = request.getParameter("recursive") != null;
+    boolean ephemeral = request.getParameter("ephemeral") != null;
+    boolean lock = request.getParameter("lock") != null;
+    String enter = request.getParameter("enter");
+    String waitParam = request.getParameter("wait");
+    long sessionID = -1;
+    long timeoutMs = 0;
+    int permits = 1;
+    int count = 0;
+    try {
+      if (request.getParameter("session") != null) {
+        sessionID = Long.parseLong(request.getParameter("session"));
+      }
+      if (request.getParameter("permits") != null) {
+        permits = Integer.parseInt(request.getParameter("permits"));
+        if (permits <= 0) {
+          throw new IllegalArgumentException("permits must be positive");
+        }
+      }
+      if (enter != null) {
+        count = Integer.parseInt(enter);
+        if (count <= 0) {
+          throw new IllegalArgumentException("enter must be positive");
+        }
+      }
+      if (sessionID < 0 && (ephemeral || lock || enter != null)) {
+        throw new IllegalArgumentException("Must specify session for " +
+            "ephemeral node.");
+      }
+      if (waitParam != null && !waitParam.isEmpty()) {
+        timeoutMs = TimeUnit.SECONDS.toMillis(Long.parseLong(waitParam));
+        if (timeoutMs <= 0) {
+          throw new IllegalArgumentException("wait must be positive");
+        }
+      }
+    } catch (IllegalArgumentException ex) {
+      Utils.replyBadRequest(response, ex.getMessage(), context);
+      return;
+    }
+    try {
+      Command cmd;
+      if (lock) {
+        cmd = new LockCommand(path, sessionID, permits, waitParam != null,
+                              timeoutMs);
+      } else if (enter != null) {
+        cmd = new EnterBarrierCommand(path, sessionID, count, timeoutMs);
+      } else {
+        CreateSeqFileCommand create =
+          new CreateSeqFileCommand(path, data, recursive,
+                                   ephemeral ? sessionID : -1);
+        create.compress(this.fs.getConfig().getCompressThreshold());
+        cmd = create;
+      }
+      this.fs.proposeStateChange(cmd, context);
+    } catch (ZabException ex) {
+      Utils.replyServiceUnavailable(response, context);
+    }
+  }
+
+  /**
+   * Handles POST /path?add=delta[&min=N][&max=N][&recursive], which adds the
+   * delta to the counter and replies the new value.
+   */
+  void add(String path,
+           HttpServletRequest request,
+           HttpServletResponse response,
+           AsyncContext context) throws IOException {
+    long delta;
+    long min = Long.MIN_VALUE;
+    long max = Long.MAX_VALUE;
+    boolean recursive = request.getParameter("recursive") != null;
     try {
-      Command cmd = new CreateSeqFileCommand(path, data, recursive);
+      delta = Long.parseLong(request.getParameter("add"));
+      if (request.getParameter("min") != null) {
+        min = Long.parseLong(request.getParameter("min"));
+      }
+      if (request.getParameter("max") != null) {
+        max = Long.parseLong(request.getParameter("max"));
+      }
+    } catch (IllegalArgumentException ex) {
+      Utils.replyBadRequest(response, ex.getMessage(), context);
+      return;
+    }
+    try {
+      Command cmd = new AddCommand(path, delta, min, max, recursive);
+      this.fs.proposeStateChange(cmd, context);
+    } catch (ZabException ex) {
+      Utils.replyServiceUnavailable(response, context);
+    }
+  }
+
+  /**
+   * Handles POST /queue?enqueue, the body is a JSON array of the items.
+   */
+  void enqueue(String path,
+               HttpServletRequest request,
+               HttpServletResponse response,
+               AsyncContext context) throws IOException {
+    byte[][] items;
+    try {
+      String body = new String(Utils.readData(request), UTF8);
+      String[] values = new Gson().fromJson(body, String[].class);
+      if (values == null || values.length == 0) {
+        throw new IllegalArgumentException("No item to enqueue");
+      }
+      items = new byte[values.length][];
+      for (int i = 0; i < values.length; ++i) {
+        items[i] = values[i] == null ? new byte[0] : values[i].getBytes(UTF8);
+      }
+    } catch (JsonParseException | IllegalArgumentException ex) {
+      Utils.replyBadRequest(response, ex.getMessage(), context);
+      return;
+    }
+    try {
+      this.fs.proposeStateChange(new EnqueueCommand(path, items), context);
+    } catch (ZabException ex) {
+      Utils.replyServiceUnavailable(response, context);
+    }
+  }
+
+  /**
+   * Handles DELETE /barrier/file?leave[&wait=sec], which deletes the file of
+   * the participant and replies once the barrier directory is empty.
+   */
+  void leave(String path,
+             HttpServletRequest request,
+             HttpServletResponse response,
+             AsyncContext context) throws IOException {
+    String waitParam = request.getParameter("wait");
+    long timeoutMs = 0;
+    try {
+      if (waitParam != null && !waitParam.isEmpty()) {
+        timeoutMs = TimeUnit.SECONDS.toMillis(Long.parseLong(waitParam));
+        if (timeoutMs <= 0) {
+          throw new IllegalArgumentException("wait must be positive");
+        }
+      }
+    } catch (IllegalArgumentException ex) {
+      Utils.replyBadRequest(response, ex.getMessage(), context);
+      return;
+    }
+    try {
+      this.fs.proposeStateChange(new LeaveBarrierCommand(path, timeoutMs),
+                                 context);
+    } catch (ZabException ex) {
+      Utils.replyServiceUnavailable(response, context);
+    }
+  }
+
+  /**
+   * Handles DELETE /queue?dequeue[&wait[=sec]], which removes and replies the
+   * head of the queue. With "wait" the request waits for an item if the
+   * queue is empty, forever if no timeout is given.
+   */
+  void dequeue(String path,
+               HttpServletRequest request,
+               HttpServletResponse response,
+               AsyncContext context) throws IOException {
+    String waitParam = request.getParameter("wait");
+    long timeoutMs = 0;
+    try {
+      if (waitParam != null && !waitParam.isEmpty()) {
+        timeoutMs = TimeUnit.SECONDS.toMillis(Long.parseLong(waitParam));
+        if (timeoutMs <= 0) {
+          throw new IllegalArgumentException("wait must be positive");
+        }
+      }
+    } catch (IllegalArgumentException ex) {
+      Utils.replyBadRequest(response, ex.getMessage(), context);
+      return;
+    }
+    try {
+      Command cmd = new DequeueCommand(path, waitParam != null, timeoutMs);
       this.fs.proposeStateChange(cmd, context);
     } catch (ZabException ex) {
       Utils.replyServiceUnavailable(response, context);
@@ -195,38 +461,42 @@ public class  TreeHandler extends HttpServlet {
                            DataTree tree,
                            String path,
                            long version,
-                           boolean recursive) {
+                           boolean recursive,
+                           boolean delta,
+                           long coalesceMs) {
     HttpServletResponse response = (HttpServletResponse)(ctx.getResponse());
-    HttpWatch watch = new HttpWatch(version, recursive, path, ctx);
+    HttpWatch watch =
+      new HttpWatch(version, recursive, delta, path, ctx,
+                    coalesceMs > 0 ? this.fs.getWatchCoalescer() : null,
+                    coalesceMs);
+    // Registers the watch first and then verifies the state of the node, so
+    // any change committed after the verification will trigger the watch,
+    // and the change committed before it will be caught by the verification.
+    // The watch is fired only once even both of them trigger it.
+    tree.addWatch(watch);
     Node node;
-    Lock rLock = tree.getReadLock();
     try {
-      // Since in deliver threads the tree might get changesd, before reading
-      // the state we need to grab the read lock.
-      rLock.lock();
-      try {
-        node = tree.getNode(path);
-      } catch (DataTree.PathNotExist ex) {
-        node = null;
-        if (version != 0) {
+      node = tree.getNode(path);
+    } catch (DataTree.PathNotExist ex) {
+      if (version != 0) {
+        tree.removeWatch(watch);
+        if (watch.cancel()) {
           Utils.replyNotFound(response, ex.getMessage(), ctx);
-        } else {
-          tree.addWatch(watch);
-        }
-      }
-      if (node != null) {
-        if (watch.isTriggerable(node)) {
-          // The watch is for the version and it's triggerable now, triggers
-          // it directly.
-          watch.trigger(node);
-        } else {
-          tree.addWatch(watch);
         }
       }
+      return;
     } catch (DataTree.TreeException ex) {
-      Utils.replyBadRequest(response, ex.getMessage(), ctx);
-    } finally {
-      rLock.unlock();
+      tree.removeWatch(watch);
+      if (watch.cancel()) {
+        Utils.replyBadRequest(response, ex.getMessage(), ctx);
+      }
+      return;
+    }
+    if (watch.isTriggerable(node)) {
+      // The watch is for the version and it's triggerable now, triggers
+      // it directly.
+      tree.removeWatch(watch);
+      watch.trigger(node);
     }
   }
 
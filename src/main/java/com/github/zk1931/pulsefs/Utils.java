@@ -17,17 +17,23 @@
 
 package com.github.zk1931.pulsefs;
 
+import com.github.zk1931.pulsefs.tree.ChildDelta;
 import com.github.zk1931.pulsefs.tree.DirNode;
 import com.github.zk1931.pulsefs.tree.FileNode;
 import com.github.zk1931.pulsefs.tree.Node;
+import com.github.zk1931.pulsefs.tree.Quota;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.stream.JsonWriter;
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
 import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.HttpOutput;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,6 +44,9 @@ public final class Utils {
 
   private static final Logger LOG = LoggerFactory.getLogger(Utils.class);
 
+  /** HTTP 507, which HttpServletResponse has no constant for. */
+  public static final int SC_INSUFFICIENT_STORAGE = 507;
+
   private Utils() {}
 
   public static byte[] readData(HttpServletRequest request) throws IOException {
@@ -59,9 +68,13 @@ public final class Utils {
   }
 
   public static void setHeader(Node node, HttpServletResponse response) {
-    response.addHeader("version", Long.toString(node.version));
+    response.addHeader("version", Long.toString(node.getVersion()));
     response.addHeader("type", node.getNodeName());
     response.addHeader("checksum", String.format("%08X", node.getChecksum()));
+    if (node instanceof FileNode && ((FileNode)node).getExpiresAt() > 0) {
+      response.addHeader("expires-at",
+                         Long.toString(((FileNode)node).getExpiresAt()));
+    }
   }
 
   public static void replyBadRequest(HttpServletResponse response,
@@ -128,6 +141,16 @@ public final class Utils {
     }
   }
 
+  /**
+   * Redirects the client to the given URL, the method and the body of the
+   * request are kept.
+   */
+  public static void replyTemporaryRedirect(HttpServletResponse response,
+                                            String location) {
+    response.setHeader("Location", location);
+    response.setStatus(HttpServletResponse.SC_TEMPORARY_REDIRECT);
+  }
+
   public static void replyConflict(HttpServletResponse response, String desc) {
     replyConflict(response, desc, null);
   }
@@ -141,6 +164,15 @@ public final class Utils {
     }
   }
 
+  public static void replyInsufficientStorage(HttpServletResponse response,
+                                              String desc,
+                                              AsyncContext ctx) {
+    response.setStatus(SC_INSUFFICIENT_STORAGE, desc);
+    if (ctx != null) {
+      ctx.complete();
+    }
+  }
+
   public static void replyForbidden(HttpServletResponse response) {
     replyForbidden(response, null);
   }
@@ -180,19 +212,40 @@ public final class Utils {
     }
   }
 
-  public static void replyNodeInfo(HttpServletResponse response,
+  public static void replyNodeInfo(HttpServletRequest request,
+                                   HttpServletResponse response,
                                    Node node,
                                    boolean recursive) throws IOException {
-    replyNodeInfo(response, node, recursive, null);
+    replyNodeInfo(request, response, node, recursive, null);
   }
 
   public static void replyNodeInfo(HttpServletResponse response,
                                    Node node,
                                    boolean recursive,
                                    AsyncContext ctx) throws IOException {
+    replyNodeInfo((HttpServletRequest)ctx.getRequest(), response, node,
+                  recursive, ctx);
+  }
+
+  static void replyNodeInfo(HttpServletRequest request,
+                            HttpServletResponse response,
+                            Node node,
+                            boolean recursive,
+                            AsyncContext ctx) throws IOException {
     setHeader(node, response);
     if (node instanceof FileNode) {
-      response.getOutputStream().write(((FileNode)node).data);
+      FileNode file = (FileNode)node;
+      if (!file.isCompressed()) {
+        writeData(file, response.getOutputStream());
+      } else if (Compression.acceptsGzip(request)) {
+        // Serves the compressed data as-is.
+        response.addHeader("Content-Encoding", Compression.GZIP);
+        response.addHeader("Vary", "Accept-Encoding");
+        writeData(file, response.getOutputStream());
+      } else {
+        response.addHeader("Vary", "Accept-Encoding");
+        Compression.decompress(file.getData(), response.getOutputStream());
+      }
     } else {
       JsonWriter writer = new JsonWriter(response.getWriter());
       // 2-space indentation.
@@ -202,22 +255,152 @@ public final class Utils {
     replyOK(response, ctx);
   }
 
+  static void writeData(FileNode file, ServletOutputStream out)
+      throws IOException {
+    ByteBuffer buffer = file.getReadOnlyBuffer();
+    if (buffer != null && out instanceof HttpOutput) {
+      // Jetty writes the buffer to the socket directly, the values in the
+      // value log are sent from the page cache.
+      ((HttpOutput)out).sendContent(buffer);
+    } else {
+      file.writeTo(out);
+    }
+  }
+
+  /**
+   * Replies the status of each session of a bulk pulse request as a JSON
+   * object keyed by session ID.
+   */
+  public static void replySessionsStatus(HttpServletResponse response,
+                                         Map<Long, String> status,
+                                         AsyncContext ctx) throws IOException {
+    JsonWriter writer = new JsonWriter(response.getWriter());
+    // 2-space indentation.
+    writer.setIndent("  ");
+    writer.beginObject();
+    for (Map.Entry<Long, String> entry : status.entrySet()) {
+      writer.name(String.format("%016d", entry.getKey()))
+            .value(entry.getValue());
+    }
+    writer.endObject();
+    writer.flush();
+    replyOK(response, ctx);
+  }
+
+  /**
+   * Replies the number of sessions owned by each server as a JSON object.
+   */
+  public static void replySessionCounts(HttpServletResponse response,
+                                        Map<String, Integer> counts)
+      throws IOException {
+    JsonWriter writer = new JsonWriter(response.getWriter());
+    // 2-space indentation.
+    writer.setIndent("  ");
+    writer.beginObject();
+    for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+      writer.name(entry.getKey()).value(entry.getValue());
+    }
+    writer.endObject();
+    writer.flush();
+    replyOK(response);
+  }
+
+  /**
+   * Replies the statistics as a JSON object.
+   */
+  public static void replyStats(HttpServletResponse response,
+                                Map<String, Long> stats) throws IOException {
+    JsonWriter writer = new JsonWriter(response.getWriter());
+    // 2-space indentation.
+    writer.setIndent("  ");
+    writer.beginObject();
+    for (Map.Entry<String, Long> entry : stats.entrySet()) {
+      writer.name(entry.getKey()).value(entry.getValue());
+    }
+    writer.endObject();
+    writer.flush();
+    replyOK(response);
+  }
+
+  /**
+   * Replies the changes of the children of a directory, the added and the
+   * modified children with their metadata and the removed ones with their
+   * paths.
+   */
+  static void replyChildDelta(HttpServletResponse response,
+                              ChildDelta delta,
+                              AsyncContext ctx) throws IOException {
+    DirNode node = delta.newNode;
+    setHeader(node, response);
+    JsonWriter writer = new JsonWriter(response.getWriter());
+    // 2-space indentation.
+    writer.setIndent("  ");
+    writer.beginObject();
+    writer.name("version").value(node.getVersion());
+    writer.name("path").value(node.fullPath);
+    writer.name("type").value(node.getNodeName());
+    writer.name("checksum").value(String.format("%08X", node.getChecksum()));
+    writer.name("since").value(delta.oldNode.getVersion());
+    writer.name("added").beginArray();
+    for (Node child : delta.added) {
+      writeMetadata(child, writer);
+    }
+    writer.endArray();
+    writer.name("modified").beginArray();
+    for (Node child : delta.modified) {
+      writeMetadata(child, writer);
+    }
+    writer.endArray();
+    writer.name("removed").beginArray();
+    for (Node child : delta.removed) {
+      writer.value(child.fullPath);
+    }
+    writer.endArray();
+    writer.endObject();
+    writer.flush();
+    replyOK(response, ctx);
+  }
+
   static void writeMetadata(Node node, JsonWriter writer) throws IOException {
     writer.beginObject();
-    writer.name("version").value(node.version);
+    writer.name("version").value(node.getVersion());
     writer.name("path").value(node.fullPath);
     writer.name("type").value(node.getNodeName());
     writer.name("checksum").value(String.format("%08X", node.getChecksum()));
+    if (node instanceof DirNode) {
+      writeAggregates((DirNode)node, writer);
+    } else if (node instanceof FileNode &&
+               ((FileNode)node).getExpiresAt() > 0) {
+      writer.name("expiresAt").value(((FileNode)node).getExpiresAt());
+    }
     writer.endObject();
   }
 
+  static void writeAggregates(DirNode node, JsonWriter writer)
+      throws IOException {
+    writer.name("descendants").value(node.getDescendantCount());
+    writer.name("dataBytes").value(node.getDataBytes());
+    writer.name("ephemerals").value(node.getEphemeralCount());
+    writer.name("maxDepth").value(node.getMaxDepth());
+    Quota quota = node.getQuota();
+    if (quota != null) {
+      writer.name("quota").beginObject();
+      writer.name("nodes").value(quota.maxNodes);
+      writer.name("bytes").value(quota.maxBytes);
+      writer.name("softNodes").value(quota.softNodes);
+      writer.name("softBytes").value(quota.softBytes);
+      writer.endObject();
+    }
+  }
+
   static void writeDir(Node node, JsonWriter writer, boolean recursive)
       throws IOException {
     writer.beginObject();
-    writer.name("version").value(node.version);
+    writer.name("version").value(node.getVersion());
     writer.name("path").value(node.fullPath);
     writer.name("type").value(node.getNodeName());
     writer.name("checksum").value(String.format("%08X", node.getChecksum()));
+    writeAggregates((DirNode)node, writer);
     writer.name("children");
     writeChildren(node, writer, recursive);
     writer.endObject();
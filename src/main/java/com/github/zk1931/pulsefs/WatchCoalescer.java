@@ -0,0 +1,131 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs;
+
+import com.github.zk1931.pulsefs.tree.DataTree;
+import com.github.zk1931.pulsefs.tree.Node;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces the notifications of the watches on high-churn paths. The first
+ * triggered watch of a path is replied directly and opens a window, the
+ * watches triggered within the window are replied together with the latest
+ * state of the path once it closes. So each path is notified at most once per
+ * window no matter how fast it changes.
+ */
+class WatchCoalescer {
+
+  /**
+   * The window of a path, it closes itself when it runs.
+   */
+  class Window implements Runnable {
+    final String path;
+    final long windowMs;
+    // The watches triggered within the window.
+    List<HttpWatch> pending = new ArrayList<>();
+    boolean isClosed = false;
+
+    Window(String path, long windowMs) {
+      this.path = path;
+      this.windowMs = windowMs;
+    }
+
+    @Override
+    public void run() {
+      close(this);
+    }
+  }
+
+  private final PulseFS fs;
+  private final ScheduledExecutorService scheduler;
+  // The open windows by path.
+  private final ConcurrentMap<String, Window> windows =
+    new ConcurrentHashMap<>();
+
+  WatchCoalescer(PulseFS fs, ScheduledExecutorService scheduler) {
+    this.fs = fs;
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * Called once the watch is triggered by the node.
+   */
+  void notify(HttpWatch watch, Node node) {
+    while (true) {
+      Window window = windows.get(watch.path);
+      if (window == null) {
+        window = new Window(watch.path, watch.coalesceMs);
+        if (windows.putIfAbsent(watch.path, window) == null) {
+          scheduler.schedule(window, window.windowMs, TimeUnit.MILLISECONDS);
+          watch.reply(node);
+          return;
+        }
+        continue;
+      }
+      synchronized (window) {
+        if (!window.isClosed) {
+          window.pending.add(watch);
+          return;
+        }
+      }
+      // The window has just been closed, retry with a new one.
+    }
+  }
+
+  /**
+   * Replies the pending watches with the latest state of the path and opens
+   * the next window, or removes the window if nothing is pending.
+   */
+  void close(Window window) {
+    List<HttpWatch> watches;
+    synchronized (window) {
+      if (window.pending.isEmpty()) {
+        window.isClosed = true;
+        windows.remove(window.path, window);
+        return;
+      }
+      watches = window.pending;
+      window.pending = new ArrayList<>();
+    }
+    scheduler.schedule(window, window.windowMs, TimeUnit.MILLISECONDS);
+    Node node = latest(window.path);
+    for (HttpWatch watch : watches) {
+      watch.reply(node);
+    }
+  }
+
+  /**
+   * Returns the latest state of the path, null if it doesn't exist.
+   */
+  Node latest(String path) {
+    try {
+      return this.fs.getTree().getNode(path);
+    } catch (DataTree.TreeException ex) {
+      return null;
+    }
+  }
+
+  int size() {
+    return windows.size();
+  }
+}
@@ -0,0 +1,96 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs.tree;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Adler32;
+
+/**
+ * Computes the Adler32 checksum of the fields of a node. The fields are
+ * encoded the same way as DataOutputStream does and streamed into the
+ * checksum through a small buffer, large byte arrays are never copied.
+ */
+final class ChecksumBuilder {
+
+  private final Adler32 adler = new Adler32();
+  private final byte[] buffer = new byte[256];
+  private int count = 0;
+
+  /**
+   * Adds a long in big-endian, the same as DataOutputStream#writeLong.
+   */
+  ChecksumBuilder putLong(long value) {
+    if (count + 8 > buffer.length) {
+      flush();
+    }
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      buffer[count++] = (byte)(value >>> shift);
+    }
+    return this;
+  }
+
+  /**
+   * Adds the low byte of each char of the string, the same as
+   * DataOutputStream#writeBytes.
+   */
+  ChecksumBuilder putBytes(String str) {
+    for (int i = 0; i < str.length(); ++i) {
+      if (count == buffer.length) {
+        flush();
+      }
+      buffer[count++] = (byte)str.charAt(i);
+    }
+    return this;
+  }
+
+  /**
+   * Adds the bytes of the array.
+   */
+  ChecksumBuilder putBytes(byte[] bytes) {
+    flush();
+    adler.update(bytes, 0, bytes.length);
+    return this;
+  }
+
+  /**
+   * Adds the remaining bytes of the buffer.
+   */
+  ChecksumBuilder putBytes(ByteBuffer bytes) {
+    while (bytes.hasRemaining()) {
+      if (count == buffer.length) {
+        flush();
+      }
+      int length = Math.min(bytes.remaining(), buffer.length - count);
+      bytes.get(buffer, count, length);
+      count += length;
+    }
+    return this;
+  }
+
+  long getValue() {
+    flush();
+    return adler.getValue();
+  }
+
+  private void flush() {
+    if (count > 0) {
+      adler.update(buffer, 0, count);
+      count = 0;
+    }
+  }
+}
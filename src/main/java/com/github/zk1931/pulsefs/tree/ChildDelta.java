@@ -0,0 +1,71 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs.tree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The changes of the children of a directory between two of its versions.
+ * The unchanged children are shared by both versions, so they're skipped by
+ * comparing the references only.
+ */
+public class ChildDelta {
+
+  public final DirNode oldNode;
+  public final DirNode newNode;
+  public final List<Node> added = new ArrayList<>();
+  public final List<Node> modified = new ArrayList<>();
+  // The old children which have been removed.
+  public final List<Node> removed = new ArrayList<>();
+
+  ChildDelta(DirNode oldNode, DirNode newNode) {
+    this.oldNode = oldNode;
+    this.newNode = newNode;
+  }
+
+  /**
+   * Computes the changes of the children from the old directory to the new
+   * one.
+   *
+   * @param oldNode the old version of the directory.
+   * @param newNode the new version of the directory.
+   * @return the changes of the children.
+   */
+  public static ChildDelta diff(DirNode oldNode, DirNode newNode) {
+    ChildDelta delta = new ChildDelta(oldNode, newNode);
+    for (Map.Entry<String, Node> entry : newNode.children.entrySet()) {
+      Node oldChild = oldNode.children.get(entry.getKey());
+      if (oldChild == null) {
+        delta.added.add(entry.getValue());
+      } else if (oldChild != entry.getValue()) {
+        delta.modified.add(entry.getValue());
+      }
+    }
+    if (oldNode.children.size() + delta.added.size() !=
+        newNode.children.size()) {
+      for (Map.Entry<String, Node> entry : oldNode.children.entrySet()) {
+        if (!newNode.children.containsKey(entry.getKey())) {
+          delta.removed.add(entry.getValue());
+        }
+      }
+    }
+    return delta;
+  }
+}
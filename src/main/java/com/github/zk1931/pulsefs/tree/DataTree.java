@@ -24,14 +24,18 @@ import static com.github.zk1931.pulsefs.tree.PathUtils.trimRoot;
 import static com.github.zk1931.pulsefs.tree.PathUtils.ROOT_PATH;
 import static com.github.zk1931.pulsefs.tree.PathUtils.SEP;
 import static com.github.zk1931.pulsefs.tree.PathUtils.validatePath;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.LinkedList;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,59 +44,236 @@ import org.slf4j.LoggerFactory;
  */
 public class DataTree {
 
-  public DirNode root = null;
+  // The root is published by volatile write, readers always see a fully
+  // constructed immutable tree without grabbing any lock.
+  public volatile DirNode root = null;
   private DirNode stagingRoot = null;
-  private final List<Node> changedNodes = new LinkedList<Node>();
-  private final ReadWriteLock rwLock = new ReentrantReadWriteLock();
+  final List<Node> changedNodes = new ArrayList<Node>();
+  // The owner of the directories which can be edited in place, it's not null
+  // only in an edit session.
+  private Object editOwner = null;
   WatchManager watchManager = new WatchManager();
   SessionFileManager sessionManager = new SessionFileManager();
+  SessionRegistry sessionRegistry = new SessionRegistry();
+  final DeletedSubtreeWalker walker = new DeletedSubtreeWalker(this);
+  // The store of the large file values, null if all of them are on heap.
+  ValueStore valueStore = null;
+  // The number of changes rejected by quotas, it's shared with the forks.
+  AtomicLong quotaRejections = new AtomicLong();
+  // The number of times the soft limits are crossed, null in the forks since
+  // the changes are warned once they're applied to the tree.
+  AtomicLong softLimitWarnings = new AtomicLong();
+  // The directory which holds the session files of sessions themselves, the
+  // data of each file is the owner of the session.
+  private final String sessionsDir;
+  // Whether the tree is a fork, the committed changes of a fork don't update
+  // sessions or trigger watches since it has none of them.
+  private boolean isFork = false;
 
   private static final Logger LOG = LoggerFactory.getLogger(DataTree.class);
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  // Batches smaller than this are always applied in caller's thread.
+  static final int MIN_PARALLEL_BATCH = 64;
+  private static final ForkJoinPool APPLY_POOL = new ForkJoinPool();
 
   /**
    * Constructor of DataTree.
    */
   public DataTree() {
+    this(null);
+  }
+
+  /**
+   * Constructor of DataTree.
+   *
+   * @param sessionsDir the directory of the files of sessions, the session
+   * files directly under it are tracked as sessions by the
+   * {@link SessionRegistry}, null if there's no such directory.
+   */
+  public DataTree(String sessionsDir) {
+    this.sessionsDir = sessionsDir;
     this.root = new DirNode(ROOT_PATH,
                             (long)0,
                             new TreeMap<String, Node>());
     this.stagingRoot = this.root;
   }
 
+  /**
+   * Creates a tree which starts from the current root of this tree, the
+   * changes of either of them are invisible to the other. The new tree
+   * doesn't have the watches and sessions of this tree, its committed changes
+   * are only made visible, and it keeps the values it creates on heap.
+   *
+   * @return the new tree.
+   */
+  public DataTree fork() {
+    DataTree tree = new DataTree();
+    tree.root = this.root;
+    tree.stagingRoot = tree.root;
+    tree.quotaRejections = this.quotaRejections;
+    tree.softLimitWarnings = null;
+    tree.isFork = true;
+    return tree;
+  }
+
+  /**
+   * Sets the store of file values, the file values created afterwards are
+   * stored off heap if they're large enough.
+   *
+   * @param store the value store, null to keep all the values on heap.
+   */
+  public void setValueStore(ValueStore store) {
+    this.valueStore = store;
+  }
+
+  /**
+   * Gets the store of file values, null if there's no store.
+   */
+  public ValueStore getValueStore() {
+    return this.valueStore;
+  }
+
+  /**
+   * Starts an edit session for the changes in staging area, it ends once the
+   * changes are committed or aborted. In an edit session the directories
+   * copied by the staging changes are updated in place by the later changes
+   * instead of being copied again, their checksums are computed only once on
+   * commit. The watches of these directories see their final state only.
+   */
+  public void startEditSession() {
+    if (this.editOwner == null) {
+      this.editOwner = new Object();
+    }
+  }
+
+  /**
+   * Freezes the directories edited by the edit session in post order.
+   */
+  static void freeze(Node node, Object owner) {
+    if (!(node instanceof DirNode) || !((DirNode)node).isEditableBy(owner)) {
+      return;
+    }
+    DirNode dir = (DirNode)node;
+    for (Node child : dir.children.values()) {
+      freeze(child, owner);
+    }
+    dir.freeze();
+  }
+
   /**
    * Commits all the changes in staging area, once committed, all the changes
    * in staging area will be visible.
    */
   public void commitStagingChanges() {
-    Lock wLock = getWriteLock();
-    try {
-      // Grabs the write lock before making changes visible.
-      wLock.lock();
+    if (this.editOwner != null) {
+      freeze(this.stagingRoot, this.editOwner);
+      // The directories removed after being edited are not reachable from
+      // the root, e.g. the emptied transient directories.
+      for (Node node : this.changedNodes) {
+        freeze(node, this.editOwner);
+      }
+      this.editOwner = null;
+    }
+    if (this.isFork) {
+      // The sessions of the removed session files are unknown to the fork.
       this.root = this.stagingRoot;
-    } finally {
-      wLock.unlock();
-    }
-    synchronized(watchManager) {
-      for (Node node : changedNodes) {
-        if (node instanceof SessionFileNode) {
-          SessionFileNode sn = (SessionFileNode)node;
-          if (node.version == 0) {
-            this.sessionManager.addFileToSession(sn.sessionID, sn.fullPath);
-          } else if (node.version == -1) {
-            this.sessionManager.removeFileFromSession(sn.sessionID,
-                                                      sn.fullPath);
-          }
+      this.changedNodes.clear();
+      return;
+    }
+    DirNode oldRoot = this.root;
+    // The last committed version of the watched directories, a directory
+    // might be changed more than once in a batch.
+    Map<String, Node> previous = null;
+    // Makes changes visible, the watches added after this point will see the
+    // new root when they verify their state.
+    this.root = this.stagingRoot;
+    for (Node node : changedNodes) {
+      // The descendants of a subtree deleted earlier must be seen deleted
+      // before any new change of them.
+      this.walker.await(node.fullPath);
+      Node prev = null;
+      if (node instanceof DirNode &&
+          this.watchManager.hasWatches(node.fullPath)) {
+        if (previous == null) {
+          previous = new HashMap<>();
         }
-        this.watchManager.triggerAndRemoveWatches(node);
+        prev = previous.put(node.fullPath, node);
+        if (prev == null) {
+          prev = findNode(oldRoot, node.fullPath);
+        }
+      }
+      applyChange(node, prev);
+      if (node.version == -1 &&
+          node instanceof DirNode &&
+          !((DirNode)node).children.isEmpty()) {
+        // The descendants of deleted directory are walked in background.
+        this.walker.walk((DirNode)node);
       }
     }
     this.changedNodes.clear();
   }
 
+  /**
+   * Updates the sessions and triggers the watches for a committed change.
+   */
+  void applyChange(Node node) {
+    applyChange(node, null);
+  }
+
+  /**
+   * Updates the sessions and triggers the watches for a committed change,
+   * the previous version of the node is given to the {@link DeltaWatch}es.
+   */
+  void applyChange(Node node, Node previous) {
+    if (node instanceof SessionFileNode) {
+      SessionFileNode sn = (SessionFileNode)node;
+      synchronized (this.sessionManager) {
+        if (node.version == 0) {
+          this.sessionManager.addFileToSession(sn.sessionID, sn.fullPath);
+          this.sessionRegistry.addFile(sn.sessionID);
+        } else if (node.version == -1) {
+          this.sessionManager.removeFileFromSession(sn.sessionID,
+                                                    sn.fullPath);
+          this.sessionRegistry.removeFile(sn.sessionID);
+        }
+      }
+      if (isSessionNode(sn)) {
+        if (node.version == -1) {
+          this.sessionRegistry.removeOwner(sn.sessionID);
+        } else {
+          this.sessionRegistry.setOwner(sn.sessionID,
+                                        new String(sn.getData(), UTF8));
+        }
+      }
+    }
+    this.watchManager.triggerAndRemoveWatches(node, previous);
+  }
+
+  /**
+   * Waits until the deleted subtrees are walked, all their watches are
+   * triggered and sessions are updated.
+   */
+  void awaitDeletedSubtrees() {
+    this.walker.awaitAll();
+  }
+
+  private boolean isSessionNode(SessionFileNode node) {
+    if (this.sessionsDir == null) {
+      return false;
+    }
+    String path = node.fullPath;
+    int prefixLength = this.sessionsDir.length() + SEP.length();
+    return path.length() > prefixLength &&
+           path.startsWith(this.sessionsDir) &&
+           path.startsWith(SEP, this.sessionsDir.length()) &&
+           path.indexOf(SEP, prefixLength) == -1;
+  }
+
   /**
    * Aborts all the changes in staging area.
    */
   public void abortStagingChanges() {
+    this.editOwner = null;
     this.stagingRoot = this.root;
     this.changedNodes.clear();
   }
@@ -122,7 +303,8 @@ public class DataTree {
   }
 
   /**
-   * Gets the number of nodes in tree.
+   * Gets the number of nodes in tree, it's maintained by the directories so
+   * it takes O(1) time.
    *
    * @return the number of nodes in tree.
    */
@@ -130,6 +312,29 @@ public class DataTree {
     return size(this.root);
   }
 
+  /**
+   * Gets the number of changes which have been rejected by quotas.
+   */
+  public long getQuotaRejections() {
+    return this.quotaRejections.get();
+  }
+
+  /**
+   * Gets the number of changes which have crossed the soft limits of quotas.
+   */
+  public long getSoftLimitWarnings() {
+    return this.softLimitWarnings.get();
+  }
+
+  /**
+   * Gets the registry of sessions.
+   *
+   * @return the session registry.
+   */
+  public SessionRegistry getSessionRegistry() {
+    return this.sessionRegistry;
+  }
+
   /**
    * Gets the root node of tree.
    *
@@ -150,12 +355,29 @@ public class DataTree {
    */
   public Node getNode(String path)
       throws InvalidPath, PathNotExist, NotDirectory {
+    return getNode(this.root, path);
+  }
+
+  /**
+   * Returns a node of given path under the given root, null if there's no
+   * such node.
+   */
+  static Node findNode(DirNode root, String path) {
+    try {
+      return getNode(root, path);
+    } catch (TreeException ex) {
+      return null;
+    }
+  }
+
+  static Node getNode(DirNode root, String path)
+      throws InvalidPath, PathNotExist, NotDirectory {
     if (path.equals(ROOT_PATH)) {
-      return this.root;
+      return root;
     }
     validatePath(path);
     path = trimRoot(path);
-    DirNode temp = this.root;
+    DirNode temp = root;
     while (path.contains(SEP)) {
       String name = head(path);
       Node child = temp.children.get(name);
@@ -185,14 +407,34 @@ public class DataTree {
    * @throws PathNotExist if the path of its parent doesn't exist in tree.
    * @throws InvalidPath if the path is invalid.
    * @throws NotDirectory if the path goes through a non-directory node.
+   * @throws QuotaExceeded if the quota of an ancestor is exceeded.
+   */
+  public Node createFile(String path,
+                         byte[] data,
+                         boolean recursive,
+                         boolean isTransient)
+      throws NotDirectory, NodeAlreadyExist, PathNotExist, InvalidPath,
+             QuotaExceeded {
+    return createFile(path, data, false, recursive, isTransient);
+  }
+
+  /**
+   * Creates a node of regular file type in tree. See
+   * {@link #createFile(String, byte[], boolean, boolean) DataTree} for the
+   * other parameters.
+   *
+   * @param compressed whether the data is gzip compressed.
    */
   public Node createFile(String path,
                          byte[] data,
+                         boolean compressed,
                          boolean recursive,
                          boolean isTransient)
-      throws NotDirectory, NodeAlreadyExist, PathNotExist, InvalidPath {
+      throws NotDirectory, NodeAlreadyExist, PathNotExist, InvalidPath,
+             QuotaExceeded {
     try {
-      Node ret = createFileInStagingArea(path, data, recursive, isTransient);
+      Node ret = createFileInStagingArea(path, data, compressed, recursive,
+                                         isTransient);
       commitStagingChanges();
       return ret;
     } catch (TreeException ex) {
@@ -209,9 +451,25 @@ public class DataTree {
                                       byte[] data,
                                       boolean recursive,
                                       boolean isTransient)
-      throws NotDirectory, NodeAlreadyExist, PathNotExist, InvalidPath {
+      throws NotDirectory, NodeAlreadyExist, PathNotExist, InvalidPath,
+             QuotaExceeded {
+    return createFileInStagingArea(path, data, false, recursive, isTransient);
+  }
+
+  /**
+   * Creates a file in staging area. See {@link #createFile DataTree} for
+   * parameters.
+   */
+  public Node createFileInStagingArea(String path,
+                                      byte[] data,
+                                      boolean compressed,
+                                      boolean recursive,
+                                      boolean isTransient)
+      throws NotDirectory, NodeAlreadyExist, PathNotExist, InvalidPath,
+             QuotaExceeded {
     validatePath(path);
-    Node createdNode = new FileNode(path, 0, data);
+    Node createdNode =
+      new FileNode(path, 0, data, compressed, this.valueStore);
     stagingRoot = createNode(stagingRoot,
                              createdNode,
                              trimRoot(path),
@@ -233,16 +491,38 @@ public class DataTree {
    * @throws PathNotExist if the path of its parent doesn't exist in tree.
    * @throws InvalidPath if the path is invalid.
    * @throws NotDirectory if the path goes through a non-directory node.
+   * @throws QuotaExceeded if the quota of an ancestor is exceeded.
    */
   public Node createSessionFile(String path,
                                 byte[] data,
                                 long sessionID,
                                 boolean recursive,
                                 boolean isTransient)
-      throws NotDirectory, NodeAlreadyExist, PathNotExist, InvalidPath {
+      throws NotDirectory, NodeAlreadyExist, PathNotExist, InvalidPath,
+             QuotaExceeded {
+    return createSessionFile(path, data, false, sessionID, recursive,
+                             isTransient);
+  }
+
+  /**
+   * Creates a node of session file type in tree. See
+   * {@link #createSessionFile(String, byte[], long, boolean, boolean)
+   * DataTree} for the other parameters.
+   *
+   * @param compressed whether the data is gzip compressed.
+   */
+  public Node createSessionFile(String path,
+                                byte[] data,
+                                boolean compressed,
+                                long sessionID,
+                                boolean recursive,
+                                boolean isTransient)
+      throws NotDirectory, NodeAlreadyExist, PathNotExist, InvalidPath,
+             QuotaExceeded {
     try {
-      Node ret = createSessionFileInStagingArea(path, data, sessionID,
-                                                recursive, isTransient);
+      Node ret = createSessionFileInStagingArea(path, data, compressed,
+                                                sessionID, recursive,
+                                                isTransient);
       commitStagingChanges();
       return ret;
     } catch (TreeException ex) {
@@ -260,9 +540,27 @@ public class DataTree {
                                              long sessionID,
                                              boolean recursive,
                                              boolean isTransient)
-      throws NotDirectory, NodeAlreadyExist, PathNotExist, InvalidPath {
+      throws NotDirectory, NodeAlreadyExist, PathNotExist, InvalidPath,
+             QuotaExceeded {
+    return createSessionFileInStagingArea(path, data, false, sessionID,
+                                          recursive, isTransient);
+  }
+
+  /**
+   * Creates a session file in staging area.
+   * See {@link #createSessionFile DataTree} for parameters.
+   */
+  public Node createSessionFileInStagingArea(String path,
+                                             byte[] data,
+                                             boolean compressed,
+                                             long sessionID,
+                                             boolean recursive,
+                                             boolean isTransient)
+      throws NotDirectory, NodeAlreadyExist, PathNotExist, InvalidPath,
+             QuotaExceeded {
     validatePath(path);
-    Node createdNode = new SessionFileNode(path, 0, sessionID, data);
+    Node createdNode = new SessionFileNode(path, 0, sessionID, data,
+                                           compressed, this.valueStore);
     stagingRoot = createNode(stagingRoot,
                              createdNode,
                              trimRoot(path),
@@ -281,9 +579,11 @@ public class DataTree {
    * @throws PathNotExist if the path of its parent doesn't exist in tree.
    * @throws InvalidPath if the path is invalid.
    * @throws NotDirectory if the path goes through a non-directory node.
+   * @throws QuotaExceeded if the quota of an ancestor is exceeded.
    */
   public Node createDir(String path, boolean recursive)
-      throws NotDirectory, NodeAlreadyExist, PathNotExist, InvalidPath {
+      throws NotDirectory, NodeAlreadyExist, PathNotExist, InvalidPath,
+             QuotaExceeded {
     try {
       Node ret = createDirInStagingArea(path, recursive);
       commitStagingChanges();
@@ -299,7 +599,8 @@ public class DataTree {
    * parameters.
    */
   public Node createDirInStagingArea(String path, boolean recursive)
-      throws NotDirectory, NodeAlreadyExist, PathNotExist, InvalidPath {
+      throws NotDirectory, NodeAlreadyExist, PathNotExist, InvalidPath,
+             QuotaExceeded {
     validatePath(path);
     Node createdNode = new DirNode(path, 0, new TreeMap<String, Node>());
     stagingRoot = createNode(stagingRoot,
@@ -311,6 +612,44 @@ public class DataTree {
     return createdNode;
   }
 
+  /**
+   * Sets the quota of a directory, the version of the directory is bumped.
+   *
+   * @param path the path of the directory, it can't be the root.
+   * @param quota the new quota, null to remove the quota.
+   * @return the updated directory.
+   * @throws PathNotExist if the path doesn't exist in tree.
+   * @throws InvalidPath if the path is invalid or it's the root.
+   * @throws NotDirectory if the path is not a directory.
+   */
+  public Node setQuota(String path, Quota quota)
+      throws PathNotExist, InvalidPath, NotDirectory {
+    try {
+      Node ret = setQuotaInStagingArea(path, quota);
+      commitStagingChanges();
+      return ret;
+    } catch (TreeException ex) {
+      abortStagingChanges();
+      throw ex;
+    }
+  }
+
+  /**
+   * Sets the quota of a directory in staging area. See
+   * {@link #setQuota DataTree} for parameters.
+   */
+  public Node setQuotaInStagingArea(String path, Quota quota)
+      throws PathNotExist, InvalidPath, NotDirectory {
+    validatePath(path);
+    path = trimRoot(path);
+    if (path.equals("")) {
+      throw new InvalidPath("Can't set quota on the root directory");
+    }
+    int idx = changedNodes.size();
+    stagingRoot = (DirNode)setQuota(stagingRoot, path, quota, changedNodes);
+    return changedNodes.get(idx);
+  }
+
   /**
    * Deletes a node in tree.
    *
@@ -380,12 +719,26 @@ public class DataTree {
    * @throws VersionNotMatch if the version doesn't match version of the node.
    * @throws DirectoryNode can't store data on node of directory type.
    * @throws NotDirectory if the path goes through a non-directory node.
+   * @throws QuotaExceeded if the quota of an ancestor is exceeded.
    */
   public Node setData(String path, byte[] data, long version)
       throws PathNotExist, InvalidPath, VersionNotMatch, DirectoryNode,
-             NotDirectory {
+             NotDirectory, QuotaExceeded {
+    return setData(path, data, false, version);
+  }
+
+  /**
+   * Updates the data of the node. See
+   * {@link #setData(String, byte[], long) DataTree} for the other parameters.
+   *
+   * @param compressed whether the data is gzip compressed.
+   */
+  public Node setData(String path, byte[] data, boolean compressed,
+                      long version)
+      throws PathNotExist, InvalidPath, VersionNotMatch, DirectoryNode,
+             NotDirectory, QuotaExceeded {
     try {
-      Node ret = setDataInStagingArea(path, data, version);
+      Node ret = setDataInStagingArea(path, data, compressed, version);
       commitStagingChanges();
       return ret;
     } catch (TreeException ex) {
@@ -394,19 +747,54 @@ public class DataTree {
     }
   }
 
+  /**
+   * Sets the deadline of a file which has been created or updated in staging
+   * area, the committed files never change.
+   *
+   * @param path the path of the file.
+   * @param expiresAt the time (in milliseconds since epoch) after which the
+   * file gets deleted, 0 means never.
+   * @throws IllegalStateException if the file is not changed in staging area.
+   */
+  public void setExpiresAtInStagingArea(String path, long expiresAt)
+      throws PathNotExist, InvalidPath, NotDirectory, DirectoryNode {
+    Node node = getNode(this.stagingRoot, path);
+    if (!(node instanceof FileNode)) {
+      throw new DirectoryNode(path + " is a directory");
+    }
+    if (node == findNode(this.root, path)) {
+      throw new IllegalStateException(path + " is not changed in staging");
+    }
+    ((FileNode)node).expiresAt = expiresAt;
+  }
+
   /**
    * Update a node in staging area. See {@link #setData DataTree} for
    * parameters.
    */
   public Node setDataInStagingArea(String path, byte[] data, long version)
       throws PathNotExist, InvalidPath, VersionNotMatch, DirectoryNode,
-             NotDirectory {
+             NotDirectory, QuotaExceeded {
+    return setDataInStagingArea(path, data, false, version);
+  }
+
+  /**
+   * Update a node in staging area. See {@link #setData DataTree} for
+   * parameters.
+   */
+  public Node setDataInStagingArea(String path,
+                                   byte[] data,
+                                   boolean compressed,
+                                   long version)
+      throws PathNotExist, InvalidPath, VersionNotMatch, DirectoryNode,
+             NotDirectory, QuotaExceeded {
     validatePath(path);
     path = trimRoot(path);
     int idx = changedNodes.size();
     stagingRoot = (DirNode)setData(stagingRoot,
                                    path,
                                    data,
+                                   compressed,
                                    version,
                                    changedNodes);
     return changedNodes.get(idx);
@@ -427,53 +815,203 @@ public class DataTree {
    * parameters.
    */
   public void deleteSessionInStagingArea(long sessionID) {
-    try {
-      Set<String> files = this.sessionManager.getSessionFiles(sessionID);
+    deleteSessionsInStagingArea(new long[]{sessionID});
+  }
+
+  /**
+   * Deletes all the files of the given sessions in staging area.
+   *
+   * @param sessionIDs the IDs of sessions.
+   */
+  public void deleteSessionsInStagingArea(long[] sessionIDs) {
+    // The files in the deleted subtrees are removed from sessions by walker,
+    // waits for it so the files of the sessions are up to date.
+    this.walker.awaitAll();
+    // The ancestors of the files are only copied once.
+    startEditSession();
+    List<TreeOp> ops = new ArrayList<TreeOp>();
+    for (long sessionID : sessionIDs) {
+      List<String> files = this.sessionManager.getSessionFiles(sessionID);
       if (files == null) {
-        return;
+        continue;
       }
-      for (String file : files) {
-        deleteNodeInStagingArea(file, -1, false);
+      // The files stay unchanged until the changes get committed, iterates
+      // them in reverse order so each of them can be removed from the
+      // session in O(1) on commit.
+      for (int i = files.size() - 1; i >= 0; --i) {
+        ops.add(TreeOp.delete(files.get(i), -1, false));
+      }
+    }
+    applyInStagingArea(ops);
+    for (TreeOp op : ops) {
+      if (op.error != null) {
+        LOG.error("Caught exception in deleteSessions", op.error);
+        throw new RuntimeException(op.error);
       }
-    } catch (TreeException ex) {
-      LOG.error("Caught exception in deleteSession", ex);
-      throw new RuntimeException(ex);
     }
   }
 
   /**
-   * Adds a watch to tree. See {@link Watch}.
+   * Applies a batch of operations in staging area. The result is the same
+   * as applying them one by one in the given order, the failure of one
+   * operation doesn't stop the others and the result or error of each
+   * operation is kept in the operation itself.
    *
-   * @param the watch.
+   * The operations are partitioned by the top level directory they touch,
+   * the partitions are applied in parallel since they don't conflict with
+   * each other and then merged into the new root in the given order.
+   *
+   * @param ops the operations.
    */
-  public void addWatch(Watch watch) {
-    synchronized(watchManager) {
-      this.watchManager.addWatch(watch);
+  public void applyInStagingArea(List<TreeOp> ops) {
+    final Map<String, List<TreeOp>> partitions =
+      new LinkedHashMap<String, List<TreeOp>>();
+    boolean serial = ops.size() < MIN_PARALLEL_BATCH;
+    for (TreeOp op : ops) {
+      String name = topLevelName(op.path);
+      if (name == null) {
+        // Operations on the root itself conflict with everything else.
+        serial = true;
+        break;
+      }
+      List<TreeOp> partition = partitions.get(name);
+      if (partition == null) {
+        partition = new ArrayList<TreeOp>();
+        partitions.put(name, partition);
+      }
+      partition.add(op);
+    }
+    if (serial || partitions.size() < 2) {
+      for (TreeOp op : ops) {
+        try {
+          stagingRoot = op.apply(this, stagingRoot, changedNodes);
+        } catch (TreeException ex) {
+          op.error = ex;
+        }
+      }
+      return;
+    }
+    final DirNode base = stagingRoot;
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for (final Map.Entry<String, List<TreeOp>> entry : partitions.entrySet()) {
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() {
+          applyPartition(base, entry.getKey(), entry.getValue());
+          return null;
+        }
+      });
+    }
+    for (Future<Void> future : APPLY_POOL.invokeAll(tasks)) {
+      try {
+        future.get();
+      } catch (ExecutionException | InterruptedException ex) {
+        throw new RuntimeException(ex);
+      }
+    }
+    mergePartitions(base, ops);
+  }
+
+  /**
+   * Applies the operations of one top level node on a root which only
+   * contains that node, the root is dropped from the changes of each
+   * operation and rebuilt when the partitions are merged.
+   */
+  void applyPartition(DirNode base, String name, List<TreeOp> ops) {
+    Node topLevelNode = base.children.get(name);
+    for (TreeOp op : ops) {
+      List<Node> changes = new ArrayList<Node>();
+      try {
+        DirNode newRoot =
+          op.apply(this, TreeOp.partitionRoot(base, name, topLevelNode),
+                   changes);
+        changes.remove(changes.size() - 1);
+        topLevelNode = newRoot.children.get(name);
+        op.partitionChanges = changes;
+        op.partitionNode = topLevelNode;
+      } catch (TreeException ex) {
+        op.error = ex;
+      }
+    }
+  }
+
+  void mergePartitions(DirNode base, List<TreeOp> ops) {
+    // The intermediate roots are only visible to the watches of the root,
+    // they're not generated in edit session since the checksums of the
+    // edited directories are unknown until commit.
+    boolean rootWatched = this.editOwner == null &&
+                          this.watchManager.hasWatches(ROOT_PATH);
+    int last = ops.size() - 1;
+    while (last >= 0 && ops.get(last).error != null) {
+      last--;
+    }
+    boolean inPlace = base.isEditableBy(this.editOwner);
+    Map<String, Node> children;
+    if (inPlace) {
+      children = base.editChildren;
+    } else {
+      children = new TreeMap<String, Node>(base.children);
+    }
+    long version = base.version;
+    for (int i = 0; i <= last; ++i) {
+      TreeOp op = ops.get(i);
+      if (op.error != null) {
+        continue;
+      }
+      String name = topLevelName(op.path);
+      if (op.partitionNode == null) {
+        children.remove(name);
+      } else {
+        children.put(name, op.partitionNode);
+      }
+      version++;
+      changedNodes.addAll(op.partitionChanges);
+      op.partitionChanges = null;
+      op.partitionNode = null;
+      if (i == last && inPlace) {
+        base.setEditVersion(version);
+      } else if (i == last) {
+        stagingRoot = new DirNode(ROOT_PATH, version, children, editOwner);
+        changedNodes.add(stagingRoot);
+      } else if (rootWatched) {
+        changedNodes.add(new DirNode(ROOT_PATH,
+                                     version,
+                                     new TreeMap<String, Node>(children)));
+      }
+    }
+  }
+
+  /**
+   * Gets the name of the top level node of the path, or null if the path is
+   * the root or invalid.
+   */
+  static String topLevelName(String path) {
+    if (path == null || !path.startsWith(SEP) || path.length() == 1) {
+      return null;
     }
+    int end = path.indexOf(SEP, 1);
+    return end == -1 ? path.substring(1) : path.substring(1, end);
   }
 
   /**
-   * Gets the read lock of DataTree. Although DataTree implementation allows
-   * lock-free access with multiple readers and one writer, but returning a
-   * read lock is helpful in some cases (e.g. read the state and then decide
-   * whether to add watch or not depends the state.)
+   * Adds a watch to tree. See {@link Watch}. Adding a watch doesn't block
+   * the commits, so the watch might miss the changes committed before it's
+   * added. The caller should verify the state of the node after adding the
+   * watch and trigger the watch by itself if it's missed.
    *
-   * @return the read lock.
+   * @param the watch.
    */
-  public Lock getReadLock() {
-    return this.rwLock.readLock();
+  public void addWatch(Watch watch) {
+    this.watchManager.addWatch(watch);
   }
 
   /**
-   * Gets the write lock of DataTree. Although DataTree implementation allows
-   * lock-free access with multiple readers and one writer, but returning a
-   * write lock is helpful to support multiple writers. Whenever DataTree
-   * changes its state, it will grab write lock internally.
+   * Removes a watch from tree, e.g. the watch gets triggered by its caller.
    *
-   * @return the write lock.
+   * @param the watch.
    */
-  public Lock getWriteLock() {
-    return this.rwLock.writeLock();
+  public void removeWatch(Watch watch) {
+    this.watchManager.removeWatch(watch);
   }
 
   DirNode createNode(DirNode curNode,
@@ -482,9 +1020,8 @@ public class DataTree {
                      boolean recursive,
                      boolean isTransient,
                      List<Node> changes)
-      throws NotDirectory, NodeAlreadyExist, PathNotExist {
+      throws NotDirectory, NodeAlreadyExist, PathNotExist, QuotaExceeded {
     Node newChild;
-    DirNode newNode;
     String childName;
     // Means now the path is the name of last node.
     if (!path.contains(SEP)) {
@@ -526,20 +1063,8 @@ public class DataTree {
                             isTransient,
                             changes);
     }
-    Map<String, Node> newChildren = new TreeMap<>(curNode.children);
-    newChildren.put(childName, newChild);
-    long newVersion = curNode.version + 1;
-    if (curNode instanceof TransientDirNode) {
-      newNode = new TransientDirNode(curNode.fullPath,
-                                     newVersion,
-                                     newChildren);
-
-    } else {
-      newNode = new DirNode(curNode.fullPath,
-                            newVersion,
-                            newChildren);
-    }
-    changes.add(newNode);
+    DirNode newNode = updateChild(curNode, childName, newChild, changes);
+    checkQuota(curNode, newNode);
     return newNode;
   }
 
@@ -559,44 +1084,19 @@ public class DataTree {
         throw new VersionNotMatch("Version " + version +
             " doesn't match node version " + curNode.version);
       }
-      Node ret;
-      if (curNode instanceof TransientDirNode) {
-        ret = new TransientDirNode(curNode.fullPath,
-                                   -1,
-                                   ((DirNode)curNode).children);
-
-      } else if (curNode instanceof DirNode) {
-        ret = new DirNode(curNode.fullPath,
-                          -1,
-                          ((DirNode)curNode).children);
-      } else if (curNode instanceof SessionFileNode) {
-        ret = new SessionFileNode(curNode.fullPath,
-                                  -1,
-                                  ((SessionFileNode)curNode).sessionID,
-                                  ((FileNode)curNode).data);
-
-      } else if (curNode instanceof FileNode) {
-        ret = new FileNode(curNode.fullPath,
-                           -1,
-                           ((FileNode)curNode).data);
-      } else {
-        throw new RuntimeException("Unknow type of node.");
-      }
-      // Pre-order traversal.
+      // The tombstone of a directory edited in this batch shares its
+      // children, they're frozen first since they're no longer reachable.
+      freeze(curNode, this.editOwner);
+      // Only the node itself is deleted here, its descendants are walked in
+      // background once the deletion is committed.
+      Node ret = tombstone(curNode);
       changes.add(ret);
-      if (curNode instanceof DirNode) {
-        // If it's directory node, deletes its children recursivly.
-        for (Node child : ((DirNode)curNode).children.values()) {
-          deleteNode(child, path, -1, recursive, changes);
-        }
-      }
       return ret;
     }
     if (!(curNode instanceof DirNode)) {
       throw new NotDirectory(curNode.fullPath + " is not a directory");
     }
     Node newChild;
-    DirNode newNode;
     String childName = head(path);
     String nextPath = tail(path);
     Node child = ((DirNode)curNode).children.get(childName);
@@ -605,39 +1105,40 @@ public class DataTree {
           " does not exist");
     }
     newChild = deleteNode(child, nextPath, version, recursive, changes);
-    Map<String, Node> newChildren = new TreeMap<>(((DirNode)curNode).children);
-    if (newChild.version != -1) {
-      newChildren.put(childName, newChild);
-    } else {
-      newChildren.remove(childName);
-    }
-    long newVersion;
-    if (curNode instanceof TransientDirNode && newChildren.isEmpty()) {
-      // If it's transient directory and it has no child, deletes it self.
-      newVersion = -1;
-    } else {
-      newVersion = curNode.version + 1;
-    }
-    if (curNode instanceof TransientDirNode) {
-      newNode = new TransientDirNode(curNode.fullPath,
-                                     newVersion,
-                                     newChildren);
+    return updateChild((DirNode)curNode, childName, newChild, changes);
+  }
 
+  /**
+   * Creates the tombstone of a node, which is the copy of the node with
+   * version -1.
+   */
+  static Node tombstone(Node curNode) {
+    Node ret;
+    if (curNode instanceof TransientDirNode) {
+      ret = new TransientDirNode(curNode.fullPath,
+                                 -1,
+                                 ((DirNode)curNode).children);
+    } else if (curNode instanceof DirNode) {
+      ret = new DirNode(curNode.fullPath,
+                        -1,
+                        ((DirNode)curNode).children);
+    } else if (curNode instanceof FileNode) {
+      // The tombstone shares the data of the file.
+      ret = ((FileNode)curNode).copy(-1);
     } else {
-      newNode = new DirNode(curNode.fullPath,
-                            newVersion,
-                            newChildren);
+      throw new RuntimeException("Unknow type of node.");
     }
-    changes.add(newNode);
-    return newNode;
+    return ret;
   }
 
   Node setData(Node curNode,
                String path,
                byte[] data,
+               boolean compressed,
                long version,
                List<Node> changes)
-      throws PathNotExist, VersionNotMatch, DirectoryNode, NotDirectory {
+      throws PathNotExist, VersionNotMatch, DirectoryNode, NotDirectory,
+             QuotaExceeded {
     if (path.equals("")) {
       if (version != -1 && curNode.version != version) {
         throw new VersionNotMatch("Version " + version +
@@ -647,9 +1148,22 @@ public class DataTree {
         throw new DirectoryNode(curNode.fullPath + " is a directory");
       }
       long newVersion = curNode.version + 1;
-      Node ret = new FileNode(curNode.fullPath,
-                              newVersion,
-                              data);
+      Node ret;
+      if (curNode instanceof SessionFileNode) {
+        // The updated file still belongs to the session.
+        ret = new SessionFileNode(curNode.fullPath,
+                                  newVersion,
+                                  ((SessionFileNode)curNode).sessionID,
+                                  data,
+                                  compressed,
+                                  this.valueStore);
+      } else {
+        ret = new FileNode(curNode.fullPath,
+                           newVersion,
+                           data,
+                           compressed,
+                           this.valueStore);
+      }
       changes.add(ret);
       return ret;
     }
@@ -657,7 +1171,6 @@ public class DataTree {
       throw new NotDirectory(curNode.fullPath + " is not a directory");
     }
     Node newChild;
-    DirNode newNode;
     String childName = head(path);
     String nextPath = tail(path);
     Node child = ((DirNode)curNode).children.get(childName);
@@ -665,19 +1178,125 @@ public class DataTree {
       throw new PathNotExist(concat(curNode.fullPath, childName) +
           " does not exist");
     }
-    newChild = setData(child, nextPath, data, version, changes);
-    Map<String, Node> newChildren = new TreeMap<>(((DirNode)curNode).children);
-    newChildren.put(childName, newChild);
-    long newVersion = curNode.version + 1;
+    newChild = setData(child, nextPath, data, compressed, version, changes);
+    DirNode newNode =
+      updateChild((DirNode)curNode, childName, newChild, changes);
+    checkQuota((DirNode)curNode, newNode);
+    return newNode;
+  }
+
+  Node setQuota(Node curNode,
+                String path,
+                Quota quota,
+                List<Node> changes) throws PathNotExist, NotDirectory {
+    if (!(curNode instanceof DirNode)) {
+      throw new NotDirectory(curNode.fullPath + " is not a directory");
+    }
+    DirNode dir = (DirNode)curNode;
+    if (path.equals("")) {
+      Map<String, Node> children = new TreeMap<>(dir.children);
+      DirNode ret;
+      if (dir instanceof TransientDirNode) {
+        ret = new TransientDirNode(dir.fullPath, dir.version + 1, children);
+      } else {
+        ret = new DirNode(dir.fullPath, dir.version + 1, children);
+      }
+      ret.quota = quota;
+      changes.add(ret);
+      return ret;
+    }
+    String childName = head(path);
+    Node child = dir.children.get(childName);
+    if (child == null) {
+      throw new PathNotExist(concat(dir.fullPath, childName) +
+          " does not exist");
+    }
+    Node newChild = setQuota(child, tail(path), quota, changes);
+    return updateChild(dir, childName, newChild, changes);
+  }
+
+  /**
+   * Rejects the change if it grows the subtree of the directory beyond its
+   * quota, and warns if it crosses the soft limits. The aggregates of the new
+   * node are computed from its children, so the check doesn't traverse the
+   * subtree. The directories edited in place by an edit session are not
+   * checked since their aggregates are computed once they're frozen.
+   */
+  void checkQuota(DirNode oldNode, DirNode newNode) throws QuotaExceeded {
+    Quota quota = newNode.quota;
+    if (quota == null || newNode == oldNode || newNode.version == -1) {
+      return;
+    }
+    boolean grows = newNode.descendantCount > oldNode.descendantCount ||
+                    newNode.dataBytes > oldNode.dataBytes;
+    if (!grows) {
+      return;
+    }
+    if (quota.exceeds(newNode)) {
+      this.quotaRejections.incrementAndGet();
+      throw new QuotaExceeded("Quota of " + newNode.fullPath + " (" + quota +
+                              ") is exceeded");
+    }
+    if (this.softLimitWarnings != null && quota.exceedsSoft(newNode) &&
+        !quota.exceedsSoft(oldNode)) {
+      this.softLimitWarnings.incrementAndGet();
+      LOG.warn("Soft limits of {} ({}) are exceeded, nodes={}, bytes={}",
+               newNode.fullPath, quota, newNode.descendantCount,
+               newNode.dataBytes);
+    }
+  }
+
+  /**
+   * Replaces the child of the directory with the new child, or removes it if
+   * the new child has been deleted. The directory is updated in place if it's
+   * being edited by the current edit session, otherwise a new copy of it is
+   * created and added to the changes.
+   */
+  DirNode updateChild(DirNode curNode,
+                      String childName,
+                      Node newChild,
+                      List<Node> changes) {
+    Map<String, Node> newChildren;
+    boolean inPlace = curNode.isEditableBy(this.editOwner);
+    if (inPlace) {
+      newChildren = curNode.editChildren;
+    } else {
+      newChildren = new TreeMap<>(curNode.children);
+    }
+    if (newChild.version != -1) {
+      newChildren.put(childName, newChild);
+    } else {
+      newChildren.remove(childName);
+    }
+    long newVersion;
+    if (curNode instanceof TransientDirNode && newChildren.isEmpty()) {
+      // If it's transient directory and it has no child, deletes it self.
+      newVersion = -1;
+    } else {
+      newVersion = curNode.version + 1;
+    }
+    if (inPlace) {
+      // It's already in the changes since it was copied in this batch.
+      curNode.setEditVersion(newVersion);
+      return curNode;
+    }
+    DirNode newNode;
     if (curNode instanceof TransientDirNode) {
       newNode = new TransientDirNode(curNode.fullPath,
                                      newVersion,
-                                     newChildren);
+                                     newChildren,
+                                     this.editOwner);
 
     } else {
       newNode = new DirNode(curNode.fullPath,
                             newVersion,
-                            newChildren);
+                            newChildren,
+                            this.editOwner);
+    }
+    newNode.quota = curNode.quota;
+    if (this.editOwner != null) {
+      // Starts from the aggregates of the original until it's frozen.
+      newNode.copyAggregates(curNode);
     }
     changes.add(newNode);
     return newNode;
@@ -687,12 +1306,7 @@ public class DataTree {
     if (!(curNode instanceof DirNode)) {
       return 1;
     }
-    int sum = 1;
-    DirNode dirNode = (DirNode)curNode;
-    for (Node node : dirNode.children.values()) {
-      sum += size(node);
-    }
-    return sum;
+    return (int)(((DirNode)curNode).descendantCount + 1);
   }
 
   /**
@@ -781,6 +1395,17 @@ public class DataTree {
     }
   }
 
+  /**
+   * Exception for exceeding the quota of a directory.
+   */
+  public static class QuotaExceeded extends TreeException {
+    public QuotaExceeded(String desc) {
+      super(desc);
+    }
+
+    public QuotaExceeded() {}
+  }
+
   /**
    * Exception for storing data on directory node.
    */
@@ -0,0 +1,130 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs.tree;
+
+import static com.github.zk1931.pulsefs.tree.PathUtils.SEP;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Walks the subtrees removed by recursive deletions in background. The
+ * descendants of a deleted directory are not visited when it gets deleted,
+ * the walker fires their watches and updates their sessions after the
+ * deletion gets committed. The subtrees are walked in the order they get
+ * deleted.
+ */
+class DeletedSubtreeWalker {
+
+  private static final ExecutorService EXECUTOR =
+    Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "DeletedSubtreeWalker");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+  private final DataTree tree;
+  private final Queue<Walk> walks = new ConcurrentLinkedQueue<Walk>();
+
+  DeletedSubtreeWalker(DataTree tree) {
+    this.tree = tree;
+  }
+
+  /**
+   * Walks the descendants of the deleted directory in background.
+   *
+   * @param deleted the tombstone of the deleted directory.
+   */
+  void walk(final DirNode deleted) {
+    Future<?> future = EXECUTOR.submit(new Runnable() {
+      @Override
+      public void run() {
+        for (Node child : deleted.children.values()) {
+          walkSubtree(child);
+        }
+      }
+    });
+    this.walks.add(new Walk(deleted.fullPath + SEP, future));
+  }
+
+  private void walkSubtree(Node node) {
+    // Pre-order traversal, same as the order of deletion.
+    this.tree.applyChange(DataTree.tombstone(node));
+    if (node instanceof DirNode) {
+      for (Node child : ((DirNode)node).children.values()) {
+        walkSubtree(child);
+      }
+    }
+  }
+
+  /**
+   * Waits until the walks of the deleted subtrees which contain the given
+   * path finish, so the changes of the path are always seen after the
+   * deletion of its old node.
+   *
+   * @param path the path of the node.
+   */
+  void await(String path) {
+    Iterator<Walk> iter = this.walks.iterator();
+    while (iter.hasNext()) {
+      Walk walk = iter.next();
+      if (path == null || path.startsWith(walk.prefix)) {
+        walk.await();
+      }
+      if (walk.future.isDone()) {
+        iter.remove();
+      }
+    }
+  }
+
+  /**
+   * Waits until all the walks finish.
+   */
+  void awaitAll() {
+    await(null);
+  }
+
+  static class Walk {
+    final String prefix;
+    final Future<?> future;
+
+    Walk(String prefix, Future<?> future) {
+      this.prefix = prefix;
+      this.future = future;
+    }
+
+    void await() {
+      try {
+        this.future.get();
+      } catch (ExecutionException ex) {
+        throw new RuntimeException(ex.getCause());
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(ex);
+      }
+    }
+  }
+}
@@ -0,0 +1,43 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs.tree;
+
+/**
+ * Watch of a directory which is interested in the changes of its children
+ * instead of the whole listing.
+ */
+public interface DeltaWatch extends Watch {
+
+  /**
+   * Whether the watch wants the changes of the children, the changes are
+   * only computed for the watches which want them. The watch which doesn't
+   * is triggered through {@link Watch#trigger}.
+   *
+   * @return true if the watch wants the changes of the children.
+   */
+  boolean wantsDelta();
+
+  /**
+   * Triggers the watch with the changes of the children since the previous
+   * version of the directory. See {@link Watch#trigger}.
+   *
+   * @param node the node the watch is monitoring.
+   * @param delta the changes of the children, null if they're unknown.
+   */
+  void trigger(Node node, ChildDelta delta);
+}
@@ -17,12 +17,9 @@
 
 package com.github.zk1931.pulsefs.tree;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
 import java.util.Collections;
 import java.util.Map;
-import java.util.zip.Adler32;
+import java.util.SortedMap;
 
 /**
  * Directory Node.
@@ -30,14 +27,97 @@ import java.util.zip.Adler32;
 public class DirNode extends Node {
 
   public final Map<String, Node> children;
-  public final long dirChecksum;
+  long dirChecksum;
+  // The aggregates of the subtree under the node, they're computed from the
+  // aggregates of the children together with the checksum.
+  long descendantCount;
+  long dataBytes;
+  long ephemeralCount;
+  int maxDepth;
+  // The number of the files right under the node, not in sub directories.
+  int fileCount;
+  // The quota of the subtree, null if there's no quota. It's carried over to
+  // the copies of the node.
+  Quota quota = null;
+  // The mutable children and the owner of the edit session while the node is
+  // being edited in a staging batch, both of them are null once it's frozen.
+  Map<String, Node> editChildren = null;
+  Object editOwner = null;
 
   public DirNode(String fullPath,
                  long version,
                  Map<String, Node> children) {
+    this(fullPath, version, children, null);
+  }
+
+  /**
+   * Constructs a directory node which can be edited in place by the given
+   * edit session, the checksum is not computed until it's frozen.
+   */
+  DirNode(String fullPath,
+          long version,
+          Map<String, Node> children,
+          Object editOwner) {
     super(fullPath, version);
-    this.children = Collections.unmodifiableMap(children);
+    if (children instanceof SortedMap) {
+      this.children =
+        Collections.unmodifiableSortedMap((SortedMap<String, Node>)children);
+    } else {
+      this.children = Collections.unmodifiableMap(children);
+    }
+    if (editOwner == null) {
+      this.dirChecksum = calcChecksum();
+      aggregate();
+    } else {
+      this.editChildren = children;
+      this.editOwner = editOwner;
+    }
+  }
+
+  /**
+   * Gets the child whose name comes right before the given name, or null if
+   * there's no such child. It takes O(log n) since the children are sorted.
+   */
+  public Node lowerChild(String name) {
+    if (children instanceof SortedMap) {
+      SortedMap<String, Node> head =
+        ((SortedMap<String, Node>)children).headMap(name);
+      return head.isEmpty() ? null : head.get(head.lastKey());
+    }
+    Node lower = null;
+    for (Map.Entry<String, Node> entry : children.entrySet()) {
+      if (entry.getKey().compareTo(name) < 0 &&
+          (lower == null || entry.getValue().fullPath
+                            .compareTo(lower.fullPath) > 0)) {
+        lower = entry.getValue();
+      }
+    }
+    return lower;
+  }
+
+  boolean isEditableBy(Object owner) {
+    return owner != null && this.editOwner == owner;
+  }
+
+  /**
+   * Updates the version of the node which is being edited in place.
+   */
+  void setEditVersion(long newVersion) {
+    if (this.editOwner == null) {
+      throw new IllegalStateException(fullPath + " is not being edited");
+    }
+    this.version = newVersion;
+  }
+
+  /**
+   * Ends the editing of the node and computes its checksum, all its children
+   * must have been frozen.
+   */
+  void freeze() {
     this.dirChecksum = calcChecksum();
+    aggregate();
+    this.editChildren = null;
+    this.editOwner = null;
   }
 
   @Override
@@ -55,19 +135,93 @@ public class DirNode extends Node {
     return "dir";
   }
 
-  private long calcChecksum() {
-    ByteArrayOutputStream bout = new ByteArrayOutputStream();
-    try (DataOutputStream dout = new DataOutputStream(bout)) {
-      dout.writeLong(version);
-      dout.writeBytes(fullPath);
-      for (Node child : children.values()) {
-        dout.writeLong(child.getChecksum());
+  /**
+   * Gets the number of the nodes under the directory.
+   */
+  public long getDescendantCount() {
+    return this.descendantCount;
+  }
+
+  /**
+   * Gets the total size of the files under the directory.
+   */
+  public long getDataBytes() {
+    return this.dataBytes;
+  }
+
+  /**
+   * Gets the number of the ephemeral files under the directory.
+   */
+  public long getEphemeralCount() {
+    return this.ephemeralCount;
+  }
+
+  /**
+   * Gets the number of the files right under the directory, the files of
+   * its sub directories are not counted.
+   */
+  public int getFileCount() {
+    return this.fileCount;
+  }
+
+  /**
+   * Gets the depth of the subtree under the directory, 0 if it's empty.
+   */
+  public int getMaxDepth() {
+    return this.maxDepth;
+  }
+
+  /**
+   * Gets the quota of the subtree, null if there's no quota.
+   */
+  public Quota getQuota() {
+    return this.quota;
+  }
+
+  void copyAggregates(DirNode node) {
+    this.descendantCount = node.descendantCount;
+    this.dataBytes = node.dataBytes;
+    this.ephemeralCount = node.ephemeralCount;
+    this.maxDepth = node.maxDepth;
+    this.fileCount = node.fileCount;
+  }
+
+  private void aggregate() {
+    long count = 0;
+    long bytes = 0;
+    long ephemerals = 0;
+    int depth = 0;
+    int files = 0;
+    for (Node child : children.values()) {
+      count++;
+      if (child instanceof DirNode) {
+        DirNode dir = (DirNode)child;
+        count += dir.descendantCount;
+        bytes += dir.dataBytes;
+        ephemerals += dir.ephemeralCount;
+        depth = Math.max(depth, dir.maxDepth + 1);
+      } else {
+        bytes += ((FileNode)child).getLength();
+        if (child instanceof SessionFileNode) {
+          ephemerals++;
+        }
+        depth = Math.max(depth, 1);
+        files++;
       }
-      Adler32 adler = new Adler32();
-      adler.update(bout.toByteArray());
-      return adler.getValue();
-    } catch (IOException ex) {
-      throw new RuntimeException(ex.getMessage());
     }
+    this.descendantCount = count;
+    this.dataBytes = bytes;
+    this.ephemeralCount = ephemerals;
+    this.maxDepth = depth;
+    this.fileCount = files;
+  }
+
+  private long calcChecksum() {
+    ChecksumBuilder checksum = new ChecksumBuilder();
+    checksum.putLong(version).putBytes(fullPath);
+    for (Node child : children.values()) {
+      checksum.putLong(child.getChecksum());
+    }
+    return checksum.getValue();
   }
 }
@@ -17,30 +17,101 @@
 
 package com.github.zk1931.pulsefs.tree;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
+import com.github.zk1931.pulsefs.tree.ValueStore.OffHeapValue;
 import java.io.IOException;
-import java.util.zip.Adler32;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * File Node.
  */
 public class FileNode extends Node {
-  public final byte[] data;
   public final long fileChecksum;
+  // The data of the file, null if it's stored off heap.
+  private final byte[] data;
+  // The data stored off heap, null if it's on heap.
+  private final OffHeapValue value;
+  // Whether the data is gzip compressed.
+  private final boolean compressed;
+  // The time (in milliseconds since epoch) after which the file gets deleted,
+  // 0 means never. It's only set before the node gets committed, see
+  // DataTree#setExpiresAtInStagingArea.
+  long expiresAt = 0;
+  private static final byte[] EMPTY_DATA = new byte[0];
 
   public FileNode(String fullPath,
                   long version,
                   byte[] data) {
+    this(fullPath, version, data, null);
+  }
+
+  /**
+   * Constructs a file node whose data is moved to the given store if it's
+   * large enough.
+   */
+  FileNode(String fullPath,
+           long version,
+           byte[] data,
+           ValueStore store) {
+    this(fullPath, version, data, false, store);
+  }
+
+  /**
+   * Constructs a file node whose data is moved to the given store if it's
+   * large enough.
+   *
+   * @param compressed whether the data is gzip compressed.
+   */
+  FileNode(String fullPath,
+           long version,
+           byte[] data,
+           boolean compressed,
+           ValueStore store) {
     super(fullPath, version);
-    if (data == null) {
-      this.data = new byte[0];
+    this.compressed = compressed;
+    if (data == null || data.length == 0) {
+      data = EMPTY_DATA;
+    }
+    OffHeapValue offHeapValue = null;
+    if (store != null && data.length > 0) {
+      offHeapValue = store.store(data, this);
+      if (offHeapValue == null) {
+        data = store.intern(data);
+      }
+    }
+    if (offHeapValue == null) {
+      // The data is shared with its creator, e.g. the command which creates
+      // the node, none of them modifies it afterwards.
+      this.data = data;
     } else {
-      this.data = data.clone();
+      this.data = null;
     }
+    this.value = offHeapValue;
     this.fileChecksum = calcChecksum();
   }
 
+  /**
+   * Constructs a file node of another version which shares the data of the
+   * given node.
+   */
+  FileNode(FileNode node, long version) {
+    super(node.fullPath, version);
+    this.compressed = node.compressed;
+    this.data = node.data;
+    this.value = node.value;
+    if (this.value != null) {
+      this.value.store.retain(this.value, this);
+    }
+    this.fileChecksum = calcChecksum();
+  }
+
+  /**
+   * Creates the copy of the node with the given version.
+   */
+  FileNode copy(long newVersion) {
+    return new FileNode(this, newVersion);
+  }
+
   @Override
   public boolean isDirectory() {
     return false;
@@ -56,17 +127,111 @@ public class FileNode extends Node {
     return "file";
   }
 
+  /**
+   * Gets the time (in milliseconds since epoch) after which the file gets
+   * deleted, 0 means never.
+   */
+  public long getExpiresAt() {
+    return this.expiresAt;
+  }
+
+  /**
+   * Whether the data is stored off heap.
+   */
+  public boolean isOffHeap() {
+    return this.value != null;
+  }
+
+  /**
+   * Whether the data is gzip compressed, the data returned by
+   * {@link #getData} is compressed bytes then.
+   */
+  public boolean isCompressed() {
+    return this.compressed;
+  }
+
+  /**
+   * Gets the length of the data.
+   */
+  public int getLength() {
+    if (this.value != null) {
+      return this.value.length;
+    }
+    return this.data.length;
+  }
+
+  /**
+   * Gets the data of the file. The data on heap is returned directly and
+   * must not be modified, the data off heap is copied.
+   */
+  public byte[] getData() {
+    if (this.value == null) {
+      return this.data;
+    }
+    // Holds a reference of the value while it's being read so its slot
+    // can't be reused, no lock is held during the read.
+    OffHeapValue held = this.value;
+    held.store.retain(held);
+    try {
+      byte[] bytes = new byte[held.length];
+      held.buffer().get(bytes);
+      return bytes;
+    } finally {
+      held.store.release(held);
+    }
+  }
+
+  /**
+   * Gets a read-only buffer of the data which stays valid after the node is
+   * released, or null if the data has to be read through {@link #getData} or
+   * {@link #writeTo} since its slot may be reused.
+   */
+  public ByteBuffer getReadOnlyBuffer() {
+    if (this.value == null) {
+      return ByteBuffer.wrap(this.data).asReadOnlyBuffer();
+    }
+    if (this.value instanceof ValueLog.LogValue) {
+      // The values in the log are never overwritten.
+      return this.value.buffer();
+    }
+    return null;
+  }
+
+  /**
+   * Writes the data to the stream, the data off heap is written from its
+   * direct buffer through a small buffer.
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    if (this.value == null) {
+      out.write(this.data);
+      return;
+    }
+    // The slow clients don't block the other readers of the value.
+    OffHeapValue held = this.value;
+    held.store.retain(held);
+    try {
+      ByteBuffer buffer = held.buffer();
+      byte[] chunk = new byte[Math.min(buffer.remaining(), 8192)];
+      while (buffer.hasRemaining()) {
+        int length = Math.min(buffer.remaining(), chunk.length);
+        buffer.get(chunk, 0, length);
+        out.write(chunk, 0, length);
+      }
+    } finally {
+      held.store.release(held);
+    }
+  }
+
   private long calcChecksum() {
-    ByteArrayOutputStream bout = new ByteArrayOutputStream();
-    try (DataOutputStream dout = new DataOutputStream(bout)) {
-      dout.write(data);
-      dout.writeLong(version);
-      dout.writeBytes(fullPath);
-      Adler32 adler = new Adler32();
-      adler.update(bout.toByteArray());
-      return adler.getValue();
-    } catch (IOException ex) {
-      throw new RuntimeException(ex.getMessage());
+    // Streams the fields into the checksum without copying the data.
+    ChecksumBuilder checksum = new ChecksumBuilder();
+    if (this.value == null) {
+      checksum.putBytes(this.data);
+    } else {
+      checksum.putBytes(this.value.buffer());
     }
+    return checksum.putLong(version)
+                   .putBytes(fullPath)
+                   .getValue();
   }
 }
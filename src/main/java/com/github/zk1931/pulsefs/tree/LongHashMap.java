@@ -0,0 +1,203 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs.tree;
+
+import java.util.Arrays;
+
+/**
+ * A hash map keyed by primitive long, which avoids boxing the keys and
+ * allocating an entry object per mapping. It uses open addressing with
+ * linear probing and backward shift deletion. This class is not thread-safe.
+ *
+ * @param <V> the type of values.
+ */
+public class LongHashMap<V> {
+
+  private static final int MIN_CAPACITY = 16;
+
+  private long[] keys;
+  private Object[] values;
+  private int size = 0;
+  private int mask;
+
+  public LongHashMap() {
+    this(MIN_CAPACITY);
+  }
+
+  public LongHashMap(int expectedSize) {
+    int capacity = MIN_CAPACITY;
+    // Keeps the load factor below 0.5.
+    while (capacity < expectedSize * 2) {
+      capacity <<= 1;
+    }
+    allocate(capacity);
+  }
+
+  /**
+   * Gets the value of the given key.
+   *
+   * @return the value, or null if there's no mapping for the key.
+   */
+  @SuppressWarnings("unchecked")
+  public V get(long key) {
+    int idx = indexOf(key);
+    return idx < 0 ? null : (V)values[idx];
+  }
+
+  public boolean containsKey(long key) {
+    return indexOf(key) >= 0;
+  }
+
+  /**
+   * Associates the value with the key.
+   *
+   * @param value the value, can't be null.
+   * @return the previous value of the key, or null if there's none.
+   */
+  @SuppressWarnings("unchecked")
+  public V put(long key, V value) {
+    if (value == null) {
+      throw new NullPointerException("value can't be null");
+    }
+    int idx = slot(key);
+    while (values[idx] != null) {
+      if (keys[idx] == key) {
+        V old = (V)values[idx];
+        values[idx] = value;
+        return old;
+      }
+      idx = (idx + 1) & mask;
+    }
+    keys[idx] = key;
+    values[idx] = value;
+    if (++size * 2 > values.length) {
+      resize(values.length * 2);
+    }
+    return null;
+  }
+
+  /**
+   * Removes the mapping of the key.
+   *
+   * @return the removed value, or null if there's no mapping for the key.
+   */
+  @SuppressWarnings("unchecked")
+  public V remove(long key) {
+    int idx = indexOf(key);
+    if (idx < 0) {
+      return null;
+    }
+    V old = (V)values[idx];
+    // Shifts back the following entries of the probe sequence so no
+    // tombstone is needed.
+    int hole = idx;
+    int next = (hole + 1) & mask;
+    while (values[next] != null) {
+      int home = slot(keys[next]);
+      // Moves the entry to the hole if its home slot is not in (hole, next].
+      if (((next - home) & mask) >= ((next - hole) & mask)) {
+        keys[hole] = keys[next];
+        values[hole] = values[next];
+        hole = next;
+      }
+      next = (next + 1) & mask;
+    }
+    values[hole] = null;
+    size--;
+    return old;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public void clear() {
+    Arrays.fill(values, null);
+    size = 0;
+  }
+
+  /**
+   * Visits all the mappings of the map, the map must not be modified during
+   * the visit.
+   */
+  @SuppressWarnings("unchecked")
+  public void visit(Visitor<V> visitor) {
+    for (int i = 0; i < values.length; ++i) {
+      if (values[i] != null) {
+        visitor.visit(keys[i], (V)values[i]);
+      }
+    }
+  }
+
+  /**
+   * Visitor of the mappings.
+   *
+   * @param <V> the type of values.
+   */
+  public interface Visitor<V> {
+    void visit(long key, V value);
+  }
+
+  private int indexOf(long key) {
+    int idx = slot(key);
+    while (values[idx] != null) {
+      if (keys[idx] == key) {
+        return idx;
+      }
+      idx = (idx + 1) & mask;
+    }
+    return -1;
+  }
+
+  private int slot(long key) {
+    // Finalizer of MurmurHash3, spreads sequential keys over the table.
+    long h = key;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return (int)h & mask;
+  }
+
+  private void allocate(int capacity) {
+    this.keys = new long[capacity];
+    this.values = new Object[capacity];
+    this.mask = capacity - 1;
+  }
+
+  private void resize(int capacity) {
+    long[] oldKeys = this.keys;
+    Object[] oldValues = this.values;
+    allocate(capacity);
+    for (int i = 0; i < oldValues.length; ++i) {
+      if (oldValues[i] != null) {
+        int idx = slot(oldKeys[i]);
+        while (values[idx] != null) {
+          idx = (idx + 1) & mask;
+        }
+        keys[idx] = oldKeys[i];
+        values[idx] = oldValues[i];
+      }
+    }
+  }
+}
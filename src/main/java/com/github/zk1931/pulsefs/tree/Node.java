@@ -27,9 +27,10 @@ public abstract class Node {
   public final String fullPath;
 
   /**
-   * The version of the node.
+   * The version of the node. It only changes while the node is being edited
+   * in a staging batch, see {@link DataTree#startEditSession}.
    */
-  public final long version;
+  long version;
 
   public Node(String fullPath,
               long version) {
@@ -37,6 +38,13 @@ public abstract class Node {
     this.version = version;
   }
 
+  /**
+   * Gets the version of the node.
+   */
+  public long getVersion() {
+    return this.version;
+  }
+
   public abstract boolean isDirectory();
 
   public abstract long getChecksum();
@@ -51,6 +51,14 @@ public final class PathUtils {
     return path.substring(sepIdx + 1);
   }
 
+  public static String parent(String path) {
+    int sepIdx = path.lastIndexOf(SEP);
+    if (sepIdx <= 0) {
+      return ROOT_PATH;
+    }
+    return path.substring(0, sepIdx);
+  }
+
   public static String concat(String path1, String path2) {
     if (path1.equals(ROOT_PATH)) {
       return path1 + path2;
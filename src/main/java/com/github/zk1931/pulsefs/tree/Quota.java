@@ -0,0 +1,62 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs.tree;
+
+/**
+ * The limits of the number of descendants and the bytes of data under a
+ * directory, -1 means unlimited. Exceeding a hard limit rejects the change,
+ * exceeding a soft limit only warns.
+ */
+public final class Quota {
+  public final long maxNodes;
+  public final long maxBytes;
+  public final long softNodes;
+  public final long softBytes;
+
+  public Quota(long maxNodes, long maxBytes, long softNodes, long softBytes) {
+    this.maxNodes = maxNodes;
+    this.maxBytes = maxBytes;
+    this.softNodes = softNodes;
+    this.softBytes = softBytes;
+  }
+
+  /**
+   * Whether the subtree of the directory exceeds the hard limits.
+   */
+  boolean exceeds(DirNode dir) {
+    return exceeds(dir, this.maxNodes, this.maxBytes);
+  }
+
+  /**
+   * Whether the subtree of the directory exceeds the soft limits.
+   */
+  boolean exceedsSoft(DirNode dir) {
+    return exceeds(dir, this.softNodes, this.softBytes);
+  }
+
+  private static boolean exceeds(DirNode dir, long nodes, long bytes) {
+    return (nodes >= 0 && dir.descendantCount > nodes) ||
+           (bytes >= 0 && dir.dataBytes > bytes);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("nodes=%d, bytes=%d, soft nodes=%d, soft bytes=%d",
+                         maxNodes, maxBytes, softNodes, softBytes);
+  }
+}
@@ -17,39 +17,38 @@
 
 package com.github.zk1931.pulsefs.tree;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * This class manages all the session files of DataTree.
+ * This class manages all the session files of DataTree. The files of each
+ * session are kept in a compact array which references the path strings of
+ * the tree nodes, all the versions of a node share the same path string so
+ * no path is copied.
  */
 public class SessionFileManager {
 
   private static final Logger LOG =
     LoggerFactory.getLogger(SessionFileManager.class);
 
-  private final Map<Long, Set<String>> sessionFiles =
-    new HashMap<Long, Set<String>>();
+  private final LongHashMap<SessionFiles> sessionFiles =
+    new LongHashMap<SessionFiles>();
 
   public void addFileToSession(long sessionID, String path) {
-    Set<String> files = this.sessionFiles.get(sessionID);
+    SessionFiles files = this.sessionFiles.get(sessionID);
     if (files == null) {
-      files = new HashSet<String>();
+      files = new SessionFiles();
       this.sessionFiles.put(sessionID, files);
     }
-    if (files.contains(path)) {
-      LOG.error("{} exists in session {}", path, sessionID);
-      throw new RuntimeException(path + " exists in session " + sessionID);
-    }
+    // The tree guarantees the uniqueness of the path, no need to check.
     files.add(path);
   }
 
   public void removeFileFromSession(long sessionID, String path) {
-    Set<String> files = this.sessionFiles.get(sessionID);
+    SessionFiles files = this.sessionFiles.get(sessionID);
     if (files == null) {
       LOG.error("Session {} doesn't exist.", sessionID);
       throw new RuntimeException("Session " + sessionID + " doesn't exist");
@@ -64,14 +63,171 @@ public class SessionFileManager {
   }
 
   /**
-   * Gets paths of all the session of with the given sessionID.
+   * Gets paths of all the session files of the given session. The returned
+   * list is a read-only view instead of a copy, it must not be accessed
+   * after the files of the session are changed.
+   *
+   * @return the paths of session files, or null if there's none.
    */
-  public Set<String> getSessionFiles(long sessionID) {
-    Set<String> files = this.sessionFiles.get(sessionID);
-    if (files == null) {
-      return null;
+  public List<String> getSessionFiles(long sessionID) {
+    return this.sessionFiles.get(sessionID);
+  }
+
+  /**
+   * Paths of files of a session. The files of a large session are indexed by
+   * their positions in an open addressing table of ints, so removing any of
+   * them is O(1) without any object per file.
+   */
+  static class SessionFiles extends AbstractList<String> {
+    // Sessions with more files than this have their positions indexed.
+    static final int INDEX_THRESHOLD = 8;
+
+    private String[] paths = new String[2];
+    private int size = 0;
+    // The positions of paths plus one (0 for empty slot) by the hashes of
+    // the paths with linear probing, it's twice as large as the array of
+    // paths. It's null for small sessions which are scanned.
+    private int[] index = null;
+
+    @Override
+    public String get(int idx) {
+      if (idx < 0 || idx >= size) {
+        throw new IndexOutOfBoundsException("Index " + idx);
+      }
+      return paths[idx];
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public boolean add(String path) {
+      if (size == paths.length) {
+        paths = Arrays.copyOf(paths, size * 2);
+        if (index != null) {
+          rebuildIndex();
+        }
+      }
+      paths[size++] = path;
+      if (index != null) {
+        insert(size - 1);
+      } else if (size > INDEX_THRESHOLD) {
+        rebuildIndex();
+      }
+      return true;
+    }
+
+    /**
+     * Removes the path by moving the last path to its place.
+     */
+    boolean remove(String path) {
+      int idx;
+      if (index != null) {
+        int slot = findSlot(path);
+        if (slot < 0) {
+          return false;
+        }
+        idx = index[slot] - 1;
+        deleteSlot(slot);
+        if (idx != size - 1) {
+          index[findSlot(paths[size - 1])] = idx + 1;
+        }
+      } else {
+        idx = indexOf(path);
+        if (idx < 0) {
+          return false;
+        }
+      }
+      paths[idx] = paths[size - 1];
+      paths[--size] = null;
+      if (index != null && size <= INDEX_THRESHOLD / 2) {
+        index = null;
+      }
+      if (size > 0 && size * 4 <= paths.length) {
+        paths = Arrays.copyOf(paths, paths.length / 2);
+        if (index != null) {
+          rebuildIndex();
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public int indexOf(Object path) {
+      if (index != null) {
+        int slot = findSlot(path);
+        return slot < 0 ? -1 : index[slot] - 1;
+      }
+      // Searches from the end since expiration deletes the files of a
+      // session in reverse order.
+      for (int i = size - 1; i >= 0; --i) {
+        // Most likely it's the same reference, compares reference first.
+        if (paths[i] == path || paths[i].equals(path)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    boolean isIndexed() {
+      return index != null;
+    }
+
+    private static int hash(Object path) {
+      // The hash codes of the strings are cached, spreads the high bits.
+      int h = path.hashCode();
+      return h ^ (h >>> 16);
+    }
+
+    private void rebuildIndex() {
+      index = new int[paths.length * 2];
+      for (int i = 0; i < size; ++i) {
+        insert(i);
+      }
+    }
+
+    private void insert(int idx) {
+      int mask = index.length - 1;
+      int slot = hash(paths[idx]) & mask;
+      while (index[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      index[slot] = idx + 1;
+    }
+
+    private int findSlot(Object path) {
+      int mask = index.length - 1;
+      int slot = hash(path) & mask;
+      while (index[slot] != 0) {
+        String candidate = paths[index[slot] - 1];
+        if (candidate == path || candidate.equals(path)) {
+          return slot;
+        }
+        slot = (slot + 1) & mask;
+      }
+      return -1;
+    }
+
+    /**
+     * Empties the slot and shifts the following entries of the probe
+     * sequence back, so the lookups never stop at the hole.
+     */
+    private void deleteSlot(int slot) {
+      int mask = index.length - 1;
+      int hole = slot;
+      int next = (hole + 1) & mask;
+      while (index[next] != 0) {
+        int home = hash(paths[index[next] - 1]) & mask;
+        // Moves the entry if the hole is between its home and itself.
+        if (((next - home) & mask) >= ((next - hole) & mask)) {
+          index[hole] = index[next];
+          hole = next;
+        }
+        next = (next + 1) & mask;
+      }
+      index[hole] = 0;
     }
-    // Returns the copy.
-    return new HashSet<String>(files);
   }
 }
@@ -17,11 +17,6 @@
 
 package com.github.zk1931.pulsefs.tree;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.util.zip.Adler32;
-
 /**
  * Session File Node.
  */
@@ -33,11 +28,39 @@ public class SessionFileNode extends FileNode {
                          long version,
                          long sessionID,
                          byte[] data) {
-    super(fullPath, version, data);
+    this(fullPath, version, sessionID, data, null);
+  }
+
+  SessionFileNode(String fullPath,
+                  long version,
+                  long sessionID,
+                  byte[] data,
+                  ValueStore store) {
+    this(fullPath, version, sessionID, data, false, store);
+  }
+
+  SessionFileNode(String fullPath,
+                  long version,
+                  long sessionID,
+                  byte[] data,
+                  boolean compressed,
+                  ValueStore store) {
+    super(fullPath, version, data, compressed, store);
     this.sessionID = sessionID;
     this.sessionFileChecksum = calcChecksum();
   }
 
+  SessionFileNode(SessionFileNode node, long version) {
+    super(node, version);
+    this.sessionID = node.sessionID;
+    this.sessionFileChecksum = calcChecksum();
+  }
+
+  @Override
+  FileNode copy(long newVersion) {
+    return new SessionFileNode(this, newVersion);
+  }
+
   @Override
   public String getNodeName() {
     return "session-file";
@@ -49,16 +72,9 @@ public class SessionFileNode extends FileNode {
   }
 
   private long calcChecksum() {
-    ByteArrayOutputStream bout = new ByteArrayOutputStream();
-    try (DataOutputStream dout = new DataOutputStream(bout)) {
-      // The checksum of parent class.
-      dout.writeLong(this.fileChecksum);
-      dout.writeLong(this.sessionID);
-      Adler32 adler = new Adler32();
-      adler.update(bout.toByteArray());
-      return adler.getValue();
-    } catch (IOException ex) {
-      throw new RuntimeException(ex.getMessage());
-    }
+    // The checksum of parent class.
+    return new ChecksumBuilder().putLong(this.fileChecksum)
+                                .putLong(this.sessionID)
+                                .getValue();
   }
 }
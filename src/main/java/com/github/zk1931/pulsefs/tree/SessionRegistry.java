@@ -0,0 +1,237 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs.tree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In memory table of all the sessions of DataTree, keyed by session ID. It's
+ * kept in sync with the tree in {@link DataTree#commitStagingChanges}, so
+ * the existence and the owner of a session can be checked without looking up
+ * its session file in the tree.
+ */
+public class SessionRegistry {
+
+  private final LongHashMap<Entry> sessions = new LongHashMap<Entry>();
+  // The number of alive sessions of each owner.
+  private final Map<String, Integer> ownerCounts =
+    new HashMap<String, Integer>();
+
+  /**
+   * Checks whether the session is alive, a session is alive as long as its
+   * session file exists.
+   *
+   * @param sessionID the ID of session.
+   * @return true if the session is alive, false otherwise.
+   */
+  public synchronized boolean isAlive(long sessionID) {
+    Entry entry = sessions.get(sessionID);
+    return entry != null && entry.owner != null;
+  }
+
+  /**
+   * Checks whether the session is known to the registry, either it's alive or
+   * there're still session files belong to it.
+   */
+  public synchronized boolean contains(long sessionID) {
+    return sessions.containsKey(sessionID);
+  }
+
+  /**
+   * Gets the owner of the session.
+   *
+   * @return the server ID of the owner, or null if session is not alive.
+   */
+  public synchronized String getOwner(long sessionID) {
+    Entry entry = sessions.get(sessionID);
+    return entry == null ? null : entry.owner;
+  }
+
+  /**
+   * Checks whether the session is alive and owned by the given server.
+   */
+  public synchronized boolean isOwnedBy(long sessionID, String serverId) {
+    Entry entry = sessions.get(sessionID);
+    return entry != null && serverId.equals(entry.owner);
+  }
+
+  /**
+   * Gets the number of session files of the session, including the session
+   * file of the session itself.
+   */
+  public synchronized int getFileCount(long sessionID) {
+    Entry entry = sessions.get(sessionID);
+    return entry == null ? 0 : entry.fileCount;
+  }
+
+  /**
+   * Gets the time (in System.nanoTime) of the last renewal of the session
+   * on this server.
+   *
+   * @return the time of last renewal, or -1 if it's never renewed here.
+   */
+  public synchronized long getLastRenew(long sessionID) {
+    Entry entry = sessions.get(sessionID);
+    return entry == null ? -1 : entry.lastRenewNs;
+  }
+
+  /**
+   * Records the renewal of a session. It's transient state, it's not
+   * replicated.
+   */
+  public synchronized void renew(long sessionID, long nowNs) {
+    Entry entry = sessions.get(sessionID);
+    if (entry != null) {
+      entry.lastRenewNs = nowNs;
+    }
+  }
+
+  /**
+   * Gets the alive sessions whose owners are not in the given servers.
+   *
+   * @param servers the IDs of the live servers.
+   * @return the IDs of orphaned sessions in ascending order.
+   */
+  public synchronized long[] getOrphanedSessions(Set<String> servers) {
+    return getSessions(servers, false);
+  }
+
+  /**
+   * Gets the alive sessions owned by the given server.
+   *
+   * @param serverId the ID of server.
+   * @return the IDs of sessions in ascending order.
+   */
+  public synchronized long[] getOwnedSessions(String serverId) {
+    return getSessions(Collections.singleton(serverId), true);
+  }
+
+  /**
+   * Gets the number of alive sessions of each owner.
+   *
+   * @return a copy of the map from server ID to the number of sessions.
+   */
+  public synchronized Map<String, Integer> getSessionCounts() {
+    return new HashMap<String, Integer>(ownerCounts);
+  }
+
+  /**
+   * Gets the number of sessions in registry.
+   */
+  public synchronized int size() {
+    return sessions.size();
+  }
+
+  synchronized void setOwner(long sessionID, String owner) {
+    Entry entry = getOrCreate(sessionID);
+    updateOwnerCount(entry.owner, -1);
+    updateOwnerCount(owner, 1);
+    entry.owner = owner;
+  }
+
+  synchronized void removeOwner(long sessionID) {
+    Entry entry = sessions.get(sessionID);
+    if (entry != null) {
+      updateOwnerCount(entry.owner, -1);
+      entry.owner = null;
+      removeIfDead(sessionID, entry);
+    }
+  }
+
+  private void updateOwnerCount(String owner, int delta) {
+    if (owner == null) {
+      return;
+    }
+    Integer count = ownerCounts.get(owner);
+    int newCount = (count == null ? 0 : count) + delta;
+    if (newCount > 0) {
+      ownerCounts.put(owner, newCount);
+    } else {
+      ownerCounts.remove(owner);
+    }
+  }
+
+  synchronized void addFile(long sessionID) {
+    getOrCreate(sessionID).fileCount++;
+  }
+
+  synchronized void removeFile(long sessionID) {
+    Entry entry = sessions.get(sessionID);
+    if (entry != null) {
+      entry.fileCount--;
+      removeIfDead(sessionID, entry);
+    }
+  }
+
+  /**
+   * Gets the alive sessions whose owners are (or are not) in the given
+   * servers, in ascending order.
+   */
+  private long[] getSessions(final Set<String> servers, final boolean in) {
+    final List<Long> ids = new ArrayList<Long>();
+    sessions.visit(new LongHashMap.Visitor<Entry>() {
+      @Override
+      public void visit(long sessionID, Entry entry) {
+        if (entry.owner != null && servers.contains(entry.owner) == in) {
+          ids.add(sessionID);
+        }
+      }
+    });
+    long[] ret = toArray(ids);
+    Arrays.sort(ret);
+    return ret;
+  }
+
+  private static long[] toArray(List<Long> ids) {
+    long[] ret = new long[ids.size()];
+    for (int i = 0; i < ret.length; ++i) {
+      ret[i] = ids.get(i);
+    }
+    return ret;
+  }
+
+  private Entry getOrCreate(long sessionID) {
+    Entry entry = sessions.get(sessionID);
+    if (entry == null) {
+      entry = new Entry();
+      sessions.put(sessionID, entry);
+    }
+    return entry;
+  }
+
+  private void removeIfDead(long sessionID, Entry entry) {
+    if (entry.owner == null && entry.fileCount <= 0) {
+      sessions.remove(sessionID);
+    }
+  }
+
+  /**
+   * Entry of the session table.
+   */
+  static class Entry {
+    String owner = null;
+    int fileCount = 0;
+    long lastRenewNs = -1;
+  }
+}
@@ -17,22 +17,33 @@
 
 package com.github.zk1931.pulsefs.tree;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
 import java.util.Map;
-import java.util.zip.Adler32;
 
 /**
  * Traisient Directory Node.
  */
 public class TransientDirNode extends DirNode {
-  final long transientDirChecksum;
+  long transientDirChecksum;
 
   public TransientDirNode(String fullPath,
                           long version,
                           Map<String, Node> children) {
-    super(fullPath, version, children);
+    this(fullPath, version, children, null);
+  }
+
+  TransientDirNode(String fullPath,
+                   long version,
+                   Map<String, Node> children,
+                   Object editOwner) {
+    super(fullPath, version, children, editOwner);
+    if (editOwner == null) {
+      this.transientDirChecksum = calcChecksum();
+    }
+  }
+
+  @Override
+  void freeze() {
+    super.freeze();
     this.transientDirChecksum = calcChecksum();
   }
 
@@ -47,16 +58,9 @@ public class TransientDirNode extends DirNode {
   }
 
   private long calcChecksum() {
-    ByteArrayOutputStream bout = new ByteArrayOutputStream();
-    try (DataOutputStream dout = new DataOutputStream(bout)) {
-      dout.writeLong(this.dirChecksum);
-      // Just to distinguish itself from normal directory.
-      dout.writeLong(0xdeadbeaf);
-      Adler32 adler = new Adler32();
-      adler.update(bout.toByteArray());
-      return adler.getValue();
-    } catch (IOException ex) {
-      throw new RuntimeException(ex.getMessage());
-    }
+    // Just to distinguish itself from normal directory.
+    return new ChecksumBuilder().putLong(this.dirChecksum)
+                                .putLong(0xdeadbeaf)
+                                .getValue();
   }
 }
@@ -0,0 +1,214 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs.tree;
+
+import static com.github.zk1931.pulsefs.tree.PathUtils.trimRoot;
+import static com.github.zk1931.pulsefs.tree.PathUtils.validatePath;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * A single operation of a batch applied by
+ * {@link DataTree#applyInStagingArea}. Each operation can only be applied
+ * once, its result or error is kept in the operation.
+ */
+public abstract class TreeOp {
+
+  final String path;
+  Node result = null;
+  DataTree.TreeException error = null;
+  // The changes and the resulting top level node of the operation when it's
+  // applied in a partition of the batch.
+  List<Node> partitionChanges = null;
+  Node partitionNode = null;
+
+  TreeOp(String path) {
+    this.path = path;
+  }
+
+  /**
+   * Creates an operation which creates a file.
+   *
+   * @param compressed whether the data is gzip compressed.
+   * @param sessionID the session of the file, or -1 for a regular file.
+   */
+  public static TreeOp createFile(String path,
+                                  byte[] data,
+                                  boolean compressed,
+                                  long sessionID,
+                                  boolean recursive,
+                                  boolean isTransient) {
+    return new CreateFileOp(path, data, compressed, sessionID, recursive,
+                            isTransient);
+  }
+
+  /**
+   * Creates an operation which deletes a node.
+   */
+  public static TreeOp delete(String path, long version, boolean recursive) {
+    return new DeleteOp(path, version, recursive);
+  }
+
+  /**
+   * Creates an operation which updates the data of a file.
+   *
+   * @param compressed whether the data is gzip compressed.
+   */
+  public static TreeOp setData(String path,
+                               byte[] data,
+                               boolean compressed,
+                               long version) {
+    return new SetDataOp(path, data, compressed, version);
+  }
+
+  /**
+   * Gets the path of the operation.
+   */
+  public String getPath() {
+    return this.path;
+  }
+
+  /**
+   * Gets the result of the operation, which is the same as the return value
+   * of the corresponding method of DataTree.
+   *
+   * @throws TreeException if the operation failed.
+   */
+  public Node getResult() throws DataTree.TreeException {
+    if (this.error != null) {
+      throw this.error;
+    }
+    return this.result;
+  }
+
+  /**
+   * Applies the operation to the tree of the given root.
+   *
+   * @return the new root.
+   */
+  abstract DirNode apply(DataTree tree, DirNode root, List<Node> changes)
+      throws DataTree.TreeException;
+
+  static class CreateFileOp extends TreeOp {
+    final byte[] data;
+    final boolean compressed;
+    final long sessionID;
+    final boolean recursive;
+    final boolean isTransient;
+
+    CreateFileOp(String path,
+                 byte[] data,
+                 boolean compressed,
+                 long sessionID,
+                 boolean recursive,
+                 boolean isTransient) {
+      super(path);
+      this.data = data;
+      this.compressed = compressed;
+      this.sessionID = sessionID;
+      this.recursive = recursive;
+      this.isTransient = isTransient;
+    }
+
+    @Override
+    DirNode apply(DataTree tree, DirNode root, List<Node> changes)
+        throws DataTree.TreeException {
+      validatePath(path);
+      Node createdNode;
+      if (sessionID < 0) {
+        createdNode =
+          new FileNode(path, 0, data, compressed, tree.valueStore);
+      } else {
+        createdNode = new SessionFileNode(path, 0, sessionID, data,
+                                          compressed, tree.valueStore);
+      }
+      DirNode newRoot = tree.createNode(root,
+                                        createdNode,
+                                        trimRoot(path),
+                                        recursive,
+                                        isTransient,
+                                        changes);
+      this.result = createdNode;
+      return newRoot;
+    }
+  }
+
+  static class DeleteOp extends TreeOp {
+    final long version;
+    final boolean recursive;
+
+    DeleteOp(String path, long version, boolean recursive) {
+      super(path);
+      this.version = version;
+      this.recursive = recursive;
+    }
+
+    @Override
+    DirNode apply(DataTree tree, DirNode root, List<Node> changes)
+        throws DataTree.TreeException {
+      validatePath(path);
+      String relPath = trimRoot(path);
+      if (relPath.equals("")) {
+        throw new DataTree.DeleteRootDir();
+      }
+      int idx = changes.size();
+      DirNode newRoot =
+        (DirNode)tree.deleteNode(root, relPath, version, recursive, changes);
+      this.result = changes.get(idx);
+      return newRoot;
+    }
+  }
+
+  static class SetDataOp extends TreeOp {
+    final byte[] data;
+    final boolean compressed;
+    final long version;
+
+    SetDataOp(String path, byte[] data, boolean compressed, long version) {
+      super(path);
+      this.data = data;
+      this.compressed = compressed;
+      this.version = version;
+    }
+
+    @Override
+    DirNode apply(DataTree tree, DirNode root, List<Node> changes)
+        throws DataTree.TreeException {
+      validatePath(path);
+      int idx = changes.size();
+      DirNode newRoot =
+        (DirNode)tree.setData(root, trimRoot(path), data, compressed,
+                              version, changes);
+      this.result = changes.get(idx);
+      return newRoot;
+    }
+  }
+
+  /**
+   * Creates a root which only contains the given top level node, operations
+   * on the subtree of the node can be applied to it without copying the
+   * children of the real root.
+   */
+  static DirNode partitionRoot(DirNode root, String name, Node node) {
+    TreeMap<String, Node> children = new TreeMap<>();
+    if (node != null) {
+      children.put(name, node);
+    }
+    return new DirNode(root.fullPath, root.version, children);
+  }
+}
@@ -0,0 +1,296 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs.tree;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Value store which appends the values to memory-mapped segment files, the
+ * tree only keeps the segment, the offset and the length of each value and
+ * the page cache decides which values stay resident.
+ *
+ * The values are written once and never modified, so a buffer of a value
+ * stays valid after the value is released, even if its segment has been
+ * deleted. Once the live bytes of a full segment drop below half of its
+ * bytes, its live values are moved to the end of the log with
+ * {@link FileChannel#transferTo} and the segment is deleted.
+ *
+ * The tree is rebuilt from the transaction log on recovery, so the segments
+ * left by the previous run are deleted on start.
+ */
+public class ValueLog extends ValueStore {
+
+  public static final int DEFAULT_THRESHOLD = 4096;
+
+  private static final Logger LOG = LoggerFactory.getLogger(ValueLog.class);
+  private static final String SEGMENT_PREFIX = "values.";
+
+  private final File dir;
+  private final int segmentSize;
+  private final List<Segment> segments = new ArrayList<Segment>();
+  // The segment which the values are appended to.
+  private Segment activeSegment = null;
+  private long nextSegmentId = 0;
+  private long liveBytes = 0;
+  private long liveValues = 0;
+  private long compactions = 0;
+  private long compactedBytes = 0;
+
+  /**
+   * Constructs the log.
+   *
+   * @param dir the directory of the segment files.
+   * @param threshold the values not smaller than it are stored in the log.
+   * @param segmentSize the size of each segment, the values larger than it
+   * get their own segments.
+   * @throws IOException if the directory can't be created.
+   */
+  public ValueLog(File dir, int threshold, int segmentSize)
+      throws IOException {
+    super(threshold, 0);
+    this.dir = dir;
+    this.segmentSize = segmentSize;
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Failed to create " + dir);
+    }
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.getName().startsWith(SEGMENT_PREFIX) && !file.delete()) {
+          throw new IOException("Failed to delete " + file);
+        }
+      }
+    }
+  }
+
+  @Override
+  OffHeapValue allocate(byte[] data) {
+    try {
+      Segment segment = allocate(data.length);
+      ByteBuffer slot = segment.append(data);
+      LogValue value = new LogValue(this, slot, segment, data.length);
+      segment.add(value);
+      this.liveBytes += data.length;
+      this.liveValues++;
+      return value;
+    } catch (IOException ex) {
+      LOG.warn("Failed to append the value, keeps it on heap.", ex);
+      return null;
+    }
+  }
+
+  @Override
+  void free(OffHeapValue value) {
+    LogValue logValue = (LogValue)value;
+    Segment segment = logValue.segment;
+    segment.remove(logValue);
+    this.liveBytes -= value.length;
+    this.liveValues--;
+    if (segment != this.activeSegment) {
+      retire(segment);
+    }
+  }
+
+  /**
+   * Deletes the segment which is no longer appended to if it's empty, or
+   * compacts it if less than half of its bytes are live.
+   */
+  private void retire(Segment segment) {
+    if (segment.values.isEmpty()) {
+      deleteSegment(segment);
+    } else if (segment.liveBytes * 2 < segment.position) {
+      compact(segment);
+    }
+  }
+
+  /**
+   * Moves the live values of the segment to the end of the log and deletes
+   * the segment.
+   */
+  private void compact(Segment segment) {
+    try {
+      List<LogValue> values = new ArrayList<LogValue>(segment.values);
+      for (LogValue value : values) {
+        Segment target = allocate(value.length);
+        target.transferFrom(segment, value.offset, value.length);
+        ByteBuffer slot = target.slice(target.position - value.length,
+                                       value.length);
+        segment.remove(value);
+        value.segment = target;
+        value.offset = target.position - value.length;
+        value.slot = slot;
+        target.add(value);
+        this.compactedBytes += value.length;
+      }
+      this.compactions++;
+      deleteSegment(segment);
+    } catch (IOException ex) {
+      // The values which are not moved stay in the segment.
+      LOG.warn("Failed to compact {}.", segment.file, ex);
+    }
+  }
+
+  /**
+   * Gets the segment which has room for the value, starts a new segment if
+   * the active segment is full.
+   */
+  private Segment allocate(int length) throws IOException {
+    if (this.activeSegment != null &&
+        this.activeSegment.position + length <= this.activeSegment.size) {
+      return this.activeSegment;
+    }
+    Segment previous = this.activeSegment;
+    File file = new File(this.dir, SEGMENT_PREFIX + this.nextSegmentId++);
+    this.activeSegment = new Segment(file, Math.max(length, this.segmentSize));
+    this.segments.add(this.activeSegment);
+    if (previous != null) {
+      // Compacting the previous segment may fill up the new one.
+      retire(previous);
+      return allocate(length);
+    }
+    return this.activeSegment;
+  }
+
+  private void deleteSegment(Segment segment) {
+    this.segments.remove(segment);
+    try {
+      // The mapping stays valid until the buffers of the segment are
+      // garbage collected.
+      segment.channel.close();
+    } catch (IOException ex) {
+      LOG.warn("Failed to close {}.", segment.file, ex);
+    }
+    if (!segment.file.delete()) {
+      LOG.warn("Failed to delete {}.", segment.file);
+    }
+  }
+
+  /**
+   * Gets the statistics of the log.
+   */
+  @Override
+  public synchronized Map<String, Long> getStats() {
+    reclaim();
+    long logBytes = 0;
+    for (Segment segment : this.segments) {
+      logBytes += segment.position;
+    }
+    Map<String, Long> stats = new LinkedHashMap<>();
+    stats.put("threshold", (long)getThreshold());
+    stats.put("segments", (long)this.segments.size());
+    stats.put("logBytes", logBytes);
+    stats.put("liveBytes", this.liveBytes);
+    stats.put("liveValues", this.liveValues);
+    stats.put("compactions", this.compactions);
+    stats.put("compactedBytes", this.compactedBytes);
+    putDedupStats(stats);
+    return stats;
+  }
+
+  /**
+   * A memory-mapped segment file.
+   */
+  static class Segment {
+    final File file;
+    final FileChannel channel;
+    final MappedByteBuffer map;
+    final int size;
+    // The end of the appended values.
+    int position = 0;
+    long liveBytes = 0;
+    final Set<LogValue> values =
+      Collections.newSetFromMap(new IdentityHashMap<LogValue, Boolean>());
+
+    Segment(File file, int size) throws IOException {
+      this.file = file;
+      this.size = size;
+      // The file is closed with its channel.
+      this.channel = new RandomAccessFile(file, "rw").getChannel();
+      this.map = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    ByteBuffer append(byte[] data) {
+      ByteBuffer slot = slice(this.position, data.length);
+      slot.duplicate().put(data);
+      this.position += data.length;
+      return slot;
+    }
+
+    /**
+     * Appends the bytes of another segment through the file channels.
+     */
+    void transferFrom(Segment source, long offset, int length)
+        throws IOException {
+      long transferred = 0;
+      while (transferred < length) {
+        this.channel.position(this.position + transferred);
+        transferred += source.channel.transferTo(offset + transferred,
+                                                 length - transferred,
+                                                 this.channel);
+      }
+      this.position += length;
+    }
+
+    ByteBuffer slice(int offset, int length) {
+      ByteBuffer buffer = this.map.duplicate();
+      buffer.limit(offset + length);
+      buffer.position(offset);
+      return buffer.slice();
+    }
+
+    void add(LogValue value) {
+      this.values.add(value);
+      this.liveBytes += value.length;
+    }
+
+    void remove(LogValue value) {
+      if (this.values.remove(value)) {
+        this.liveBytes -= value.length;
+      }
+    }
+  }
+
+  /**
+   * A value stored in the log.
+   */
+  static class LogValue extends OffHeapValue {
+    // Guarded by the log.
+    Segment segment;
+    int offset;
+
+    LogValue(ValueLog log, ByteBuffer slot, Segment segment, int length) {
+      super(log, slot, length, -1);
+      this.segment = segment;
+      this.offset = segment.position - length;
+    }
+  }
+}
@@ -0,0 +1,422 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs.tree;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Off-heap storage of the file values. The values which are not smaller than
+ * the threshold are copied into the slots of direct buffers instead of being
+ * kept on heap, the slot sizes are powers of two from {@link #MIN_SLOT_SIZE}
+ * to {@link #SLAB_SIZE} and the slots of the same size are carved out of
+ * slabs of {@link #SLAB_SIZE}. The values larger than a slab get their own
+ * direct buffers.
+ *
+ * Each value is reference counted by the file nodes which hold it, a node
+ * releases its reference once it's garbage collected, which means no root
+ * retained by the tree or its readers references the node anymore. The slot
+ * is reused once all the references are released.
+ *
+ * With deduplication enabled, the values of the same SHA-256 digest share one
+ * slot, and the values kept on heap share one array for as long as any node
+ * holds it.
+ */
+public class ValueStore {
+
+  public static final int MIN_SLOT_SIZE = 256;
+  public static final int SLAB_SIZE = 1 << 20;
+
+  private final int threshold;
+  private final long maxBytes;
+  // The free slots of each size class.
+  private final List<ArrayDeque<ByteBuffer>> freeSlots =
+    new ArrayList<ArrayDeque<ByteBuffer>>();
+  private final ReferenceQueue<FileNode> queue = new ReferenceQueue<>();
+  // Keeps the references reachable until they're enqueued.
+  private final Set<NodeReference> references = new HashSet<>();
+  // The bytes of all the slabs and the dedicated buffers.
+  private long allocatedBytes = 0;
+  // The bytes of the slots which are in use.
+  private long usedBytes = 0;
+  private long liveValues = 0;
+  // The number of values kept on heap since the store is full.
+  private long rejectedValues = 0;
+  private volatile boolean dedup = false;
+  // The deduplicated values by their digests.
+  private final Map<Digest, OffHeapValue> offHeapValues = new HashMap<>();
+  private final Map<Digest, HeapValue> heapValues = new HashMap<>();
+  private final ReferenceQueue<byte[]> heapQueue = new ReferenceQueue<>();
+  // The number of values which are shared with an existing value.
+  private long dedupHits = 0;
+  private long dedupSavedBytes = 0;
+
+  /**
+   * Constructs the store.
+   *
+   * @param threshold the values not smaller than it are stored off heap.
+   * @param maxBytes the maximum bytes of direct buffers, the values are kept
+   * on heap once it's reached.
+   */
+  public ValueStore(int threshold, long maxBytes) {
+    this.threshold = Math.max(threshold, 1);
+    this.maxBytes = maxBytes;
+    for (int size = MIN_SLOT_SIZE; size <= SLAB_SIZE; size <<= 1) {
+      this.freeSlots.add(new ArrayDeque<ByteBuffer>());
+    }
+  }
+
+  public int getThreshold() {
+    return this.threshold;
+  }
+
+  /**
+   * Enables or disables the deduplication, the values with the same SHA-256
+   * digest share one copy, either on heap or off heap.
+   */
+  public void setDedup(boolean enabled) {
+    this.dedup = enabled;
+  }
+
+  public boolean isDedup() {
+    return this.dedup;
+  }
+
+  /**
+   * Stores the data for the node.
+   *
+   * @return the value in store which is retained by the node, or null if the
+   * data should be kept on heap.
+   */
+  OffHeapValue store(byte[] data, FileNode node) {
+    if (data.length < this.threshold) {
+      return null;
+    }
+    // Hashes the data out of the lock.
+    Digest digest = this.dedup ? Digest.of(data) : null;
+    synchronized (this) {
+      reclaim();
+      OffHeapValue value = null;
+      if (digest != null) {
+        value = this.offHeapValues.get(digest);
+      }
+      if (value != null) {
+        this.dedupHits++;
+        this.dedupSavedBytes += data.length;
+      } else {
+        value = allocate(data);
+        if (value == null) {
+          return null;
+        }
+        if (digest != null) {
+          value.digest = digest;
+          this.offHeapValues.put(digest, value);
+        }
+      }
+      retain(value, node);
+      return value;
+    }
+  }
+
+  /**
+   * Gets the data to keep on heap, which is the data of the same digest seen
+   * before if the deduplication is enabled.
+   */
+  byte[] intern(byte[] data) {
+    if (!this.dedup) {
+      return data;
+    }
+    Digest digest = Digest.of(data);
+    synchronized (this) {
+      reclaim();
+      HeapValue ref = this.heapValues.get(digest);
+      byte[] shared = ref == null ? null : ref.get();
+      if (shared != null) {
+        this.dedupHits++;
+        this.dedupSavedBytes += data.length;
+        return shared;
+      }
+      this.heapValues.put(digest, new HeapValue(data, digest, this.heapQueue));
+      return data;
+    }
+  }
+
+  /**
+   * Copies the data into a new slot, called with the lock held.
+   *
+   * @return the value, or null if the store is full.
+   */
+  OffHeapValue allocate(byte[] data) {
+    int sizeClass = sizeClass(data.length);
+    ByteBuffer slot;
+    if (sizeClass < 0) {
+      if (this.allocatedBytes + data.length > this.maxBytes) {
+        this.rejectedValues++;
+        return null;
+      }
+      slot = ByteBuffer.allocateDirect(data.length);
+      this.allocatedBytes += data.length;
+    } else {
+      ArrayDeque<ByteBuffer> free = this.freeSlots.get(sizeClass);
+      if (free.isEmpty()) {
+        if (this.allocatedBytes + SLAB_SIZE > this.maxBytes) {
+          this.rejectedValues++;
+          return null;
+        }
+        allocateSlab(MIN_SLOT_SIZE << sizeClass, free);
+      }
+      slot = free.pop();
+    }
+    slot.clear();
+    slot.put(data);
+    this.usedBytes += slot.capacity();
+    this.liveValues++;
+    return new OffHeapValue(this, slot, data.length, sizeClass);
+  }
+
+  private void allocateSlab(int slotSize, ArrayDeque<ByteBuffer> free) {
+    ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+    this.allocatedBytes += SLAB_SIZE;
+    for (int offset = 0; offset < SLAB_SIZE; offset += slotSize) {
+      slab.limit(offset + slotSize);
+      slab.position(offset);
+      free.push(slab.slice());
+    }
+  }
+
+  /**
+   * Gets the size class of the value, or -1 if it's larger than a slab.
+   */
+  static int sizeClass(int length) {
+    int sizeClass = 0;
+    for (int size = MIN_SLOT_SIZE; size <= SLAB_SIZE; size <<= 1) {
+      if (length <= size) {
+        return sizeClass;
+      }
+      sizeClass++;
+    }
+    return -1;
+  }
+
+  /**
+   * Adds a reference of the node to the value, the reference is released
+   * once the node is garbage collected.
+   */
+  synchronized void retain(OffHeapValue value, FileNode node) {
+    value.refCount++;
+    this.references.add(new NodeReference(node, value, this.queue));
+  }
+
+  /**
+   * Releases the references of the garbage collected nodes.
+   */
+  public synchronized void reclaim() {
+    Reference<? extends FileNode> ref;
+    while ((ref = this.queue.poll()) != null) {
+      NodeReference nodeRef = (NodeReference)ref;
+      this.references.remove(nodeRef);
+      release(nodeRef.value);
+    }
+    Reference<? extends byte[]> heapRef;
+    while ((heapRef = this.heapQueue.poll()) != null) {
+      Digest digest = ((HeapValue)heapRef).digest;
+      if (this.heapValues.get(digest) == heapRef) {
+        this.heapValues.remove(digest);
+      }
+    }
+  }
+
+  /**
+   * Adds a reference of a reader to the value, the slot of the value is not
+   * reused until the reader releases it, even if all the nodes holding the
+   * value are garbage collected meanwhile.
+   *
+   * @throws IllegalStateException if the value has been freed.
+   */
+  synchronized void retain(OffHeapValue value) {
+    if (value.refCount <= 0) {
+      throw new IllegalStateException("The value has been freed.");
+    }
+    value.refCount++;
+  }
+
+  /**
+   * Releases a reference of the value, the value is freed once it's not
+   * referenced.
+   */
+  synchronized void release(OffHeapValue value) {
+    if (--value.refCount > 0) {
+      return;
+    }
+    if (value.digest != null) {
+      this.offHeapValues.remove(value.digest);
+    }
+    free(value);
+  }
+
+  /**
+   * Frees the slot of the value which is no longer referenced.
+   */
+  void free(OffHeapValue value) {
+    this.usedBytes -= value.slot.capacity();
+    this.liveValues--;
+    if (value.sizeClass < 0) {
+      // The dedicated buffer is freed once it's garbage collected.
+      this.allocatedBytes -= value.slot.capacity();
+    } else {
+      this.freeSlots.get(value.sizeClass).push(value.slot);
+    }
+  }
+
+  /**
+   * Gets the statistics of the store.
+   */
+  public synchronized Map<String, Long> getStats() {
+    reclaim();
+    Map<String, Long> stats = new LinkedHashMap<>();
+    stats.put("threshold", (long)this.threshold);
+    stats.put("maxBytes", this.maxBytes);
+    stats.put("allocatedBytes", this.allocatedBytes);
+    stats.put("usedBytes", this.usedBytes);
+    stats.put("liveValues", this.liveValues);
+    stats.put("rejectedValues", this.rejectedValues);
+    putDedupStats(stats);
+    return stats;
+  }
+
+  void putDedupStats(Map<String, Long> stats) {
+    if (!this.dedup) {
+      return;
+    }
+    stats.put("dedupValues",
+              (long)(this.heapValues.size() + this.offHeapValues.size()));
+    stats.put("dedupHits", this.dedupHits);
+    stats.put("dedupSavedBytes", this.dedupSavedBytes);
+  }
+
+  /**
+   * The reference of a node which holds a value.
+   */
+  static class NodeReference extends PhantomReference<FileNode> {
+    final OffHeapValue value;
+
+    NodeReference(FileNode node,
+                  OffHeapValue value,
+                  ReferenceQueue<FileNode> queue) {
+      super(node, queue);
+      this.value = value;
+    }
+  }
+
+  /**
+   * The weak reference of the data on heap, which is cleared once no node
+   * holds the data.
+   */
+  static class HeapValue extends WeakReference<byte[]> {
+    final Digest digest;
+
+    HeapValue(byte[] data, Digest digest, ReferenceQueue<byte[]> queue) {
+      super(data, queue);
+      this.digest = digest;
+    }
+  }
+
+  /**
+   * The SHA-256 digest of a value.
+   */
+  static final class Digest {
+    private static final ThreadLocal<MessageDigest> SHA256 =
+      new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+          try {
+            return MessageDigest.getInstance("SHA-256");
+          } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+          }
+        }
+      };
+
+    private final byte[] bytes;
+
+    private Digest(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    static Digest of(byte[] data) {
+      return new Digest(SHA256.get().digest(data));
+    }
+
+    @Override
+    public int hashCode() {
+      return ByteBuffer.wrap(this.bytes).getInt();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof Digest &&
+             Arrays.equals(this.bytes, ((Digest)obj).bytes);
+    }
+  }
+
+  /**
+   * A value stored off heap.
+   */
+  static class OffHeapValue {
+    final ValueStore store;
+    // Changes only when the value is moved, see ValueLog.
+    volatile ByteBuffer slot;
+    final int length;
+    final int sizeClass;
+    // Guarded by the store.
+    int refCount = 0;
+    // The digest if the value is deduplicated.
+    Digest digest = null;
+
+    OffHeapValue(ValueStore store, ByteBuffer slot, int length, int sizeClass) {
+      this.store = store;
+      this.slot = slot;
+      this.length = length;
+      this.sizeClass = sizeClass;
+    }
+
+    /**
+     * Gets a read-only buffer of the value.
+     */
+    ByteBuffer buffer() {
+      ByteBuffer buffer = this.slot.asReadOnlyBuffer();
+      buffer.position(0);
+      buffer.limit(this.length);
+      return buffer;
+    }
+  }
+}
@@ -23,7 +23,9 @@ package com.github.zk1931.pulsefs.tree;
 public interface  Watch {
 
   /**
-   * Triggers the watch.
+   * Triggers the watch. A watch might be triggered by both the thread which
+   * applies changes and the thread which installs the watch, implementations
+   * must make sure it only fires once.
    *
    * @param node the node the watch is monitoring.
    */
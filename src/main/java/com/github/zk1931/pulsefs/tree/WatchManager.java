@@ -17,22 +17,24 @@
 
 package com.github.zk1931.pulsefs.tree;
 
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * This class manages all the watches of DataTree.
+ * This class manages all the watches of DataTree. Watches can be added from
+ * any thread while they're being triggered by the thread which applies the
+ * changes, no lock is shared between them.
  */
 public class WatchManager {
 
   private static final Logger LOG = LoggerFactory.getLogger(WatchManager.class);
 
-  HashMap<String, List<Watch>> watches =
-    new HashMap<String, List<Watch>>();
+  final ConcurrentHashMap<String, Queue<Watch>> watches =
+    new ConcurrentHashMap<String, Queue<Watch>>();
 
   /**
    * Adds a watch.
@@ -40,12 +42,47 @@ public class WatchManager {
    * @param the watch.
    */
   public void addWatch(Watch watch) {
-    List<Watch> watchList = watches.get(watch.getPath());
-    if (watchList == null) {
-      watchList = new LinkedList<Watch>();
-      watches.put(watch.getPath(), watchList);
+    while (true) {
+      Queue<Watch> watchList = watches.get(watch.getPath());
+      if (watchList == null) {
+        watchList = new ConcurrentLinkedQueue<Watch>();
+        Queue<Watch> prev = watches.putIfAbsent(watch.getPath(), watchList);
+        if (prev != null) {
+          watchList = prev;
+        }
+      }
+      watchList.add(watch);
+      // The list might be removed for being empty before the watch is added,
+      // adds it again to the new list in this case.
+      if (watches.get(watch.getPath()) == watchList) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Removes a watch.
+   *
+   * @param the watch.
+   */
+  public void removeWatch(Watch watch) {
+    Queue<Watch> watchList = watches.get(watch.getPath());
+    if (watchList != null) {
+      watchList.remove(watch);
+      if (watchList.isEmpty()) {
+        watches.remove(watch.getPath(), watchList);
+      }
     }
-    watchList.add(watch);
+  }
+
+  /**
+   * Checks whether there're watches on the given path.
+   *
+   * @param path the path of the node.
+   * @return true if there're watches on the path.
+   */
+  public boolean hasWatches(String path) {
+    return watches.containsKey(path);
   }
 
   /**
@@ -54,18 +91,41 @@ public class WatchManager {
    * @param node the node on whom watches are monitoring.
    */
   public void triggerAndRemoveWatches(Node node) {
-    List<Watch> watchList = watches.get(node.fullPath);
+    triggerAndRemoveWatches(node, null);
+  }
+
+  /**
+   * Triggers and removes all the triggerable watch of the given node, the
+   * {@link DeltaWatch}es which want them get the changes of the children
+   * since the previous version of the directory.
+   *
+   * @param node the node on whom watches are monitoring.
+   * @param previous the previous version of the node, null if unknown.
+   */
+  public void triggerAndRemoveWatches(Node node, Node previous) {
+    Queue<Watch> watchList = watches.get(node.fullPath);
     if (watchList != null) {
+      ChildDelta delta = null;
       Iterator<Watch> iter = watchList.iterator();
       while (iter.hasNext()) {
         Watch watch = iter.next();
         if (watch.isTriggerable(node)) {
-          watch.trigger(node);
+          if (watch instanceof DeltaWatch &&
+              ((DeltaWatch)watch).wantsDelta()) {
+            if (delta == null && previous instanceof DirNode &&
+                node instanceof DirNode && node.version != -1) {
+              // Computed once for all the watches of the node.
+              delta = ChildDelta.diff((DirNode)previous, (DirNode)node);
+            }
+            ((DeltaWatch)watch).trigger(node, delta);
+          } else {
+            watch.trigger(node);
+          }
           iter.remove();
         }
       }
       if (watchList.isEmpty()) {
-        watches.remove(node.fullPath);
+        watches.remove(node.fullPath, watchList);
       }
     }
   }
@@ -0,0 +1,90 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs;
+
+import com.github.zk1931.pulsefs.tree.DataTree;
+import com.github.zk1931.pulsefs.tree.FileNode;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for AddCommand.
+ */
+public class AddCommandTest extends TestBase {
+
+  static long value(DataTree tree, String path) throws Exception {
+    return AddCommand.getValue((FileNode)tree.getNode(path));
+  }
+
+  @Test
+  public void testAdd() throws Exception {
+    DataTree tree = new DataTree();
+    AddCommand incr =
+      new AddCommand("/a/counter", 1, Long.MIN_VALUE, 3, true);
+    Assert.assertEquals(0, incr.apply(tree).getVersion());
+    incr.apply(tree);
+    incr.apply(tree);
+    Assert.assertEquals(3, value(tree, "/a/counter"));
+    try {
+      incr.apply(tree);
+      Assert.fail("Should be out of range");
+    } catch (AddCommand.OutOfRange ex) {
+      Assert.assertEquals(3, value(tree, "/a/counter"));
+    }
+    new AddCommand("/a/counter", -5, Long.MIN_VALUE, Long.MAX_VALUE, false)
+      .apply(tree);
+    Assert.assertEquals(-2, value(tree, "/a/counter"));
+    // Rejected on leader without touching the tree.
+    Command rejected =
+      new AddCommand("/a/counter", -1, 0, 10, false).resolve(tree);
+    Assert.assertTrue(rejected instanceof RejectedCommand);
+    Assert.assertEquals(409, ((RejectedCommand)rejected).status);
+    Assert.assertEquals(3, tree.getNode("/a/counter").getVersion());
+  }
+
+  @Test(expected=AddCommand.OutOfRange.class)
+  public void testOverflow() throws Exception {
+    DataTree tree = new DataTree();
+    new AddCommand("/c", Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE,
+                   false).apply(tree);
+    new AddCommand("/c", 1, Long.MIN_VALUE, Long.MAX_VALUE, false)
+      .apply(tree);
+  }
+
+  @Test(expected=AddCommand.NotCounter.class)
+  public void testNotCounter() throws Exception {
+    DataTree tree = new DataTree();
+    tree.createFile("/c", "abc".getBytes(), false, false);
+    new AddCommand("/c", 1, Long.MIN_VALUE, Long.MAX_VALUE, false)
+      .apply(tree);
+  }
+
+  @Test
+  public void testKeepDeadline() throws Exception {
+    DataTree tree = new DataTree();
+    PutCommand put =
+      new PutCommand("/c", "10".getBytes(), false, -1, false, false, -1);
+    put.expiresAt = 5000;
+    put.apply(tree);
+    FileNode file = (FileNode)
+      new AddCommand("/c", 2, Long.MIN_VALUE, Long.MAX_VALUE, false)
+        .apply(tree);
+    Assert.assertEquals(12, AddCommand.getValue(file));
+    Assert.assertEquals(5000, file.getExpiresAt());
+  }
+}
@@ -0,0 +1,44 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs;
+
+import com.github.zk1931.pulsefs.tree.DataTree;
+import com.github.zk1931.pulsefs.tree.FileNode;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for AnnounceServerCommand.
+ */
+public class AnnounceServerCommandTest extends TestBase {
+
+  @Test
+  public void testAnnounce() throws Exception {
+    DataTree tree = new DataTree();
+    tree.createDir(PulseFSConfig.PULSEFS_SERVERS_PATH, true);
+    String path = PulseFSConfig.PULSEFS_SERVERS_PATH + "/host1:5001";
+    // Announced before the cluster change creates the file of the server.
+    new AnnounceServerCommand("host1:5001", "host1:8081").apply(tree);
+    Assert.assertEquals("host1:8081",
+                        new String(((FileNode)tree.getNode(path)).getData()));
+    new AnnounceServerCommand("host1:5001", "host1:8080").apply(tree);
+    Assert.assertEquals("host1:8080",
+                        new String(((FileNode)tree.getNode(path)).getData()));
+    Assert.assertEquals(1, tree.getNode(path).getVersion());
+  }
+}
@@ -0,0 +1,85 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs;
+
+import com.github.zk1931.pulsefs.tree.DataTree;
+import com.github.zk1931.pulsefs.tree.FileNode;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for ExpiryWheel.
+ */
+public class ExpiryWheelTest extends TestBase {
+
+  FileNode put(DataTree tree, String path, long expiresAt) throws Exception {
+    PutCommand cmd =
+      new PutCommand(path, new byte[1], true, -2, false, false, -1);
+    cmd.expiresAt = expiresAt;
+    return (FileNode)cmd.apply(tree);
+  }
+
+  @Test
+  public void testExpire() throws Exception {
+    DataTree tree = new DataTree();
+    ExpiryWheel wheel = new ExpiryWheel(8, 10, 1000);
+    wheel.add(put(tree, "/a", 1015));
+    // More than one revolution away.
+    wheel.add(put(tree, "/b", 1100));
+    // Already expired.
+    wheel.add(put(tree, "/c", 500));
+    Assert.assertEquals(3, wheel.size());
+
+    List<ExpiryWheel.Entry> expired = wheel.advance(1010);
+    Assert.assertEquals(1, expired.size());
+    Assert.assertEquals("/c", expired.get(0).path);
+    Assert.assertTrue(wheel.advance(1019).isEmpty());
+    expired = wheel.advance(1020);
+    Assert.assertEquals(1, expired.size());
+    Assert.assertEquals("/a", expired.get(0).path);
+    // /b shares the slot with tick 102 but stays until its own tick.
+    Assert.assertTrue(wheel.advance(1090).isEmpty());
+    // Falls behind by more than one revolution.
+    expired = wheel.advance(5000);
+    Assert.assertEquals(1, expired.size());
+    Assert.assertEquals("/b", expired.get(0).path);
+    Assert.assertEquals(0, wheel.size());
+
+    wheel.retry(expired, 30);
+    Assert.assertTrue(wheel.advance(5020).isEmpty());
+    Assert.assertEquals(1, wheel.advance(5030).size());
+  }
+
+  @Test
+  public void testRebuild() throws Exception {
+    DataTree tree = new DataTree();
+    put(tree, "/dir/a", 2000);
+    put(tree, "/dir/b", 0);
+    FileNode file = put(tree, "/c", 3000);
+    Assert.assertEquals(3000, file.getExpiresAt());
+    // Updating the file without time-to-live clears the deadline.
+    Assert.assertEquals(0, put(tree, "/c", 0).getExpiresAt());
+    ExpiryWheel wheel = new ExpiryWheel(16, 100, 1000);
+    wheel.addAll(tree.getRoot());
+    Assert.assertEquals(1, wheel.size());
+    List<ExpiryWheel.Entry> expired = wheel.advance(2000);
+    Assert.assertEquals("/dir/a", expired.get(0).path);
+    Assert.assertEquals(2000, expired.get(0).expiresAt);
+  }
+}
@@ -0,0 +1,147 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs;
+
+import com.github.zk1931.pulsefs.tree.DataTree;
+import com.github.zk1931.pulsefs.tree.DirNode;
+import com.github.zk1931.pulsefs.tree.Node;
+import com.github.zk1931.pulsefs.tree.SessionFileNode;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for LockCommand.
+ */
+public class LockCommandTest extends TestBase {
+
+  @Test
+  public void testEphemeralSeqFile() throws Exception {
+    DataTree tree = new DataTree();
+    tree.createDir("/dir", false);
+    Node node = new CreateSeqFileCommand("/dir", new byte[1], false, 5)
+      .apply(tree);
+    Assert.assertEquals("/dir/0000000000000000", node.fullPath);
+    Assert.assertEquals(5, ((SessionFileNode)node).sessionID);
+    tree.deleteSession(5);
+    Assert.assertFalse(tree.exist(node.fullPath));
+  }
+
+  @Test
+  public void testTryLock() throws Exception {
+    DataTree tree = new DataTree();
+    // The directory of the lock is created on demand.
+    Node first = new LockCommand("/locks/foo", 1, 1, false, 0).apply(tree);
+    Assert.assertEquals("/locks/foo/0000000000000000", first.fullPath);
+    Command cmd = new LockCommand("/locks/foo", 2, 1, false, 0).resolve(tree);
+    Assert.assertEquals(409, ((RejectedCommand)cmd).status);
+    // Waiting contenders are queued behind the holder.
+    cmd = new LockCommand("/locks/foo", 2, 1, true, 0).resolve(tree);
+    Assert.assertEquals("/locks/foo/0000000000000001",
+                        ((LockCommand)cmd).path);
+    Assert.assertTrue(((LockCommand)cmd).wait);
+    tree.deleteSession(1);
+    tree.deleteSession(2);
+    new LockCommand("/locks/foo", 3, 1, false, 0).apply(tree);
+  }
+
+  @Test
+  public void testSemaphore() throws Exception {
+    DataTree tree = new DataTree();
+    new LockCommand("/sem", 1, 2, false, 0).apply(tree);
+    new LockCommand("/sem", 2, 2, false, 0).apply(tree);
+    Command cmd = new LockCommand("/sem", 3, 2, false, 0).resolve(tree);
+    Assert.assertEquals(409, ((RejectedCommand)cmd).status);
+    tree.deleteSession(1);
+    // The sub directories don't hold permits.
+    tree.createDir("/sem/dir", false);
+    new LockCommand("/sem", 3, 2, false, 0).apply(tree);
+  }
+
+  @Test
+  public void testLeaveOnFork() throws Exception {
+    DataTree tree = new DataTree();
+    String path = new EnterBarrierCommand("/b", 1, 2, 0).apply(tree).fullPath;
+    // The session of the file is unknown to the fork.
+    DataTree fork = tree.fork();
+    LeaveBarrierCommand cmd = new LeaveBarrierCommand(path, 0);
+    Assert.assertSame(cmd, cmd.resolve(fork));
+    Assert.assertFalse(fork.exist(path));
+    Assert.assertTrue(tree.exist(path));
+    cmd.apply(tree);
+    Assert.assertFalse(tree.exist(path));
+  }
+
+  @Test
+  public void testTakeSatisfied() throws Exception {
+    DataTree tree = new DataTree();
+    tree.createDir("/b", false);
+    SyncWaiters.Group group = new SyncWaiters(null).new Group("/b");
+    List<SyncWaiters.Waiter> deleted = new ArrayList<>();
+    String first = new EnterBarrierCommand("/b", 1, 2, 0).apply(tree).fullPath;
+    SyncWaiters.Waiter enter =
+      new SyncWaiters.Waiter(SyncWaiters.ENTER, first, "/b", 2, null);
+    SyncWaiters.Waiter leave =
+      new SyncWaiters.Waiter(SyncWaiters.LEAVE, null, "/b", 0, null);
+    group.add(enter);
+    group.add(leave);
+    DirNode dir = (DirNode)tree.getNode("/b");
+    Assert.assertTrue(group.takeSatisfied(dir, deleted).isEmpty());
+    String second = new EnterBarrierCommand("/b", 2, 2, 0).apply(tree).fullPath;
+    dir = (DirNode)tree.getNode("/b");
+    Assert.assertEquals(1, group.takeSatisfied(dir, deleted).size());
+    // The sub directories are not counted.
+    tree.createDir("/b/dir", false);
+    new LeaveBarrierCommand(first, 0).apply(tree);
+    new LeaveBarrierCommand(second, 0).apply(tree);
+    dir = (DirNode)tree.getNode("/b");
+    Assert.assertEquals(1, group.takeSatisfied(dir, deleted).size());
+    Assert.assertTrue(group.isEmpty());
+    Assert.assertTrue(deleted.isEmpty());
+  }
+
+  @Test
+  public void testTakeDeleted() throws Exception {
+    DataTree tree = new DataTree();
+    SyncWaiters.Group group = new SyncWaiters(null).new Group("/s");
+    List<SyncWaiters.Waiter> deleted = new ArrayList<>();
+    String holder = new LockCommand("/s", 1, 1, true, 0).apply(tree).fullPath;
+    String sem = new LockCommand("/s", 2, 1, true, 0).apply(tree).fullPath;
+    String enter = new EnterBarrierCommand("/s", 3, 5, 0).apply(tree).fullPath;
+    SyncWaiters.Waiter semWaiter =
+      new SyncWaiters.Waiter(SyncWaiters.SEMAPHORE, sem, "/s", 1, null);
+    SyncWaiters.Waiter enterWaiter =
+      new SyncWaiters.Waiter(SyncWaiters.ENTER, enter, "/s", 5, null);
+    group.add(semWaiter);
+    group.add(enterWaiter);
+    DirNode dir = (DirNode)tree.getNode("/s");
+    Assert.assertTrue(group.takeSatisfied(dir, deleted).isEmpty());
+    Assert.assertTrue(deleted.isEmpty());
+    // The waiters whose sessions expire are failed instead of waiting.
+    tree.deleteSession(2);
+    tree.deleteSession(3);
+    dir = (DirNode)tree.getNode("/s");
+    Assert.assertTrue(group.takeSatisfied(dir, deleted).isEmpty());
+    Assert.assertEquals(2, deleted.size());
+    Assert.assertTrue(deleted.contains(semWaiter));
+    Assert.assertTrue(deleted.contains(enterWaiter));
+    Assert.assertTrue(group.isEmpty());
+    Assert.assertTrue(tree.exist(holder));
+  }
+}
@@ -0,0 +1,111 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs;
+
+import com.github.zk1931.pulsefs.tree.DataTree;
+import com.google.gson.JsonParseException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the bulk pulse of PulseFSSessionsHandler.
+ */
+public class PulseFSSessionsHandlerTest extends TestBase {
+
+  static byte[] utf8(String str) {
+    return str.getBytes(Charset.forName("UTF-8"));
+  }
+
+  DataTree createTree() throws Exception {
+    DataTree tree = new DataTree(PulseFSConfig.PULSEFS_SESSIONS_PATH);
+    tree.createDir(PulseFSConfig.PULSEFS_SESSIONS_PATH, true);
+    // Session 0 is owned by server1 and session 1 is owned by server2.
+    new CreateSessionCommand("server1").apply(tree);
+    new CreateSessionCommand("server2").apply(tree);
+    return tree;
+  }
+
+  @Test
+  public void testParseSessionIDs() throws Exception {
+    Assert.assertArrayEquals(new long[] {0, 12},
+        PulseFSSessionsHandler.parseSessionIDs(utf8("[0, 12]")));
+    Assert.assertEquals(0,
+        PulseFSSessionsHandler.parseSessionIDs(utf8("")).length);
+  }
+
+  @Test(expected=JsonParseException.class)
+  public void testParseTruncatedBody() throws Exception {
+    PulseFSSessionsHandler.parseSessionIDs(utf8("[0, 1"));
+  }
+
+  @Test(expected=JsonParseException.class)
+  public void testParseNonArrayBody() throws Exception {
+    PulseFSSessionsHandler.parseSessionIDs(utf8("{\"0\": 1}"));
+  }
+
+  @Test
+  public void testClassifySessions() throws Exception {
+    DataTree tree = createTree();
+    // Session 2 is owned by server3 which has left.
+    new CreateSessionCommand("server3").apply(tree);
+    // Session 3 is owned by server4 which hasn't announced its address.
+    new CreateSessionCommand("server4").apply(tree);
+    Map<Long, String> status = new LinkedHashMap<>();
+    List<Long> owned = new ArrayList<>();
+    Set<String> live =
+      new HashSet<>(Arrays.asList("server1", "server2", "server4"));
+    Map<String, String> addresses = new HashMap<>();
+    addresses.put("server2", "host2:8082");
+    long[] takeOver =
+      PulseFSSessionsHandler.classifySessions(new long[] {7, 3, 2, 1, 0},
+                                              tree.getSessionRegistry(),
+                                              "server1", live, addresses,
+                                              status, owned);
+    // The unknown session is not found, the owned one is renewed, the one
+    // owned by the live server2 is moved to it and the one of server3 has to
+    // be taken over.
+    Assert.assertEquals("not-found", status.get(7L));
+    Assert.assertEquals("ok", status.get(0L));
+    Assert.assertEquals("moved:host2:8082", status.get(1L));
+    Assert.assertFalse(status.containsKey(2L));
+    Assert.assertEquals("unavailable", status.get(3L));
+    Assert.assertEquals(Arrays.asList(0L), owned);
+    Assert.assertArrayEquals(new long[] {2}, takeOver);
+  }
+
+  @Test
+  public void testTakeOver() throws Exception {
+    DataTree tree = createTree();
+    Map<Long, String> status =
+      new ManageSessionsCommand(new long[] {1, 9}, "server1").setOwner(tree);
+    Assert.assertEquals("ok", status.get(1L));
+    // The session expired before the proposal is delivered.
+    Assert.assertEquals("not-found", status.get(9L));
+    Assert.assertTrue(tree.getSessionRegistry().isOwnedBy(1, "server1"));
+    Assert.assertTrue(tree.getSessionRegistry().isOwnedBy(0, "server1"));
+  }
+}
@@ -0,0 +1,102 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs;
+
+import com.github.zk1931.pulsefs.tree.DataTree;
+import com.github.zk1931.pulsefs.tree.DirNode;
+import com.github.zk1931.pulsefs.tree.FileNode;
+import com.github.zk1931.pulsefs.tree.Node;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for EnqueueCommand and DequeueCommand.
+ */
+public class QueueTest extends TestBase {
+
+  static String dequeue(DataTree tree) throws Exception {
+    FileNode node =
+      (FileNode)new DequeueCommand("/queue", false, 0).apply(tree);
+    return new String(node.getData());
+  }
+
+  @Test
+  public void testEnqueueDequeue() throws Exception {
+    DataTree tree = new DataTree();
+    tree.createDir("/queue", false);
+    byte[][] items = {"a".getBytes(), "b".getBytes()};
+    List<Node> nodes = new EnqueueCommand("/queue", items).apply(tree);
+    Assert.assertEquals("/queue/0000000000000000", nodes.get(0).fullPath);
+    Assert.assertEquals("/queue/0000000000000001", nodes.get(1).fullPath);
+    // Single enqueues continue the sequence.
+    Node node = new CreateSeqFileCommand("/queue", "c".getBytes(), false)
+      .apply(tree);
+    Assert.assertEquals("/queue/0000000000000002", node.fullPath);
+    // Sub directories are not items.
+    tree.createDir("/queue/00", false);
+
+    Assert.assertEquals("a", dequeue(tree));
+    Assert.assertEquals("b", dequeue(tree));
+    Assert.assertEquals("c", dequeue(tree));
+    try {
+      dequeue(tree);
+      Assert.fail("Queue should be empty");
+    } catch (DequeueCommand.QueueEmpty ex) {
+      Assert.assertTrue(tree.exist("/queue/00"));
+    }
+  }
+
+  @Test
+  public void testResolve() throws Exception {
+    DataTree tree = new DataTree();
+    tree.createDir("/queue", false);
+    Command cmd = new DequeueCommand("/queue", false, 0).resolve(tree);
+    Assert.assertEquals(404, ((RejectedCommand)cmd).status);
+    // The waiting dequeue gets delivered to wait for the next item.
+    DequeueCommand wait = new DequeueCommand("/queue", true, 0);
+    Assert.assertSame(wait, wait.resolve(tree));
+    cmd = new EnqueueCommand("/missing", new byte[][]{new byte[1]})
+      .resolve(tree);
+    Assert.assertEquals(404, ((RejectedCommand)cmd).status);
+  }
+
+  @Test
+  public void testResolveOnFork() throws Exception {
+    DataTree tree = new DataTree();
+    tree.createDir("/queue", false);
+    // An ephemeral item of a session which the fork doesn't know.
+    new CreateSeqFileCommand("/queue", "a".getBytes(), false, 5).apply(tree);
+    DataTree fork = tree.fork();
+    DequeueCommand cmd = new DequeueCommand("/queue", false, 0);
+    Assert.assertSame(cmd, cmd.resolve(fork));
+    Assert.assertTrue(((DirNode)fork.getNode("/queue")).children.isEmpty());
+    Assert.assertEquals("a", dequeue(tree));
+  }
+
+  @Test
+  public void testWaiterTimeout() throws Exception {
+    Assert.assertFalse(new DequeueWaiters.Waiter(null, 0).isExpired());
+    Assert.assertFalse(new DequeueWaiters.Waiter(null, 60000).isExpired());
+    // The waiter which comes back from an in-flight dequeue after its
+    // deadline gets replied instead of waiting without a timeout.
+    DequeueWaiters.Waiter waiter = new DequeueWaiters.Waiter(null, 1);
+    Thread.sleep(10);
+    Assert.assertTrue(waiter.isExpired());
+  }
+}
@@ -0,0 +1,128 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the rebalancing of sessions.
+ */
+public class RebalanceSessionsCommandTest extends TestBase {
+
+  static Map<String, Integer> counts(int... counts) {
+    Map<String, Integer> map = new HashMap<>();
+    for (int i = 0; i < counts.length; ++i) {
+      map.put("server" + i, counts[i]);
+    }
+    return map;
+  }
+
+  static Set<String> servers(int count) {
+    Set<String> servers = new HashSet<>();
+    for (int i = 0; i < count; ++i) {
+      servers.add("server" + i);
+    }
+    return servers;
+  }
+
+  /**
+   * Applies the moves to the counts.
+   */
+  static void apply(Map<String, Integer> counts,
+                    List<RebalanceSessionsCommand.Move> moves) {
+    for (RebalanceSessionsCommand.Move move : moves) {
+      Assert.assertTrue(move.count > 0);
+      counts.put(move.from, counts.get(move.from) - move.count);
+      counts.put(move.to, RebalanceSessionsCommand.getCount(counts, move.to) +
+                          move.count);
+    }
+  }
+
+  @Test
+  public void testPlanAfterRollingRestart() {
+    // Nearly all the sessions piled on server0.
+    Map<String, Integer> counts = counts(298, 1, 1);
+    List<RebalanceSessionsCommand.Move> moves =
+      RebalanceSessionsCommand.plan(counts, servers(3));
+    Assert.assertEquals(2, moves.size());
+    apply(counts, moves);
+    // No server goes below or above its share.
+    Assert.assertEquals(100, (int)counts.get("server0"));
+    Assert.assertEquals(100, (int)counts.get("server1"));
+    Assert.assertEquals(100, (int)counts.get("server2"));
+    // Once balanced there's nothing to move.
+    Assert.assertTrue(RebalanceSessionsCommand.plan(counts, servers(3))
+                      .isEmpty());
+  }
+
+  @Test
+  public void testPlanMultipleSources() {
+    // server3 has just joined and owns nothing.
+    Map<String, Integer> counts = counts(50, 45, 5, 0);
+    List<RebalanceSessionsCommand.Move> moves =
+      RebalanceSessionsCommand.plan(counts, servers(4));
+    apply(counts, moves);
+    for (int count : counts.values()) {
+      Assert.assertEquals(25, count);
+    }
+  }
+
+  @Test
+  public void testPlanWithinSlack() {
+    // Small imbalance is tolerated.
+    Assert.assertTrue(RebalanceSessionsCommand.plan(counts(105, 100, 95),
+                                                    servers(3)).isEmpty());
+    Assert.assertTrue(RebalanceSessionsCommand.plan(counts(2, 1),
+                                                    servers(2)).isEmpty());
+    Assert.assertTrue(RebalanceSessionsCommand.plan(counts(100),
+                                                    servers(1)).isEmpty());
+  }
+
+  @Test
+  public void testPlanIgnoresDeadServers() {
+    // The sessions of the departed server3 will be adopted, they're not
+    // planned.
+    Map<String, Integer> counts = counts(10, 10, 10, 90);
+    Assert.assertTrue(RebalanceSessionsCommand.plan(counts, servers(3))
+                      .isEmpty());
+  }
+
+  @Test
+  public void testSelectSessions() {
+    Session early = new Session(1, 1, TimeUnit.SECONDS);
+    Session late = new Session(2, 10, TimeUnit.SECONDS);
+    Session middle = new Session(3, 5, TimeUnit.SECONDS);
+    // The sessions which expire last are handed over.
+    List<Session> selected =
+      PulseFS.selectSessions(Arrays.asList(early, late, middle), 2);
+    Assert.assertEquals(Arrays.asList(late, middle), selected);
+    Assert.assertEquals(3, PulseFS.selectSessions(
+        Arrays.asList(early, late, middle), 5).size());
+    // The remaining time is kept rather than reset to the timeout.
+    Assert.assertTrue(late.getDelay(TimeUnit.MILLISECONDS) <= 10000);
+    Assert.assertTrue(late.getDelay(TimeUnit.MILLISECONDS) > 5000);
+  }
+}
@@ -0,0 +1,110 @@
+/**
+ * Licensed to the zk1931 under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.zk1931.pulsefs;
+
+import com.github.zk1931.pulsefs.tree.DataTree;
+import com.github.zk1931.pulsefs.tree.FileNode;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for Serializer.
+ */
+public class SerializerTest extends TestBase {
+
+  @Test
+  public void testSerializeCommand() throws Exception {
+    byte[] data = new byte[4096];
+    for (int i = 0; i < data.length; ++i) {
+      data[i] = (byte)i;
+    }
+    PutCommand cmd = new PutCommand("/foo", data, true, -2, false, false, -1);
+    ByteBuffer bb = Serializer.serialize(cmd);
+    // Prefixes the message to make sure the offset of buffer is respected.
+    ByteBuffer prefixed = ByteBuffer.allocate(bb.remaining() + 3);
+    prefixed.position(3);
+    prefixed.put(bb);
+    prefixed.position(3);
+    PutCommand read = (PutCommand)Serializer.deserialize(prefixed.slice());
+    Assert.assertEquals("/foo", read.path);
+    Assert.assertEquals(-2, read.version);
+    Assert.assertArrayEquals(data, read.data);
+  }
+
+  @Test
+  public void testReadClassName() throws Exception {
+    ByteBuffer bb =
+      Serializer.serialize(new DeleteCommand("/foo", false, -1));
+    int position = bb.position();
+    Assert.assertEquals(DeleteCommand.class.getName(),
+                        Serializer.readClassName(bb));
+    Assert.assertEquals(position, bb.position());
+    Assert.assertNull(Serializer.readClassName(ByteBuffer.allocate(4)));
+    // The commands which don't override resolve are not deserialized.
+    Assert.assertFalse(Command.isResolvable(DeleteCommand.class.getName()));
+    Assert.assertTrue(Command.isResolvable(PutCommand.class.getName()));
+    Assert.assertTrue(Command.isResolvable(LockCommand.class.getName()));
+    Assert.assertTrue(Command.isResolvable(null));
+  }
+
+  @Test
+  public void testResolveUnchanged() throws Exception {
+    DataTree tree = new DataTree();
+    PutCommand create =
+      new PutCommand("/foo", new byte[1], false, -1, false, false, -1);
+    Assert.assertSame(create, create.resolve(tree));
+    PutCommand update =
+      new PutCommand("/foo", new byte[2], false, 0, false, false, -1);
+    Assert.assertSame(update, update.resolve(tree));
+    // Updating any version is resolved to the version seen on leader.
+    PutCommand any =
+      new PutCommand("/foo", new byte[3], false, -2, false, false, -1);
+    Assert.assertEquals(1, ((PutCommand)any.resolve(tree)).version);
+  }
+
+  @Test
+  public void testCompressedCommand() throws Exception {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 100; ++i) {
+      sb.append("{\"host\": \"localhost\", \"port\": ").append(i)
+        .append("}\n");
+    }
+    byte[] data = sb.toString().getBytes();
+    PutCommand cmd = new PutCommand("/foo", data, false, -1, false, false, -1);
+    // Data smaller than threshold is not compressed.
+    cmd.compress(data.length + 1);
+    Assert.assertFalse(cmd.compressed);
+    int plainSize = Serializer.serialize(cmd).remaining();
+    cmd.compress(64);
+    Assert.assertTrue(cmd.compressed);
+    ByteBuffer bb = Serializer.serialize(cmd);
+    Assert.assertTrue(bb.remaining() < plainSize / 2);
+
+    PutCommand read = (PutCommand)Serializer.deserialize(bb);
+    Assert.assertTrue(read.compressed);
+    DataTree tree = new DataTree();
+    FileNode file = (FileNode)read.apply(tree);
+    Assert.assertTrue(file.isCompressed());
+    Assert.assertTrue(file.getLength() < data.length / 2);
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    Compression.decompress(file.getData(), bos);
+    Assert.assertArrayEquals(data, bos.toByteArray());
+  }
+}
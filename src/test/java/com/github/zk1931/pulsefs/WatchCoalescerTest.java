@@ -0,0 +1,97 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs;
+
+import com.github.zk1931.pulsefs.tree.DataTree;
+import com.github.zk1931.pulsefs.tree.Node;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for WatchCoalescer.
+ */
+public class WatchCoalescerTest extends TestBase {
+
+  /**
+   * A watch which records the versions it's replied with.
+   */
+  static class RecordingWatch extends HttpWatch {
+    final List<Long> versions;
+
+    RecordingWatch(WatchCoalescer coalescer, List<Long> versions) {
+      super(0, false, false, "/status", null, coalescer, 50);
+      this.versions = versions;
+    }
+
+    @Override
+    void reply(Node node) {
+      synchronized (versions) {
+        versions.add(node.getVersion());
+      }
+    }
+  }
+
+  @Test(timeout=10000)
+  public void testCoalesce() throws Exception {
+    final DataTree tree = new DataTree();
+    tree.createFile("/status", new byte[1], false, false);
+    ScheduledExecutorService scheduler =
+      Executors.newSingleThreadScheduledExecutor();
+    WatchCoalescer coalescer = new WatchCoalescer(null, scheduler) {
+      @Override
+      Node latest(String path) {
+        try {
+          return tree.getNode(path);
+        } catch (DataTree.TreeException ex) {
+          return null;
+        }
+      }
+    };
+    List<Long> versions = new ArrayList<>();
+    // The first notification opens the window and is replied directly.
+    coalescer.notify(new RecordingWatch(coalescer, versions),
+                     tree.getNode("/status"));
+    Assert.assertEquals(Arrays.asList(0L), versions);
+    // The notifications within the window are replied together once it
+    // closes, with the latest version.
+    for (int i = 0; i < 3; ++i) {
+      tree.setData("/status", new byte[1], -1);
+      coalescer.notify(new RecordingWatch(coalescer, versions),
+                       tree.getNode("/status"));
+    }
+    while (true) {
+      synchronized (versions) {
+        if (versions.size() == 4) {
+          break;
+        }
+      }
+      Thread.sleep(10);
+    }
+    Assert.assertEquals(Arrays.asList(0L, 3L, 3L, 3L), versions);
+    // The window is removed once a window passes without notification.
+    while (coalescer.size() != 0) {
+      Thread.sleep(10);
+    }
+    scheduler.shutdownNow();
+  }
+}
@@ -19,9 +19,20 @@
 package com.github.zk1931.pulsefs.tree;
 
 import com.github.zk1931.pulsefs.TestBase;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.Adler32;
 import org.junit.Assert;
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -86,7 +97,7 @@ public class DataTreeTest extends TestBase {
     tree.createFile("/foo/bar", "helloworld".getBytes(), true, false);
     Assert.assertEquals(3, tree.size());
     Assert.assertTrue(Arrays.equals("helloworld".getBytes(),
-                                    ((FileNode)tree.getNode("/foo/bar")).data));
+        ((FileNode)tree.getNode("/foo/bar")).getData()));
   }
 
   @Test(expected=DataTree.NodeAlreadyExist.class)
@@ -223,7 +234,7 @@ public class DataTreeTest extends TestBase {
     Assert.assertEquals(2, tree.getNode("/foo").version);
     Assert.assertEquals(1, tree.getNode("/foo/bar").version);
     Assert.assertTrue(Arrays.equals("helloworld".getBytes(),
-                                    ((FileNode)tree.getNode("/foo/bar")).data));
+        ((FileNode)tree.getNode("/foo/bar")).getData()));
   }
 
   @Test(expected=DataTree.PathNotExist.class)
@@ -242,7 +253,7 @@ public class DataTreeTest extends TestBase {
     tree.setData("/foo", "helloworld2".getBytes(), 1);
     Assert.assertEquals(2, tree.getNode("/foo").version);
     Assert.assertTrue(Arrays.equals("helloworld2".getBytes(),
-                                    ((FileNode)tree.getNode("/foo")).data));
+        ((FileNode)tree.getNode("/foo")).getData()));
   }
 
   @Test(expected=DataTree.VersionNotMatch.class)
@@ -300,11 +311,11 @@ public class DataTreeTest extends TestBase {
     changes = new LinkedList<Node>();
     tree.root =
       (DirNode)tree.deleteNode(tree.root, "foo", -1, true, changes);
-    // Two deleted nodes + one changed node(root node)
-    Assert.assertEquals(3, changes.size());
+    // One deleted node + one changed node(root node), the descendants of the
+    // deleted node are walked after commit.
+    Assert.assertEquals(2, changes.size());
     Assert.assertEquals(-1, changes.get(0).version);
-    Assert.assertEquals(-1, changes.get(1).version);
-    Assert.assertEquals(2, changes.get(2).version);
+    Assert.assertEquals(2, changes.get(1).version);
   }
 
   @Test
@@ -378,6 +389,132 @@ public class DataTreeTest extends TestBase {
     Assert.assertTrue(tree.exist("/session1/file2"));
   }
 
+  @Test
+  public void testDeleteSessionsInStagingArea() throws Exception {
+    DataTree tree = new DataTree();
+    tree.createSessionFile("/foo/file1", null, 1, true, true);
+    tree.createSessionFile("/foo/file2", null, 2, true, true);
+    tree.createSessionFile("/foo/file3", null, 3, true, true);
+    Assert.assertEquals(5, tree.size());
+    // Expires session 1 and 2 in a single batch.
+    tree.deleteSessionInStagingArea(1);
+    tree.deleteSessionInStagingArea(2);
+    Assert.assertEquals(5, tree.size());
+    tree.commitStagingChanges();
+    Assert.assertEquals(3, tree.size());
+    Assert.assertFalse(tree.exist("/foo/file1"));
+    Assert.assertFalse(tree.exist("/foo/file2"));
+    Assert.assertTrue(tree.exist("/foo/file3"));
+    // The last file of the transient directory gets deleted.
+    tree.deleteSessionInStagingArea(3);
+    tree.commitStagingChanges();
+    Assert.assertEquals(1, tree.size());
+    Assert.assertFalse(tree.exist("/foo"));
+  }
+
+  @Test
+  public void testSessionRegistry() throws Exception {
+    DataTree tree = new DataTree("/sessions");
+    SessionRegistry registry = tree.getSessionRegistry();
+    tree.createDir("/sessions", false);
+    tree.createSessionFile("/sessions/0000000000000001", "s1".getBytes(), 1,
+                           false, false);
+    tree.createSessionFile("/foo/file1", null, 1, true, false);
+    Assert.assertTrue(registry.isAlive(1));
+    Assert.assertTrue(registry.isOwnedBy(1, "s1"));
+    Assert.assertEquals(2, registry.getFileCount(1));
+    Assert.assertFalse(registry.isAlive(2));
+    // Changes the owner of the session.
+    tree.setData("/sessions/0000000000000001", "s2".getBytes(), -1);
+    Assert.assertTrue(registry.isOwnedBy(1, "s2"));
+    // The session file is still a session file after update.
+    Assert.assertTrue(tree.getNode("/sessions/0000000000000001")
+                      instanceof SessionFileNode);
+    tree.deleteSession(1);
+    Assert.assertFalse(registry.isAlive(1));
+    Assert.assertFalse(registry.contains(1));
+    Assert.assertEquals(0, registry.size());
+    // Ephemeral files of a session which has no session file.
+    tree.createSessionFile("/foo/file2", null, 3, false, false);
+    Assert.assertFalse(registry.isAlive(3));
+    Assert.assertTrue(registry.contains(3));
+    tree.deleteNode("/foo/file2", -1, false);
+    Assert.assertFalse(registry.contains(3));
+  }
+
+  @Test
+  public void testOrphanedSessions() throws Exception {
+    DataTree tree = new DataTree("/sessions");
+    SessionRegistry registry = tree.getSessionRegistry();
+    tree.createDir("/sessions", false);
+    tree.createSessionFile("/sessions/0000000000000001", "s1".getBytes(), 1,
+                           false, false);
+    tree.createSessionFile("/sessions/0000000000000002", "s2".getBytes(), 2,
+                           false, false);
+    tree.createSessionFile("/sessions/0000000000000003", "s2".getBytes(), 3,
+                           false, false);
+    Set<String> servers = new HashSet<String>(Arrays.asList("s1", "s3"));
+    long[] orphans = registry.getOrphanedSessions(servers);
+    Assert.assertEquals(2, orphans.length);
+    Assert.assertEquals(2, orphans[0]);
+    Assert.assertEquals(3, orphans[1]);
+    long[] owned = registry.getOwnedSessions("s1");
+    Assert.assertEquals(1, owned.length);
+    Assert.assertEquals(1, owned[0]);
+  }
+
+  /**
+   * Watch which records the versions it's triggered with.
+   */
+  static class TestWatch implements Watch {
+    final String path;
+    final long version;
+    final List<Long> triggered = new LinkedList<Long>();
+
+    TestWatch(String path, long version) {
+      this.path = path;
+      this.version = version;
+    }
+
+    @Override
+    public void trigger(Node node) {
+      triggered.add(node.version);
+    }
+
+    @Override
+    public String getPath() {
+      return path;
+    }
+
+    @Override
+    public boolean isTriggerable(Node node) {
+      return node.version == -1 || node.version >= version;
+    }
+  }
+
+  @Test
+  public void testWatch() throws Exception {
+    DataTree tree = new DataTree();
+    tree.createFile("/foo", null, false, false);
+    TestWatch watch1 = new TestWatch("/foo", 2);
+    TestWatch watch2 = new TestWatch("/foo", 5);
+    tree.addWatch(watch1);
+    tree.addWatch(watch2);
+    tree.setData("/foo", null, -1);
+    Assert.assertTrue(watch1.triggered.isEmpty());
+    tree.setData("/foo", null, -1);
+    // watch1 gets triggered and removed.
+    Assert.assertEquals(1, watch1.triggered.size());
+    Assert.assertEquals(2, (long)watch1.triggered.get(0));
+    tree.setData("/foo", null, -1);
+    Assert.assertEquals(1, watch1.triggered.size());
+    // Removed watch will not be triggered.
+    tree.removeWatch(watch2);
+    tree.deleteNode("/foo", -1, false);
+    Assert.assertTrue(watch2.triggered.isEmpty());
+    Assert.assertTrue(tree.watchManager.watches.isEmpty());
+  }
+
   @Test
   public void testTransaction() throws Exception {
     DataTree tree = new DataTree();
@@ -421,4 +558,590 @@ public class DataTreeTest extends TestBase {
     tree.createFile("/foo/bar3", null, false, false);
     Assert.assertEquals(4, tree.size());
   }
+
+  static List<TreeOp> randomOps(Random random, int count) {
+    String[] dirs = {"/a", "/b", "/c", "/d", "/e", "/f"};
+    String[] names = {"x", "y", "z", "x/1", "x/2", "y/1"};
+    List<TreeOp> ops = new ArrayList<TreeOp>();
+    for (int i = 0; i < count; ++i) {
+      String dir = dirs[random.nextInt(dirs.length)];
+      String path = dir + "/" + names[random.nextInt(names.length)];
+      byte[] data = new byte[]{(byte)i};
+      boolean compressed = random.nextBoolean();
+      switch (random.nextInt(6)) {
+        case 0:
+          ops.add(TreeOp.delete(random.nextBoolean() ? dir : path, -1,
+                                random.nextBoolean()));
+          break;
+        case 1:
+          ops.add(TreeOp.setData(path, data, compressed, -1));
+          break;
+        case 2:
+          ops.add(TreeOp.createFile(path, data, compressed,
+                                    random.nextInt(3), true,
+                                    random.nextBoolean()));
+          break;
+        default:
+          ops.add(TreeOp.createFile(path, data, compressed, -1,
+                                    random.nextBoolean(),
+                                    random.nextBoolean()));
+      }
+    }
+    return ops;
+  }
+
+  static String describe(List<Node> nodes) {
+    StringBuilder sb = new StringBuilder();
+    for (Node node : nodes) {
+      sb.append(node.fullPath).append(':').append(node.version).append(':')
+        .append(node.getChecksum()).append(' ');
+    }
+    return sb.toString();
+  }
+
+  @Test
+  public void testApplyInParallel() throws Exception {
+    DataTree serialTree = new DataTree();
+    DataTree parallelTree = new DataTree();
+    // Watches the root so all the intermediate roots are generated.
+    serialTree.addWatch(new TestWatch("/", Long.MAX_VALUE));
+    parallelTree.addWatch(new TestWatch("/", Long.MAX_VALUE));
+    for (int round = 0; round < 20; ++round) {
+      List<TreeOp> serialOps = randomOps(new Random(round), 500);
+      List<TreeOp> parallelOps = randomOps(new Random(round), 500);
+      for (TreeOp op : serialOps) {
+        serialTree.applyInStagingArea(Arrays.asList(op));
+      }
+      parallelTree.applyInStagingArea(parallelOps);
+      for (int i = 0; i < serialOps.size(); ++i) {
+        TreeOp serialOp = serialOps.get(i);
+        TreeOp parallelOp = parallelOps.get(i);
+        if (serialOp.error != null) {
+          Assert.assertNotNull(parallelOp.error);
+          Assert.assertEquals(serialOp.error.getClass(),
+                              parallelOp.error.getClass());
+        } else {
+          Assert.assertNull(parallelOp.error);
+          Assert.assertEquals(serialOp.result.getChecksum(),
+                              parallelOp.result.getChecksum());
+        }
+      }
+      Assert.assertEquals(describe(serialTree.changedNodes),
+                          describe(parallelTree.changedNodes));
+      serialTree.commitStagingChanges();
+      parallelTree.commitStagingChanges();
+      serialTree.awaitDeletedSubtrees();
+      parallelTree.awaitDeletedSubtrees();
+      Assert.assertEquals(serialTree.root.getChecksum(),
+                          parallelTree.root.getChecksum());
+      for (long id = 0; id < 3; ++id) {
+        Assert.assertEquals(serialTree.getSessionRegistry().getFileCount(id),
+                            parallelTree.getSessionRegistry()
+                                        .getFileCount(id));
+      }
+    }
+  }
+
+  @Test
+  public void testApplyCompressed() throws Exception {
+    DataTree tree = new DataTree();
+    tree.createFile("/foo", null, false, false);
+    TreeOp create = TreeOp.createFile("/bar", new byte[1], true, -1, false,
+                                      false);
+    TreeOp createSession = TreeOp.createFile("/baz", new byte[1], true, 1,
+                                             false, false);
+    TreeOp update = TreeOp.setData("/foo", new byte[1], true, -1);
+    tree.applyInStagingArea(Arrays.asList(create, createSession, update));
+    tree.commitStagingChanges();
+    Assert.assertTrue(((FileNode)tree.getNode("/bar")).isCompressed());
+    Assert.assertTrue(((FileNode)tree.getNode("/baz")).isCompressed());
+    Assert.assertTrue(((FileNode)tree.getNode("/foo")).isCompressed());
+  }
+
+  @Test
+  public void testDeleteSessionsInParallel() throws Exception {
+    DataTree tree = new DataTree();
+    for (int i = 0; i < 200; ++i) {
+      tree.createSessionFile("/dir" + (i % 10) + "/file" + i, null, i % 4,
+                             true, true);
+    }
+    tree.deleteSessionsInStagingArea(new long[]{0, 1, 2});
+    tree.commitStagingChanges();
+    Assert.assertEquals(50, tree.getSessionRegistry().getFileCount(3));
+    Assert.assertEquals(0, tree.getSessionRegistry().getFileCount(0));
+    // Only the transient directories of session 3 are left.
+    Assert.assertEquals(1 + 5 + 50, tree.size());
+  }
+
+  @Test
+  public void testFork() throws Exception {
+    DataTree tree = new DataTree();
+    tree.createFile("/foo", null, false, false);
+    DataTree fork = tree.fork();
+    fork.setData("/foo", new byte[1], 0);
+    fork.createFile("/bar", null, false, false);
+    tree.createFile("/baz", null, false, false);
+    // The changes of either tree are invisible to the other.
+    Assert.assertEquals(0, tree.getNode("/foo").version);
+    Assert.assertEquals(1, fork.getNode("/foo").version);
+    Assert.assertFalse(tree.exist("/bar"));
+    Assert.assertFalse(fork.exist("/baz"));
+  }
+
+  @Test
+  public void testEditSession() throws Exception {
+    DataTree serialTree = new DataTree();
+    DataTree editTree = new DataTree();
+    DataTree parallelTree = new DataTree();
+    for (int round = 0; round < 20; ++round) {
+      List<TreeOp> serialOps = randomOps(new Random(round), 500);
+      List<TreeOp> editOps = randomOps(new Random(round), 500);
+      List<TreeOp> parallelOps = randomOps(new Random(round), 500);
+      for (TreeOp op : serialOps) {
+        serialTree.applyInStagingArea(Arrays.asList(op));
+      }
+      editTree.startEditSession();
+      for (TreeOp op : editOps) {
+        editTree.applyInStagingArea(Arrays.asList(op));
+      }
+      parallelTree.startEditSession();
+      parallelTree.applyInStagingArea(parallelOps);
+      for (int i = 0; i < serialOps.size(); ++i) {
+        Assert.assertEquals(serialOps.get(i).error == null,
+                            editOps.get(i).error == null);
+        Assert.assertEquals(serialOps.get(i).error == null,
+                            parallelOps.get(i).error == null);
+      }
+      // The edited directories are only recorded once.
+      Assert.assertTrue(editTree.changedNodes.size() <
+                        serialTree.changedNodes.size());
+      serialTree.commitStagingChanges();
+      editTree.commitStagingChanges();
+      parallelTree.commitStagingChanges();
+      serialTree.awaitDeletedSubtrees();
+      editTree.awaitDeletedSubtrees();
+      Assert.assertEquals(serialTree.root.version, editTree.root.version);
+      Assert.assertEquals(serialTree.root.getChecksum(),
+                          editTree.root.getChecksum());
+      Assert.assertEquals(serialTree.root.getChecksum(),
+                          parallelTree.root.getChecksum());
+      for (long id = 0; id < 3; ++id) {
+        Assert.assertEquals(serialTree.getSessionRegistry().getFileCount(id),
+                            editTree.getSessionRegistry().getFileCount(id));
+      }
+    }
+  }
+
+  @Test
+  public void testEditSessionRemovesTransientDir() throws Exception {
+    DataTree serialTree = new DataTree();
+    DataTree editTree = new DataTree();
+    final List<Node> removed = new ArrayList<Node>();
+    for (DataTree tree : Arrays.asList(serialTree, editTree)) {
+      tree.createSessionFile("/t/a", null, 1, true, true);
+      tree.createSessionFile("/t/b", null, 1, true, true);
+      tree.addWatch(new TestWatch("/t", -1) {
+        @Override
+        public void trigger(Node node) {
+          removed.add(node);
+        }
+
+        @Override
+        public boolean isTriggerable(Node node) {
+          return node.version == -1;
+        }
+      });
+    }
+    serialTree.deleteNode("/t/a", -1, false);
+    serialTree.deleteNode("/t/b", -1, false);
+    // The transient directory is edited in place, emptied and removed.
+    editTree.deleteSession(1);
+    Assert.assertEquals(2, removed.size());
+    DirNode serialDir = (DirNode)removed.get(0);
+    DirNode editDir = (DirNode)removed.get(1);
+    Assert.assertNull(editDir.editOwner);
+    Assert.assertEquals(serialDir.getChecksum(), editDir.getChecksum());
+    Assert.assertEquals(serialDir.descendantCount, editDir.descendantCount);
+    Assert.assertEquals(serialDir.dataBytes, editDir.dataBytes);
+    Assert.assertEquals(serialTree.root.getChecksum(),
+                        editTree.root.getChecksum());
+  }
+
+  @Test
+  public void testRecursiveDeleteWalk() throws Exception {
+    DataTree tree = new DataTree();
+    tree.createFile("/foo/bar/file", null, true, false);
+    tree.createSessionFile("/foo/bar/session", null, 1, false, false);
+    TestWatch watch = new TestWatch("/foo/bar/file", 100);
+    tree.addWatch(watch);
+    // Only the deleted directory itself is in the changes.
+    tree.deleteNodeInStagingArea("/foo", -1, true);
+    Assert.assertEquals(2, tree.changedNodes.size());
+    tree.commitStagingChanges();
+    Assert.assertFalse(tree.exist("/foo/bar/file"));
+    // The recreated file is seen after the deletion of the old one.
+    tree.createFile("/foo/bar/file", null, true, false);
+    Assert.assertEquals(Arrays.asList(-1L), watch.triggered);
+    tree.awaitDeletedSubtrees();
+    Assert.assertEquals(0, tree.getSessionRegistry().getFileCount(1));
+    Assert.assertNull(tree.sessionManager.getSessionFiles(1));
+  }
+
+  static long adler32(ByteArrayOutputStream bout) {
+    Adler32 adler = new Adler32();
+    adler.update(bout.toByteArray());
+    return adler.getValue();
+  }
+
+  @Test
+  public void testChecksum() throws Exception {
+    // The streamed checksums must be the same as the checksums of the fields
+    // written by DataOutputStream.
+    byte[] data = new byte[1000];
+    new Random(1).nextBytes(data);
+    FileNode file = new FileNode("/foo/file", 3, data);
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    DataOutputStream dout = new DataOutputStream(bout);
+    dout.write(data);
+    dout.writeLong(3);
+    dout.writeBytes("/foo/file");
+    Assert.assertEquals(adler32(bout), file.getChecksum());
+
+    SessionFileNode sessionFile =
+      new SessionFileNode("/foo/session", 1, 7, data);
+    FileNode plain = new FileNode("/foo/session", 1, data);
+    bout = new ByteArrayOutputStream();
+    dout = new DataOutputStream(bout);
+    dout.writeLong(plain.getChecksum());
+    dout.writeLong(7);
+    Assert.assertEquals(adler32(bout), sessionFile.getChecksum());
+
+    TreeMap<String, Node> children = new TreeMap<String, Node>();
+    children.put("file", file);
+    children.put("session", sessionFile);
+    DirNode dir = new DirNode("/foo", 5, children);
+    bout = new ByteArrayOutputStream();
+    dout = new DataOutputStream(bout);
+    dout.writeLong(5);
+    dout.writeBytes("/foo");
+    dout.writeLong(file.getChecksum());
+    dout.writeLong(sessionFile.getChecksum());
+    Assert.assertEquals(adler32(bout), dir.getChecksum());
+
+    TransientDirNode transientDir = new TransientDirNode("/foo", 5, children);
+    bout = new ByteArrayOutputStream();
+    dout = new DataOutputStream(bout);
+    dout.writeLong(dir.getChecksum());
+    dout.writeLong(0xdeadbeaf);
+    Assert.assertEquals(adler32(bout), transientDir.getChecksum());
+  }
+
+  @Test
+  public void testOffHeapValues() throws Exception {
+    DataTree tree = new DataTree();
+    tree.setValueStore(new ValueStore(16, 1 << 24));
+    byte[] large = new byte[1000];
+    new Random(2).nextBytes(large);
+    tree.createFile("/large", large, false, false);
+    tree.createFile("/small", "small".getBytes(), false, false);
+
+    FileNode file = (FileNode)tree.getNode("/large");
+    Assert.assertTrue(file.isOffHeap());
+    Assert.assertEquals(1000, file.getLength());
+    Assert.assertArrayEquals(large, file.getData());
+    Assert.assertEquals(new FileNode("/large", 0, large).getChecksum(),
+                        file.getChecksum());
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    file.writeTo(bout);
+    Assert.assertArrayEquals(large, bout.toByteArray());
+    Assert.assertFalse(((FileNode)tree.getNode("/small")).isOffHeap());
+
+    Map<String, Long> stats = tree.getValueStore().getStats();
+    Assert.assertEquals(1L, (long)stats.get("liveValues"));
+    Assert.assertEquals(1024L, (long)stats.get("usedBytes"));
+  }
+
+  @Test
+  public void testRetainValue() throws Exception {
+    ValueStore store = new ValueStore(16, 1 << 24);
+    byte[] large = new byte[1000];
+    new Random(5).nextBytes(large);
+    FileNode holder = new FileNode("/holder", 0, new byte[0]);
+    ValueStore.OffHeapValue value = store.store(large, holder);
+    // A reader keeps the value after the node releases it.
+    store.retain(value);
+    store.release(value);
+    Assert.assertEquals(1L, (long)store.getStats().get("liveValues"));
+    Assert.assertEquals(ByteBuffer.wrap(large), value.buffer());
+    store.release(value);
+    Assert.assertEquals(0L, (long)store.getStats().get("liveValues"));
+    try {
+      store.retain(value);
+      Assert.fail("The freed value can't be retained");
+    } catch (IllegalStateException ex) {
+      Assert.assertEquals("/holder", holder.fullPath);
+    }
+  }
+
+  @Test
+  public void testValueLog() throws Exception {
+    File dir = new File("target", "valuelog-" + testName.getMethodName());
+    // Each segment holds 4 values.
+    ValueLog log = new ValueLog(dir, 16, 4096);
+    Random random = new Random(3);
+    List<byte[]> values = new ArrayList<byte[]>();
+    List<ValueStore.OffHeapValue> logValues =
+      new ArrayList<ValueStore.OffHeapValue>();
+    synchronized (log) {
+      for (int i = 0; i < 8; ++i) {
+        byte[] data = new byte[1000];
+        random.nextBytes(data);
+        values.add(data);
+        logValues.add(log.allocate(data));
+      }
+    }
+    ByteBuffer buffer = logValues.get(3).buffer();
+    Assert.assertEquals(ByteBuffer.wrap(values.get(3)), buffer);
+    Map<String, Long> stats = log.getStats();
+    Assert.assertEquals(2L, (long)stats.get("segments"));
+    Assert.assertEquals(8000L, (long)stats.get("logBytes"));
+
+    // Frees 3 values of the first segment, its last value gets moved.
+    synchronized (log) {
+      for (int i = 0; i < 3; ++i) {
+        log.free(logValues.get(i));
+      }
+    }
+    stats = log.getStats();
+    Assert.assertEquals(5L, (long)stats.get("liveValues"));
+    Assert.assertEquals(1L, (long)stats.get("compactions"));
+    Assert.assertEquals(1000L, (long)stats.get("compactedBytes"));
+    Assert.assertEquals(5000L, (long)stats.get("logBytes"));
+    Assert.assertFalse(new File(dir, "values.0").exists());
+    Assert.assertEquals(ByteBuffer.wrap(values.get(3)),
+                        logValues.get(3).buffer());
+    // The buffer stays valid after the value is moved.
+    Assert.assertEquals(ByteBuffer.wrap(values.get(3)), buffer);
+
+    // The nodes read their data from the log.
+    FileNode node = new FileNode("/file", 0, values.get(4), log);
+    Assert.assertTrue(node.isOffHeap());
+    Assert.assertArrayEquals(values.get(4), node.getData());
+    Assert.assertEquals(ByteBuffer.wrap(values.get(4)),
+                        node.getReadOnlyBuffer());
+    Assert.assertEquals(new FileNode("/file", 0, values.get(4)).getChecksum(),
+                        node.getChecksum());
+  }
+
+  @Test
+  public void testDedup() throws Exception {
+    DataTree tree = new DataTree();
+    ValueStore store = new ValueStore(64, 1 << 24);
+    store.setDedup(true);
+    tree.setValueStore(store);
+    byte[] large = new byte[1000];
+    new Random(4).nextBytes(large);
+    tree.createFile("/small1", "descriptor".getBytes(), false, false);
+    tree.createFile("/small2", "descriptor".getBytes(), false, false);
+    tree.createFile("/large1", large, false, false);
+    tree.createFile("/large2", large.clone(), false, false);
+
+    FileNode small1 = (FileNode)tree.getNode("/small1");
+    FileNode small2 = (FileNode)tree.getNode("/small2");
+    Assert.assertSame(small1.getData(), small2.getData());
+    FileNode large2 = (FileNode)tree.getNode("/large2");
+    Assert.assertTrue(large2.isOffHeap());
+    Assert.assertArrayEquals(large, large2.getData());
+    Map<String, Long> stats = store.getStats();
+    Assert.assertEquals(1L, (long)stats.get("liveValues"));
+    Assert.assertEquals(2L, (long)stats.get("dedupValues"));
+    Assert.assertEquals(2L, (long)stats.get("dedupHits"));
+    Assert.assertEquals(1010L, (long)stats.get("dedupSavedBytes"));
+    // The checksums still cover the paths.
+    Assert.assertNotEquals(small1.getChecksum(), small2.getChecksum());
+  }
+
+  // Crawls the subtree for descendants, data bytes, ephemerals and depth.
+  static long[] crawl(Node node) {
+    long[] aggregates = new long[4];
+    if (!(node instanceof DirNode)) {
+      return aggregates;
+    }
+    for (Node child : ((DirNode)node).children.values()) {
+      long[] childAggregates = crawl(child);
+      aggregates[0] += 1 + childAggregates[0];
+      aggregates[1] += childAggregates[1];
+      aggregates[2] += childAggregates[2];
+      if (child instanceof FileNode) {
+        aggregates[1] += ((FileNode)child).getLength();
+      }
+      if (child instanceof SessionFileNode) {
+        aggregates[2]++;
+      }
+      aggregates[3] = Math.max(aggregates[3], 1 + childAggregates[3]);
+    }
+    return aggregates;
+  }
+
+  static void assertAggregates(DirNode dir) {
+    long[] aggregates = crawl(dir);
+    Assert.assertEquals(aggregates[0], dir.descendantCount);
+    Assert.assertEquals(aggregates[1], dir.dataBytes);
+    Assert.assertEquals(aggregates[2], dir.ephemeralCount);
+    Assert.assertEquals(aggregates[3], dir.maxDepth);
+    int files = 0;
+    for (Node child : dir.children.values()) {
+      if (child instanceof DirNode) {
+        assertAggregates((DirNode)child);
+      } else {
+        files++;
+      }
+    }
+    Assert.assertEquals(files, dir.getFileCount());
+  }
+
+  @Test
+  public void testAggregates() throws Exception {
+    DataTree tree = new DataTree();
+    tree.createFile("/a/b/c/file", new byte[10], true, false);
+    tree.createSessionFile("/a/session", new byte[5], 1, false, false);
+    DirNode root = tree.getRoot();
+    Assert.assertEquals(5, root.descendantCount);
+    Assert.assertEquals(15, root.dataBytes);
+    Assert.assertEquals(1, root.ephemeralCount);
+    Assert.assertEquals(4, root.maxDepth);
+    Assert.assertEquals(6, tree.size());
+    Assert.assertEquals(0, root.getFileCount());
+    Assert.assertEquals(1, ((DirNode)tree.getNode("/a")).getFileCount());
+    tree.deleteNode("/a/b", -1, true);
+    assertAggregates(tree.getRoot());
+    Assert.assertEquals(3, tree.size());
+
+    DataTree serialTree = new DataTree();
+    DataTree editTree = new DataTree();
+    for (int round = 0; round < 20; ++round) {
+      for (TreeOp op : randomOps(new Random(round), 200)) {
+        serialTree.applyInStagingArea(Arrays.asList(op));
+      }
+      editTree.startEditSession();
+      editTree.applyInStagingArea(randomOps(new Random(round), 200));
+      serialTree.commitStagingChanges();
+      editTree.commitStagingChanges();
+      assertAggregates(serialTree.getRoot());
+      assertAggregates(editTree.getRoot());
+      Assert.assertEquals(crawl(serialTree.getRoot())[0] + 1,
+                          serialTree.size());
+    }
+  }
+
+  @Test
+  public void testQuota() throws Exception {
+    DataTree tree = new DataTree();
+    tree.createDir("/q", false);
+    tree.setQuota("/q", new Quota(2, 10, 1, 5));
+    Assert.assertEquals(1, tree.getNode("/q").version);
+    tree.createFile("/q/a", new byte[4], false, false);
+    tree.createFile("/q/b", new byte[6], false, false);
+    Assert.assertEquals(1, tree.getSoftLimitWarnings());
+    DataTree fork = tree.fork();
+    try {
+      fork.createFile("/q/c", new byte[0], false, false);
+      Assert.fail("Should exceed the quota of nodes");
+    } catch (DataTree.QuotaExceeded ex) {
+      Assert.assertEquals(1, tree.getQuotaRejections());
+    }
+    try {
+      tree.setData("/q/a", new byte[5], -1);
+      Assert.fail("Should exceed the quota of bytes");
+    } catch (DataTree.QuotaExceeded ex) {
+      Assert.assertEquals(2, tree.getQuotaRejections());
+    }
+    Assert.assertFalse(tree.exist("/q/c"));
+    Assert.assertEquals(4, ((FileNode)tree.getNode("/q/a")).getData().length);
+    // Shrinking is always allowed.
+    tree.setData("/q/b", new byte[1], -1);
+    tree.deleteNode("/q/a", -1, false);
+    tree.createFile("/q/c", new byte[0], false, false);
+    // Removing the quota.
+    tree.setQuota("/q", null);
+    tree.createFile("/q/d", new byte[100], false, false);
+    Assert.assertNull(((DirNode)tree.getNode("/q")).quota);
+  }
+
+  @Test
+  public void testLowerChild() throws Exception {
+    DataTree tree = new DataTree();
+    tree.createFile("/dir/b", new byte[0], true, false);
+    tree.createFile("/dir/d", new byte[0], false, false);
+    DirNode dir = (DirNode)tree.getNode("/dir");
+    Assert.assertNull(dir.lowerChild("b"));
+    Assert.assertEquals("/dir/b", dir.lowerChild("c").fullPath);
+    Assert.assertEquals("/dir/b", dir.lowerChild("d").fullPath);
+    Assert.assertEquals("/dir/d", dir.lowerChild("e").fullPath);
+  }
+
+  /**
+   * Delta watch which records the delta it's triggered with.
+   */
+  static class TestDeltaWatch extends TestWatch implements DeltaWatch {
+    ChildDelta delta;
+    boolean wantsDelta = true;
+
+    TestDeltaWatch(String path, long version) {
+      super(path, version);
+    }
+
+    @Override
+    public boolean wantsDelta() {
+      return this.wantsDelta;
+    }
+
+    @Override
+    public void trigger(Node node, ChildDelta childDelta) {
+      trigger(node);
+      this.delta = childDelta;
+    }
+  }
+
+  @Test
+  public void testDeltaWatch() throws Exception {
+    DataTree tree = new DataTree();
+    tree.createFile("/dir/a", new byte[0], true, false);
+    tree.createFile("/dir/b", new byte[0], false, false);
+    TestDeltaWatch watch = new TestDeltaWatch("/dir", 3);
+    tree.addWatch(watch);
+    tree.createFile("/dir/c", new byte[0], false, false);
+    Assert.assertEquals(1, watch.delta.added.size());
+    Assert.assertEquals("/dir/c", watch.delta.added.get(0).fullPath);
+    Assert.assertEquals(2, watch.delta.oldNode.version);
+    // The changes of a batch are diffed from the previous version in it.
+    watch = new TestDeltaWatch("/dir", 5);
+    tree.addWatch(watch);
+    tree.setDataInStagingArea("/dir/a", new byte[1], -1);
+    tree.deleteNodeInStagingArea("/dir/b", -1, false);
+    tree.commitStagingChanges();
+    Assert.assertEquals(4, watch.delta.oldNode.version);
+    Assert.assertTrue(watch.delta.added.isEmpty());
+    Assert.assertTrue(watch.delta.modified.isEmpty());
+    Assert.assertEquals("/dir/b", watch.delta.removed.get(0).fullPath);
+    // In an edit session the delta covers the whole batch.
+    watch = new TestDeltaWatch("/dir", 6);
+    tree.addWatch(watch);
+    tree.startEditSession();
+    tree.setDataInStagingArea("/dir/a", new byte[2], -1);
+    tree.deleteNodeInStagingArea("/dir/c", -1, false);
+    tree.createFileInStagingArea("/dir/d", new byte[0], false, false);
+    tree.commitStagingChanges();
+    Assert.assertEquals(5, watch.delta.oldNode.version);
+    Assert.assertEquals("/dir/d", watch.delta.added.get(0).fullPath);
+    Assert.assertEquals("/dir/a", watch.delta.modified.get(0).fullPath);
+    Assert.assertEquals("/dir/c", watch.delta.removed.get(0).fullPath);
+    // The watch which doesn't want the changes is triggered without them.
+    watch = new TestDeltaWatch("/dir", 7);
+    watch.wantsDelta = false;
+    tree.addWatch(watch);
+    tree.createFile("/dir/e", new byte[0], false, false);
+    Assert.assertEquals(1, watch.triggered.size());
+    Assert.assertNull(watch.delta);
+  }
 }
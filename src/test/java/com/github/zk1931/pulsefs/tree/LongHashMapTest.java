@@ -0,0 +1,71 @@
+/**
+ * Licensed to the zk1931 under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs.tree;
+
+import com.github.zk1931.pulsefs.TestBase;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for LongHashMap.
+ */
+public class LongHashMapTest extends TestBase {
+
+  @Test
+  public void testPutGetRemove() {
+    LongHashMap<String> map = new LongHashMap<>();
+    Assert.assertNull(map.put(1, "a"));
+    Assert.assertNull(map.put(-1, "b"));
+    Assert.assertNull(map.put(0, "c"));
+    Assert.assertEquals("a", map.put(1, "d"));
+    Assert.assertEquals(3, map.size());
+    Assert.assertEquals("d", map.get(1));
+    Assert.assertEquals("b", map.get(-1));
+    Assert.assertEquals("c", map.get(0));
+    Assert.assertNull(map.get(2));
+    Assert.assertEquals("b", map.remove(-1));
+    Assert.assertNull(map.remove(-1));
+    Assert.assertFalse(map.containsKey(-1));
+    Assert.assertEquals(2, map.size());
+  }
+
+  @Test
+  public void testRandomOperations() {
+    // Compares with HashMap, small key space to exercise collisions and
+    // backward shift deletion.
+    LongHashMap<Long> map = new LongHashMap<>();
+    Map<Long, Long> expected = new HashMap<>();
+    Random random = new Random(1931);
+    for (int i = 0; i < 100000; ++i) {
+      long key = random.nextInt(2000);
+      if (random.nextInt(3) == 0) {
+        Assert.assertEquals(expected.remove(key), map.remove(key));
+      } else {
+        Assert.assertEquals(expected.put(key, (long)i), map.put(key, (long)i));
+      }
+    }
+    Assert.assertEquals(expected.size(), map.size());
+    for (long key = 0; key < 2000; ++key) {
+      Assert.assertEquals(expected.get(key), map.get(key));
+    }
+  }
+}
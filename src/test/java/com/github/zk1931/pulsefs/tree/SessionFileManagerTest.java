@@ -0,0 +1,113 @@
+/**
+ * Licensed to the zk9131 under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.zk1931.pulsefs.tree;
+
+import com.github.zk1931.pulsefs.TestBase;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for SessionFileManager.
+ */
+public class SessionFileManagerTest extends TestBase {
+
+  @Test
+  public void testRemoveInAnyOrder() {
+    SessionFileManager manager = new SessionFileManager();
+    List<String> paths = new ArrayList<>();
+    for (int i = 0; i < 100; ++i) {
+      paths.add("/file" + i);
+      manager.addFileToSession(1, paths.get(i));
+    }
+    SessionFileManager.SessionFiles files =
+      (SessionFileManager.SessionFiles)manager.getSessionFiles(1);
+    Assert.assertTrue(files.isIndexed());
+    Collections.shuffle(paths, new Random(0));
+    for (int i = 0; i < paths.size(); ++i) {
+      // Copies of the paths are found as well.
+      manager.removeFileFromSession(1, new String(paths.get(i)));
+      if (i + 1 < paths.size()) {
+        Assert.assertEquals(new HashSet<>(paths.subList(i + 1, paths.size())),
+                            new HashSet<>(files));
+        Assert.assertEquals(-1, files.indexOf(paths.get(i)));
+      }
+    }
+    Assert.assertFalse(files.isIndexed());
+    Assert.assertNull(manager.getSessionFiles(1));
+  }
+
+  @Test
+  public void testIndexedAgain() {
+    SessionFileManager.SessionFiles files =
+      new SessionFileManager.SessionFiles();
+    int threshold = SessionFileManager.SessionFiles.INDEX_THRESHOLD;
+    for (int i = 0; i <= threshold; ++i) {
+      files.add("/file" + i);
+    }
+    Assert.assertTrue(files.isIndexed());
+    for (int i = 0; i <= threshold / 2; ++i) {
+      Assert.assertTrue(files.remove("/file" + i));
+    }
+    Assert.assertFalse(files.isIndexed());
+    Assert.assertFalse(files.remove("/file0"));
+    for (int i = 0; i <= threshold; ++i) {
+      files.add("/new" + i);
+    }
+    Assert.assertTrue(files.isIndexed());
+    for (int i = 0; i < files.size(); ++i) {
+      Assert.assertEquals(i, files.indexOf(files.get(i)));
+    }
+  }
+
+  @Test
+  public void testRandomOps() {
+    SessionFileManager.SessionFiles files =
+      new SessionFileManager.SessionFiles();
+    List<String> expected = new ArrayList<>();
+    Random random = new Random(1);
+    for (int i = 0; i < 10000; ++i) {
+      if (expected.isEmpty() || random.nextInt(3) > 0) {
+        String path = "/file" + i;
+        files.add(path);
+        expected.add(path);
+      } else {
+        String path = expected.remove(random.nextInt(expected.size()));
+        Assert.assertTrue(files.remove(path));
+        Assert.assertFalse(files.remove(path));
+      }
+    }
+    Assert.assertTrue(files.isIndexed());
+    Assert.assertEquals(new HashSet<>(expected), new HashSet<>(files));
+    for (int i = 0; i < files.size(); ++i) {
+      Assert.assertEquals(i, files.indexOf(files.get(i)));
+    }
+    Assert.assertEquals(-1, files.indexOf("/missing"));
+  }
+
+  @Test(expected=RuntimeException.class)
+  public void testRemoveMissingFile() {
+    SessionFileManager manager = new SessionFileManager();
+    manager.addFileToSession(1, "/a");
+    manager.removeFileFromSession(1, "/b");
+  }
+}
@@ -43,3 +43,46 @@ class TestMultipleServers(object):
         res = requests.get(self.server3 + directory + "?wait=0")
         # consistency check
         self.assert_consistency()
+
+    def test_bulk_pulse(self):
+        directory = "/pulsefs/sessions"
+        # session1 is owned by server1 and session2 is owned by server2.
+        res = requests.post(self.server1 + directory)
+        assert res.status_code == 201
+        location1 = res.headers["Location"]
+        session1 = location1[location1.rfind("/") + 1:]
+        res = requests.post(self.server2 + directory)
+        assert res.status_code == 201
+        location2 = res.headers["Location"]
+        session2 = location2[location2.rfind("/") + 1:]
+        requests.get(self.server2 + location1 + "?wait=0")
+
+        # server2 renews its own session, redirects the one owned by server1
+        # to it and doesn't find the unknown one.
+        body = json.dumps([int(session1), int(session2), 123456789])
+        res = requests.put(self.server2 + directory, data=body)
+        assert res.status_code == 200
+        status = res.json()
+        assert status[session1] == "moved:localhost:8081"
+        assert status[session2] == "ok"
+        assert status["0000000123456789"] == "not-found"
+        for i in range(0, 5):
+            # The pulse sent to server2 is redirected to server1.
+            res = requests.put(self.server2 + location1)
+            assert res.status_code == 200
+            assert res.history[0].status_code == 307
+            assert res.url == self.server1 + location1
+            res = requests.put(self.server2 + location2)
+            assert res.status_code == 200
+            time.sleep(1)
+        # session1 outlives its timeout and still belongs to server1.
+        res = requests.get(self.server1 + location1)
+        assert res.status_code == 200
+        assert res.headers["version"] == "0"
+        assert requests.get(self.server2 + location1).content != \
+            requests.get(self.server2 + location2).content
+
+        # malformed body is rejected.
+        res = requests.put(self.server2 + directory, data="not json")
+        assert res.status_code == 400
+        self.assert_consistency()
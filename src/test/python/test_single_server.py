@@ -507,3 +507,29 @@ class TestSingleServer(object):
 
         stop = True
         thread.join()
+
+    def test_bulk_pulse(self):
+        directory = "/pulsefs/sessions"
+        res = requests.post(self.baseurl + directory)
+        assert res.status_code == 201
+        location = res.headers["Location"]
+        session = location[location.rfind("/") + 1:]
+
+        # the owned session is renewed and the unknown one is not found.
+        body = json.dumps([int(session), 123456789])
+        res = requests.put(self.baseurl + directory, data=body)
+        assert res.status_code == 200
+        status = res.json()
+        assert status[session] == "ok"
+        assert status["0000000123456789"] == "not-found"
+
+        # an empty batch renews nothing.
+        res = requests.put(self.baseurl + directory, data="[]")
+        assert res.status_code == 200
+        assert res.json() == {}
+
+        # malformed bodies are rejected.
+        res = requests.put(self.baseurl + directory, data="[1, 2")
+        assert res.status_code == 400
+        res = requests.put(self.baseurl + directory, data='{"a": 1}')
+        assert res.status_code == 400